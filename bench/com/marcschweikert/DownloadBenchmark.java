@@ -0,0 +1,369 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Throughput and allocation benchmark of the download engines against a {@link MockRangeServer}.
+ *
+ * <pre>
+ * DownloadBenchmark [-c connections,...] [-s sizes,...] [-b bufferSizes,...] [-e segment|blocking|nio|http2,...]
+ *                   [-x platform|virtual,...] [-w warmups] [-n iterations] [-r bandwidth] [-l latency] [-j jitter]
+ *                   [-f failureRate] [-M]
+ * </pre>
+ *
+ * Every combination of connection count, file size and engine is downloaded <code>-w</code> times to warm up and
+ * <code>-n</code> times to measure; the median, slowest and fastest throughput are reported with the bytes allocated
+ * per download. The <code>segment</code> engine times a single {@link Downloader#downloadSegment} of the whole file,
+ * the others a full {@link ParallelDownloader#download(DownloadRequest)}. <code>-r</code>, <code>-l</code>,
+ * <code>-j</code> and <code>-f</code> set the server's per-connection bandwidth in bytes/s, latency and jitter in
+ * milliseconds and failure rate. <code>-M</code> writes the downloads through a {@link MappedFileChannel}.
+ *
+ * Buffer size and executor mode are fixed for the life of a JVM, so each of their combinations runs in a forked JVM
+ * of its own. Allocation is read from the live threads, so a thread that exits during a download takes its share
+ * with it; the figure is then only a lower bound and is flagged with <code>&gt;=</code>, or shown as
+ * <code>n/a</code> where the runtime cannot tell.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadBenchmark {
+
+	/** Set in a forked JVM so it runs the benchmark instead of forking again. */
+	private static final String FORKED = "paralleldownloader.bench.forked";
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Bytes in a megabyte. */
+	private static final double MEGABYTE = 1024.0 * 1024.0;
+
+	/** Connection counts to measure. */
+	private long[] myConnections = { 1, 4, 16 };
+
+	/** File sizes to measure. */
+	private long[] mySizes = { 1024 * 1024, 64 * 1024 * 1024 };
+
+	/** Buffer sizes to measure. */
+	private long[] myBufferSizes = { 64 * 1024, 1024 * 1024 };
+
+	/** Engines to measure. */
+	private String[] myEngines = { "segment", "blocking", "nio" };
+
+	/** Executor modes to measure. */
+	private String[] myExecutors = { "platform", "virtual" };
+
+	/** Warm-up downloads per combination. */
+	private int myWarmups = 2;
+
+	/** Measured downloads per combination. */
+	private int myIterations = 5;
+
+	/** Server bandwidth per connection, in bytes per second. */
+	private long myBandwidth;
+
+	/** Server latency, in milliseconds. */
+	private long myLatency;
+
+	/** Server jitter, in milliseconds. */
+	private long myJitter;
+
+	/** Server failure rate. */
+	private double myFailureRate;
+
+	/** True to write the downloads through memory mappings. */
+	private boolean myMapped;
+
+	/**
+	 * Main
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main(final String[] args) {
+		final DownloadBenchmark benchmark = new DownloadBenchmark();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-c".equals(args[i])) {
+					benchmark.myConnections = parseList(args[++i]);
+				} else if ("-s".equals(args[i])) {
+					benchmark.mySizes = parseList(args[++i]);
+				} else if ("-b".equals(args[i])) {
+					benchmark.myBufferSizes = parseList(args[++i]);
+				} else if ("-e".equals(args[i])) {
+					benchmark.myEngines = args[++i].split(",");
+				} else if ("-x".equals(args[i])) {
+					benchmark.myExecutors = args[++i].split(",");
+				} else if ("-w".equals(args[i])) {
+					benchmark.myWarmups = Integer.parseInt(args[++i]);
+				} else if ("-n".equals(args[i])) {
+					benchmark.myIterations = Math.max(1, Integer.parseInt(args[++i]));
+				} else if ("-r".equals(args[i])) {
+					benchmark.myBandwidth = Long.parseLong(args[++i]);
+				} else if ("-l".equals(args[i])) {
+					benchmark.myLatency = Long.parseLong(args[++i]);
+				} else if ("-j".equals(args[i])) {
+					benchmark.myJitter = Long.parseLong(args[++i]);
+				} else if ("-f".equals(args[i])) {
+					benchmark.myFailureRate = Double.parseDouble(args[++i]);
+				} else if ("-M".equals(args[i])) {
+					benchmark.myMapped = true;
+				} else {
+					usage("Unexpected argument:  " + args[i]);
+				}
+			}
+		} catch (final ArrayIndexOutOfBoundsException ex) {
+			usage("Missing value for " + args[args.length - 1]);
+		} catch (final NumberFormatException ex) {
+			usage("Invalid number:  " + ex.getMessage());
+		}
+
+		try {
+			if (Boolean.getBoolean(FORKED)) {
+				benchmark.run();
+			} else {
+				System.out.println(String.format("%-8s %8s %-8s %11s %5s %9s %9s %9s %11s", "executor", "buffer",
+						"engine", "size", "conns", "MB/s", "min", "max", "alloc/op"));
+				benchmark.fork(args);
+			}
+		} catch (final Exception ex) {
+			System.err.println("Benchmark failed:  " + ex);
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run the benchmark once per buffer size and executor mode, each in a JVM of its own.
+	 *
+	 * @param args command line arguments, passed on to every JVM
+	 * @throws IOException if a JVM cannot be started or fails
+	 * @throws InterruptedException Thread interrupted
+	 */
+	private void fork(final String[] args) throws IOException, InterruptedException {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (final long bufferSize : myBufferSizes) {
+			for (final String executor : myExecutors) {
+				final List<String> command = new ArrayList<String>();
+				command.add(java);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add("-D" + FORKED + "=true");
+				command.add("-Dparalleldownloader.bufferSize=" + bufferSize);
+				command.add("-Dparalleldownloader.virtualThreads=" + "virtual".equals(executor));
+				command.add(DownloadBenchmark.class.getName());
+				command.addAll(Arrays.asList(args));
+
+				final int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+				if (0 != status) {
+					throw new IOException("Forked benchmark exited with status " + status);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measure every connection count, file size and engine in this JVM.
+	 *
+	 * @throws IOException if a download fails or comes back wrong
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 */
+	private void run() throws IOException, InterruptedException, ExecutionException {
+		long maxConnections = 1;
+		for (final long connections : myConnections) {
+			maxConnections = Math.max(maxConnections, connections);
+		}
+		ConnectionPool.getInstance().setMaxTotal((int) Math.max(64, maxConnections));
+		ConnectionPool.getInstance().setMaxPerRoute((int) maxConnections);
+
+		final MockRangeServer server = new MockRangeServer(0);
+		server.setBandwidth(myBandwidth);
+		server.setLatency(myLatency);
+		server.setJitter(myJitter);
+		server.setFailureRate(myFailureRate);
+		server.start();
+
+		final File destination = File.createTempFile("DownloadBenchmark", ".bin");
+		try {
+			for (final String engine : myEngines) {
+				for (final long size : mySizes) {
+					// a single segment download has only one connection
+					final long[] connectionCounts = "segment".equals(engine) ? new long[] { 1 } : myConnections;
+					for (final long connections : connectionCounts) {
+						measure(server, destination, engine, size, (int) connections);
+					}
+				}
+			}
+		} finally {
+			server.stop();
+			if (!destination.delete()) {
+				destination.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Warm up, measure and report one combination.
+	 *
+	 * @param server server to download from
+	 * @param destination file to download into
+	 * @param engine engine to download with
+	 * @param size size of the file
+	 * @param connections number of connections
+	 * @throws IOException if a download fails or comes back wrong
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 */
+	private void measure(final MockRangeServer server, final File destination, final String engine, final long size,
+			final int connections) throws IOException, InterruptedException, ExecutionException {
+		for (int i = 0; i < myWarmups; i++) {
+			download(server, destination, engine, size, connections);
+			if (0 == i) {
+				MockRangeServer.verify(destination, size);
+			}
+		}
+
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final double[] rates = new double[myIterations];
+		long allocated = 0;
+		boolean complete = true;
+		for (int i = 0; i < myIterations; i++) {
+			final long startedBefore = threads.getTotalStartedThreadCount();
+			final Map<Long, Long> allocatedBefore = getAllocatedBytes();
+			final long start = System.nanoTime();
+			download(server, destination, engine, size, connections);
+			final long nanos = System.nanoTime() - start;
+			final Map<Long, Long> allocatedAfter = getAllocatedBytes();
+			final long startedAfter = threads.getTotalStartedThreadCount();
+			rates[i] = size * NANO_OFFSET / nanos / MEGABYTE;
+			if (null == allocatedBefore) {
+				continue;
+			}
+
+			int born = 0;
+			for (final Map.Entry<Long, Long> thread : allocatedAfter.entrySet()) {
+				final Long before = allocatedBefore.get(thread.getKey());
+				if (null == before) {
+					born++;
+				}
+				allocated += thread.getValue().longValue() - ((null == before) ? 0 : before.longValue());
+			}
+
+			// every thread alive before must still be, and every thread started since
+			complete &= allocatedAfter.keySet().containsAll(allocatedBefore.keySet())
+					&& startedAfter - startedBefore == born;
+		}
+		Arrays.sort(rates);
+
+		String allocation = "n/a";
+		if (null != getAllocatedBytes()) {
+			allocation = (complete ? "" : ">=") + String.format("%.2f MB", allocated / (double) myIterations
+					/ MEGABYTE);
+		}
+		System.out.println(String.format("%-8s %8d %-8s %11d %5d %9.1f %9.1f %9.1f %11s", WorkerThreads.getInstance()
+				.isVirtual() ? "virtual" : "platform", Integer.valueOf(BufferPool.getInstance().getBufferSize()),
+				engine, Long.valueOf(size), Integer.valueOf(connections), Double.valueOf(rates[rates.length / 2]),
+				Double.valueOf(rates[0]), Double.valueOf(rates[rates.length - 1]), allocation));
+	}
+
+	/**
+	 * Download a generated file once.
+	 *
+	 * @param server server to download from
+	 * @param destination file to download into
+	 * @param engine engine to download with
+	 * @param size size of the file
+	 * @param connections number of connections
+	 * @throws IOException if the download fails
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 */
+	private void download(final MockRangeServer server, final File destination, final String engine,
+			final long size, final int connections) throws IOException, InterruptedException, ExecutionException {
+		if ("segment".equals(engine)) {
+			try (final RandomAccessFile raf = new RandomAccessFile(destination, "rw");
+					final FileChannel channel = myMapped ? new MappedFileChannel(raf.getChannel(), size) : raf
+							.getChannel();) {
+				raf.setLength(size);
+				Downloader.downloadSegment(new Segment(0, size - 1), server.getURL(size), channel,
+						new DownloadProgress(size, 1));
+			}
+			return;
+		}
+
+		DownloadRequest.Engine mode = DownloadRequest.Engine.BLOCKING;
+		if ("nio".equals(engine)) {
+			mode = DownloadRequest.Engine.NON_BLOCKING;
+		} else if ("http2".equals(engine)) {
+			mode = DownloadRequest.Engine.HTTP2;
+		}
+		ParallelDownloader.download(new DownloadRequest.Builder(server.getURL(size), destination.getPath())
+				.connections(connections).engine(mode).memoryMapped(myMapped).build());
+	}
+
+	/**
+	 * @return bytes allocated so far by each live thread, by thread ID, or null if the runtime cannot tell
+	 */
+	private static Map<Long, Long> getAllocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+
+		final long[] ids = threads.getAllThreadIds();
+		final long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+		final Map<Long, Long> byThread = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			// -1 for a thread that died in between
+			if (allocated[i] >= 0) {
+				byThread.put(Long.valueOf(ids[i]), Long.valueOf(allocated[i]));
+			}
+		}
+		return byThread;
+	}
+
+	/**
+	 * @param list comma separated numbers
+	 * @return the numbers
+	 */
+	private static long[] parseList(final String list) {
+		final String[] items = list.split(",");
+		final long[] values = new long[items.length];
+		for (int i = 0; i < items.length; i++) {
+			values[i] = Long.parseLong(items[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Print the usage and exit.
+	 *
+	 * @param message what was wrong with the arguments
+	 */
+	private static void usage(final String message) {
+		System.err.println(message);
+		System.err.println("Usage:  DownloadBenchmark [-c connections,...] [-s sizes,...] [-b bufferSizes,...] "
+				+ "[-e segment|blocking|nio|http2,...] [-x platform|virtual,...] [-w warmups] [-n iterations] "
+				+ "[-r bandwidth] [-l latency] [-j jitter] [-f failureRate] [-M]");
+		System.exit(2);
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private DownloadBenchmark() {
+	}
+}
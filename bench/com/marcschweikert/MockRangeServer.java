@@ -0,0 +1,371 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server for benchmarks. It serves generated files of any size with <code>Range</code> support, so
+ * downloads can be measured offline and reproducibly instead of against live servers.
+ *
+ * <code>/file/N</code> is a file of N bytes whose content is a function of the offset alone, so a download can be
+ * checked with {@link #verify(File, long)} without keeping a copy. Every response can be slowed to a bandwidth cap,
+ * delayed by a fixed latency plus random jitter, or cut short half way with a given probability. A connection serves
+ * one request at a time, so the bandwidth cap applies per connection. The settings may be changed while the server
+ * runs.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class MockRangeServer implements HttpHandler {
+
+	/** Path prefix of the generated files. */
+	private static final String FILE_PATH = "/file/";
+
+	/** Bytes written per send, and per bandwidth check. */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Underlying server. */
+	private final HttpServer myServer;
+
+	/** Runs the exchanges. */
+	private final ExecutorService myExecutor;
+
+	/** Random source for jitter and failures. */
+	private final Random myRandom = new Random();
+
+	/** Bytes per second per connection, or 0 for no cap. */
+	private volatile long myBandwidth;
+
+	/** Delay before every response, in milliseconds. */
+	private volatile long myLatency;
+
+	/** Largest random delay added to the latency, in milliseconds. */
+	private volatile long myJitter;
+
+	/** Probability that a response is cut short. */
+	private volatile double myFailureRate;
+
+	/** Requests served. */
+	private final AtomicLong myRequests = new AtomicLong();
+
+	/** Body bytes sent. */
+	private final AtomicLong myBytesSent = new AtomicLong();
+
+	/**
+	 * Main - serve files until killed.
+	 *
+	 * @param args port, then optionally bandwidth in bytes/s, latency and jitter in milliseconds and failure rate
+	 */
+	public static void main(final String[] args) {
+		if (args.length < 1 || args.length > 5) {
+			System.err.println("Usage:  MockRangeServer port [bandwidth [latency [jitter [failureRate]]]]");
+			System.exit(2);
+		}
+
+		try {
+			final MockRangeServer server = new MockRangeServer(Integer.parseInt(args[0]));
+			if (args.length > 1) {
+				server.setBandwidth(Long.parseLong(args[1]));
+			}
+			if (args.length > 2) {
+				server.setLatency(Long.parseLong(args[2]));
+			}
+			if (args.length > 3) {
+				server.setJitter(Long.parseLong(args[3]));
+			}
+			if (args.length > 4) {
+				server.setFailureRate(Double.parseDouble(args[4]));
+			}
+			server.start();
+			System.out.println("Serving " + server.getURL(1024) + " (any size) on port " + server.getPort());
+		} catch (final IOException ex) {
+			System.err.println("Cannot start server:  " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Constructor. The server listens on the loopback interface only.
+	 *
+	 * @param port port to listen on, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public MockRangeServer(final int port) throws IOException {
+		myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		myServer.createContext("/", this);
+		myExecutor = Executors.newCachedThreadPool(WorkerThreads.getInstance().newThreadFactory("MockRangeServer-"));
+		myServer.setExecutor(myExecutor);
+	}
+
+	/**
+	 * Start serving.
+	 */
+	public void start() {
+		myServer.start();
+	}
+
+	/**
+	 * Stop serving and drop every open connection.
+	 */
+	public void stop() {
+		myServer.stop(0);
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return myServer.getAddress().getPort();
+	}
+
+	/**
+	 * @param size size of the file
+	 * @return URL of a generated file of that size
+	 */
+	public String getURL(final long size) {
+		return "http://127.0.0.1:" + getPort() + FILE_PATH + size;
+	}
+
+	/**
+	 * @param bandwidth bytes per second per connection, or 0 for no cap
+	 */
+	public void setBandwidth(final long bandwidth) {
+		myBandwidth = bandwidth;
+	}
+
+	/**
+	 * @param latency delay before every response, in milliseconds
+	 */
+	public void setLatency(final long latency) {
+		myLatency = latency;
+	}
+
+	/**
+	 * @param jitter largest random delay added to the latency, in milliseconds
+	 */
+	public void setJitter(final long jitter) {
+		myJitter = jitter;
+	}
+
+	/**
+	 * @param failureRate probability, from 0 to 1, that a response is cut short half way
+	 */
+	public void setFailureRate(final double failureRate) {
+		myFailureRate = failureRate;
+	}
+
+	/**
+	 * @return requests served so far
+	 */
+	public long getRequests() {
+		return myRequests.get();
+	}
+
+	/**
+	 * @return body bytes sent so far
+	 */
+	public long getBytesSent() {
+		return myBytesSent.get();
+	}
+
+	/**
+	 * Fill an array with the content of a generated file.
+	 *
+	 * @param offset offset in the file of the first byte
+	 * @param bytes where to put the content
+	 * @param length number of bytes
+	 */
+	public static void fill(final long offset, final byte[] bytes, final int length) {
+		for (int i = 0; i < length; i++) {
+			final long position = offset + i;
+			bytes[i] = (byte) ((position * 0x9E3779B1L) >>> 24);
+		}
+	}
+
+	/**
+	 * @param file downloaded file
+	 * @param size size of the generated file it was downloaded from
+	 * @throws IOException if the file cannot be read or differs from the generated file
+	 */
+	public static void verify(final File file, final long size) throws IOException {
+		if (file.length() != size) {
+			throw new IOException(file + " has " + file.length() + " bytes instead of " + size);
+		}
+
+		final byte[] actual = new byte[CHUNK_SIZE];
+		final byte[] expected = new byte[CHUNK_SIZE];
+		try (final InputStream input = new FileInputStream(file)) {
+			long offset = 0;
+			int read;
+			while ((read = input.read(actual)) > 0) {
+				fill(offset, expected, read);
+				for (int i = 0; i < read; i++) {
+					if (actual[i] != expected[i]) {
+						throw new IOException(file + " differs at byte " + (offset + i));
+					}
+				}
+				offset += read;
+			}
+		}
+	}
+
+	/**
+	 * Serve one request.
+	 *
+	 * @param exchange request and response
+	 * @throws IOException if the response cannot be sent
+	 */
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		myRequests.incrementAndGet();
+		try {
+			final String path = exchange.getRequestURI().getPath();
+			long size = -1;
+			if (path.startsWith(FILE_PATH)) {
+				try {
+					size = Long.parseLong(path.substring(FILE_PATH.length()));
+				} catch (final NumberFormatException ex) {
+					size = -1;
+				}
+			}
+			if (size < 0) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			delay();
+
+			// work out which bytes were asked for
+			long start = 0;
+			long end = size - 1;
+			int status = 200;
+			final String range = exchange.getRequestHeaders().getFirst("Range");
+			if (null != range && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+				final String spec = range.substring("bytes=".length()).trim();
+				final int dash = spec.indexOf('-');
+				try {
+					if (0 == dash) {
+						start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+					} else if (dash > 0) {
+						start = Long.parseLong(spec.substring(0, dash));
+						if (dash < spec.length() - 1) {
+							end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+						}
+					}
+				} catch (final NumberFormatException ex) {
+					start = 0;
+					end = size - 1;
+				}
+				if (start > end) {
+					exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+			}
+
+			final long length = end - start + 1;
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(status, length);
+			send(exchange.getResponseBody(), start, length);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Wait for the latency plus a random share of the jitter.
+	 */
+	private void delay() {
+		long millis = myLatency;
+		final long jitter = myJitter;
+		if (jitter > 0) {
+			synchronized (myRandom) {
+				millis += (long) (myRandom.nextDouble() * jitter);
+			}
+		}
+		sleep(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Send part of a generated file, keeping to the bandwidth cap and possibly stopping half way.
+	 *
+	 * @param output response body
+	 * @param start offset of the first byte
+	 * @param length number of bytes
+	 * @throws IOException if the client went away
+	 */
+	private void send(final OutputStream output, final long start, final long length) throws IOException {
+		final double failureRate = myFailureRate;
+		boolean fail = false;
+		if (failureRate > 0) {
+			synchronized (myRandom) {
+				fail = myRandom.nextDouble() < failureRate;
+			}
+		}
+		final long limit = fail ? length / 2 : length;
+
+		final byte[] chunk = new byte[CHUNK_SIZE];
+		final long began = System.nanoTime();
+		long sent = 0;
+		while (sent < limit) {
+			final int count = (int) Math.min(chunk.length, limit - sent);
+			fill(start + sent, chunk, count);
+			output.write(chunk, 0, count);
+			sent += count;
+			myBytesSent.addAndGet(count);
+
+			// hold back until the bytes sent so far fit the cap
+			final long bandwidth = myBandwidth;
+			if (bandwidth > 0) {
+				sleep((long) (sent * NANO_OFFSET / bandwidth) - (System.nanoTime() - began));
+			}
+		}
+
+		if (fail) {
+			// closing a fixed-length body early drops the connection, so the client sees a premature end
+			throw new IOException("Injected failure");
+		}
+	}
+
+	/**
+	 * @param nanos time to sleep, may be zero or negative
+	 */
+	private static void sleep(final long nanos) {
+		if (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
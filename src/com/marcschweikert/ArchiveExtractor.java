@@ -0,0 +1,433 @@
+package com.marcschweikert;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.Charset;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pipeline stage that decompresses and unpacks a download on its own thread while the download is still running, so
+ * the archive is never read back off disk. Start one with {@link ParallelDownloader#extract(DownloadRequest, File)},
+ * which feeds it the {@link DownloadStream} of the download.
+ *
+ * tar archives (ustar, with GNU long names and pax path and size records), gzip files and gzipped tar archives are
+ * understood; the format follows from the name of the remote file. Regular files and directories are extracted,
+ * keeping the owner's execute bit; links and special files are skipped, and an entry whose path would leave the
+ * target directory stops the extraction. Once the archive ends the rest of the stream is still read, so a download
+ * that fails afterwards, for instance on its whole-file digest, fails the extraction too.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ArchiveExtractor implements Callable<File> {
+
+	/**
+	 * What the downloaded file holds.
+	 */
+	public enum Format {
+		/** Uncompressed tar archive. */
+		TAR,
+		/** Single gzipped file. */
+		GZIP,
+		/** Gzipped tar archive. */
+		TAR_GZIP
+	}
+
+	/** Size of a tar header and of the unit its data is padded to. */
+	private static final int BLOCK_SIZE = 512;
+
+	/** Size of the buffer files are copied through. */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/** Encoding of names in tar headers and pax records. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The archive, in order. */
+	private final InputStream myInput;
+
+	/** What the archive holds. */
+	private final Format myFormat;
+
+	/** Directory to extract into. */
+	private final File myDirectory;
+
+	/** Name of the file a plain gzip file is extracted to. */
+	private final String myName;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param input the archive, in order; closed once extraction ends
+	 * @param format what the archive holds
+	 * @param directory directory to extract into, created if missing
+	 * @param name name of the archive, whose extension is dropped for the file a plain gzip file is extracted to
+	 */
+	public ArchiveExtractor(final InputStream input, final Format format, final File directory, final String name) {
+		myInput = input;
+		myFormat = format;
+		myDirectory = directory;
+		myName = name;
+	}
+
+	/**
+	 * @param name name of the remote file
+	 * @return what the file holds
+	 * @throws IOException if the file is not an archive that can be extracted
+	 */
+	public static Format detect(final String name) throws IOException {
+		final String lower = name.toLowerCase(Locale.ROOT);
+		if (lower.endsWith(".tar.gz") || lower.endsWith(".tgz")) {
+			return Format.TAR_GZIP;
+		} else if (lower.endsWith(".tar")) {
+			return Format.TAR;
+		} else if (lower.endsWith(".gz")) {
+			return Format.GZIP;
+		} else if (lower.endsWith(".zst") || lower.endsWith(".tzst")) {
+			throw new IOException("zstd is not supported - no decoder is available to extract " + name);
+		}
+		throw new IOException("Unable to tell what kind of archive " + name + " is");
+	}
+
+	/**
+	 * Extract the archive.
+	 *
+	 * @return directory extracted into
+	 * @throws IOException if the archive is damaged, the download failed or the files cannot be written
+	 */
+	@Override
+	public File call() throws IOException {
+		try (final InputStream input = myInput) {
+			if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+				throw new IOException("Unable to create " + myDirectory);
+			}
+
+			final InputStream buffered = new BufferedInputStream(input, COPY_BUFFER_SIZE);
+			if (Format.TAR == myFormat) {
+				untar(buffered);
+			} else {
+				// the gzip stream stops at the end of the compressed data, not of the download
+				final InputStream gunzipped = new GZIPInputStream(buffered, COPY_BUFFER_SIZE);
+				if (Format.TAR_GZIP == myFormat) {
+					untar(gunzipped);
+				} else {
+					try (final OutputStream output = new FileOutputStream(target(stripExtension(myName)))) {
+						copy(gunzipped, output, Long.MAX_VALUE);
+					}
+				}
+				drain(gunzipped);
+			}
+			drain(buffered);
+		}
+		return myDirectory;
+	}
+
+	/**
+	 * Unpack a tar archive.
+	 *
+	 * @param input the archive
+	 * @throws IOException if the archive is damaged or the files cannot be written
+	 */
+	private void untar(final InputStream input) throws IOException {
+		final byte[] header = new byte[BLOCK_SIZE];
+		String longName = null;
+		long paxSize = -1;
+		while (readBlock(input, header)) {
+			if (isZero(header)) {
+				// the end of the archive is marked with empty blocks
+				return;
+			}
+
+			final char type = (char) header[156];
+			final long size = (paxSize >= 0) ? paxSize : parseNumber(header, 124, 12);
+			String name = longName;
+			if (null == name) {
+				name = parseString(header, 0, 100);
+				final String prefix = parseString(header, 345, 155);
+				if (!prefix.isEmpty() && "ustar".equals(parseString(header, 257, 5))) {
+					name = prefix + "/" + name;
+				}
+			}
+
+			if ('L' == type || 'x' == type) {
+				// a record describing the entry that follows
+				final byte[] data = readData(input, size);
+				if ('L' == type) {
+					longName = parseString(data, 0, data.length);
+				} else {
+					final String path = paxRecord(data, "path");
+					if (null != path) {
+						longName = path;
+					}
+					final String paxSizeRecord = paxRecord(data, "size");
+					if (null != paxSizeRecord) {
+						try {
+							paxSize = Long.parseLong(paxSizeRecord);
+						} catch (final NumberFormatException ex) {
+							throw new IOException("Malformed pax size " + paxSizeRecord, ex);
+						}
+					}
+				}
+				continue;
+			}
+			longName = null;
+			paxSize = -1;
+
+			if ('0' == type || 0 == type || '7' == type) {
+				final File file = target(name);
+				final File parent = file.getParentFile();
+				if (!parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Unable to create " + parent);
+				}
+				try (final OutputStream output = new FileOutputStream(file)) {
+					copy(input, output, size);
+				}
+				if (0 != (parseNumber(header, 100, 8) & 0100) && !file.setExecutable(true)) {
+					System.err.println("Unable to make " + file + " executable");
+				}
+			} else if ('5' == type) {
+				final File directory = target(name);
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Unable to create " + directory);
+				}
+				skip(input, size);
+			} else {
+				if ('g' != type) {
+					System.err.println("Skipping " + name + " - entries of type " + type + " are not extracted");
+				}
+				skip(input, size);
+			}
+			skip(input, padding(size));
+		}
+		throw new EOFException("Archive ends without its end marker");
+	}
+
+	/**
+	 * @param name path of an entry
+	 * @return where the entry goes
+	 * @throws IOException if the entry would land outside the directory
+	 */
+	private File target(final String name) throws IOException {
+		final File file = new File(myDirectory, name);
+		final String root = myDirectory.getCanonicalPath() + File.separator;
+		if (name.startsWith("/") || !(file.getCanonicalPath() + File.separator).startsWith(root)) {
+			throw new IOException("Refusing to extract " + name + " outside " + myDirectory);
+		}
+		return file;
+	}
+
+	/**
+	 * @param data pax extended header
+	 * @param key keyword to look for
+	 * @return value of the keyword, or null
+	 * @throws IOException if the header is malformed
+	 */
+	private static String paxRecord(final byte[] data, final String key) throws IOException {
+		// each record is "length keyword=value\n", the length counting the whole record
+		int position = 0;
+		while (position < data.length && 0 != data[position]) {
+			int space = position;
+			while (space < data.length && ' ' != data[space]) {
+				space++;
+			}
+			final int length;
+			try {
+				length = Integer.parseInt(new String(data, position, space - position, UTF8));
+			} catch (final NumberFormatException ex) {
+				throw new IOException("Malformed pax header", ex);
+			}
+			if (length <= 0 || position + length > data.length) {
+				throw new IOException("Malformed pax header");
+			}
+			final String record = new String(data, space + 1, position + length - space - 2, UTF8);
+			final int equals = record.indexOf('=');
+			if (equals > 0 && key.equals(record.substring(0, equals))) {
+				return record.substring(equals + 1);
+			}
+			position += length;
+		}
+		return null;
+	}
+
+	/**
+	 * @param header tar header
+	 * @param offset first byte of the field
+	 * @param length length of the field
+	 * @return the NUL-terminated text of the field
+	 */
+	private static String parseString(final byte[] header, final int offset, final int length) {
+		int end = offset;
+		while (end < offset + length && 0 != header[end]) {
+			end++;
+		}
+		return new String(header, offset, end - offset, UTF8);
+	}
+
+	/**
+	 * @param header tar header
+	 * @param offset first byte of the field
+	 * @param length length of the field
+	 * @return the octal number of the field, or the base-256 one GNU tar writes for large values
+	 * @throws IOException if the field is not a number
+	 */
+	private static long parseNumber(final byte[] header, final int offset, final int length) throws IOException {
+		if (0 != (header[offset] & 0x80)) {
+			long value = header[offset] & 0x7f;
+			for (int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (header[i] & 0xff);
+			}
+			return value;
+		}
+
+		int i = offset;
+		while (i < offset + length && ' ' == header[i]) {
+			i++;
+		}
+		long value = 0;
+		for (; i < offset + length && 0 != header[i] && ' ' != header[i]; i++) {
+			if (header[i] < '0' || header[i] > '7') {
+				throw new IOException("Malformed tar header");
+			}
+			value = (value << 3) + (header[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @param size bytes of data in an entry
+	 * @return bytes padding the data to a whole block
+	 */
+	private static long padding(final long size) {
+		return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+	}
+
+	/**
+	 * @param header block of the archive
+	 * @return true if every byte is zero
+	 */
+	private static boolean isZero(final byte[] header) {
+		for (final byte b : header) {
+			if (0 != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param input the archive
+	 * @param block where to put the next block
+	 * @return true if a block was read, false at the end of the stream
+	 * @throws IOException if the stream ends within a block
+	 */
+	private static boolean readBlock(final InputStream input, final byte[] block) throws IOException {
+		int filled = 0;
+		int read;
+		while (filled < block.length && (read = input.read(block, filled, block.length - filled)) > 0) {
+			filled += read;
+		}
+		if (0 != filled && filled < block.length) {
+			throw new EOFException("Archive cut short");
+		}
+		return filled == block.length;
+	}
+
+	/**
+	 * Read the data of a record entry, padding included.
+	 *
+	 * @param input the archive
+	 * @param size bytes of data
+	 * @return the data
+	 * @throws IOException if the record is too large or the stream ends within it
+	 */
+	private static byte[] readData(final InputStream input, final long size) throws IOException {
+		if (size > COPY_BUFFER_SIZE * 16) {
+			throw new IOException("Tar record of " + size + " bytes is too large");
+		}
+		final byte[] data = new byte[(int) size];
+		int filled = 0;
+		int read;
+		while (filled < data.length && (read = input.read(data, filled, data.length - filled)) > 0) {
+			filled += read;
+		}
+		if (filled < data.length) {
+			throw new EOFException("Archive cut short");
+		}
+		skip(input, padding(size));
+		return data;
+	}
+
+	/**
+	 * @param input stream to copy from
+	 * @param output stream to copy to
+	 * @param length bytes to copy, or {@link Long#MAX_VALUE} for the rest of the stream
+	 * @throws IOException if the stream ends early or the output cannot be written
+	 */
+	private static void copy(final InputStream input, final OutputStream output, final long length)
+			throws IOException {
+		final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long left = length;
+		while (left > 0) {
+			final int read = input.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read < 0) {
+				if (Long.MAX_VALUE == length) {
+					return;
+				}
+				throw new EOFException("Archive cut short");
+			}
+			output.write(buffer, 0, read);
+			left -= read;
+		}
+	}
+
+	/**
+	 * @param input the archive
+	 * @param length bytes to skip
+	 * @throws IOException if the stream ends early
+	 */
+	private static void skip(final InputStream input, final long length) throws IOException {
+		long left = length;
+		while (left > 0) {
+			final long skipped = input.skip(left);
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException("Archive cut short");
+				}
+				left--;
+			} else {
+				left -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * Read a stream to its end, so the download behind it finishes and reports how it went.
+	 *
+	 * @param input stream to read
+	 * @throws IOException if the stream cannot be read
+	 */
+	private static void drain(final InputStream input) throws IOException {
+		final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		while (input.read(buffer) >= 0) {
+			continue;
+		}
+	}
+
+	/**
+	 * @param name name of a compressed file
+	 * @return the name without its compression extension
+	 */
+	private static String stripExtension(final String name) {
+		final String base = name.substring(name.lastIndexOf('/') + 1);
+		final int dot = base.lastIndexOf('.');
+		return (dot > 0) ? base.substring(0, dot) : base + ".out";
+	}
+}
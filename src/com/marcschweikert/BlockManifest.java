@@ -0,0 +1,354 @@
+package com.marcschweikert;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Hashes of the fixed-size blocks of a file, so each block can be checked, and re-fetched if it is bad, on its own.
+ *
+ * The manifest is a small text file: a header naming the algorithm, block size and file size, then one hex hash per
+ * block in file order. The last block may be shorter than the others. Version 2 follows each hash with the block's
+ * {@link RollingChecksum}, which lets a {@link DeltaPlan} find the blocks anywhere in an older copy of the file.
+ *
+ * <pre>
+ * ParallelDownloader blocks 2
+ * algorithm SHA-256
+ * blocksize 1048576
+ * size 30000000
+ * 3f2a... 8c01d4e7
+ * </pre>
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class BlockManifest {
+
+	/** First line of a manifest without weak checksums. */
+	private static final String MAGIC = "ParallelDownloader blocks 1";
+
+	/** First line of a manifest with weak checksums. */
+	private static final String MAGIC_WEAK = "ParallelDownloader blocks 2";
+
+	/** Algorithm the blocks are hashed with. */
+	private final String myAlgorithm;
+
+	/** Size of every block but the last. */
+	private final long myBlockSize;
+
+	/** Size of the whole file. */
+	private final long myFileSize;
+
+	/** Hex hash of each block. */
+	private final List<String> myHashes;
+
+	/** Weak checksum of each block, or null. */
+	private final int[] myWeakHashes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param algorithm algorithm the blocks are hashed with, see {@link ContentHash}
+	 * @param blockSize size of every block but the last
+	 * @param fileSize size of the whole file
+	 * @param hashes hex hash of each block
+	 */
+	public BlockManifest(final String algorithm, final long blockSize, final long fileSize, final List<String> hashes) {
+		this(algorithm, blockSize, fileSize, hashes, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param algorithm algorithm the blocks are hashed with, see {@link ContentHash}
+	 * @param blockSize size of every block but the last
+	 * @param fileSize size of the whole file
+	 * @param hashes hex hash of each block
+	 * @param weakHashes {@link RollingChecksum} of each block, or null
+	 */
+	public BlockManifest(final String algorithm, final long blockSize, final long fileSize, final List<String> hashes,
+			final int[] weakHashes) {
+		if (blockSize <= 0 || hashes.size() != (fileSize + blockSize - 1) / blockSize) {
+			throw new IllegalArgumentException("Expected one hash per " + blockSize + " byte block of " + fileSize
+					+ " bytes, got " + hashes.size());
+		}
+		if (null != weakHashes && weakHashes.length != hashes.size()) {
+			throw new IllegalArgumentException("Expected " + hashes.size() + " weak checksums, got "
+					+ weakHashes.length);
+		}
+		myAlgorithm = algorithm;
+		myBlockSize = blockSize;
+		myFileSize = fileSize;
+		myHashes = Collections.unmodifiableList(new ArrayList<String>(hashes));
+		myWeakHashes = (null == weakHashes) ? null : weakHashes.clone();
+	}
+
+	/**
+	 * Main - print the manifest of a local file.
+	 *
+	 * @param args file, algorithm and block size
+	 */
+	public static void main(final String[] args) {
+		if (args.length != 3) {
+			System.err.println("Usage:  BlockManifest file algorithm blockSize");
+			System.exit(2);
+		}
+
+		try {
+			final BlockManifest manifest = create(new File(args[0]), args[1], Long.parseLong(args[2]));
+			final Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+			manifest.write(writer);
+			writer.flush();
+		} catch (final IOException ex) {
+			System.err.println("Cannot hash " + args[0] + ":  " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Hash a local file, with a weak checksum for every block.
+	 *
+	 * @param file file to hash
+	 * @param algorithm algorithm to hash the blocks with, see {@link ContentHash}
+	 * @param blockSize size of every block but the last
+	 * @return the manifest
+	 * @throws IOException if the file cannot be read or the algorithm is not supported
+	 */
+	public static BlockManifest create(final File file, final String algorithm, final long blockSize)
+			throws IOException {
+		final ContentHash hash = newHash(algorithm);
+		final RollingChecksum weak = new RollingChecksum(0);
+		final List<String> hashes = new ArrayList<String>();
+		final int[] weakHashes = new int[(int) ((file.length() + blockSize - 1) / blockSize)];
+		final byte[] buffer = new byte[BufferPool.getInstance().getBufferSize()];
+		try (final InputStream input = new FileInputStream(file)) {
+			long inBlock = 0;
+			int read;
+			while ((read = input.read(buffer, 0, (int) Math.min(buffer.length, blockSize - inBlock))) > 0) {
+				hash.update(buffer, 0, read);
+				weak.update(buffer, 0, read);
+				inBlock += read;
+				if (inBlock == blockSize) {
+					weakHashes[hashes.size()] = weak.getValue();
+					weak.reset();
+					hashes.add(hash.toHex());
+					inBlock = 0;
+				}
+			}
+			if (inBlock > 0) {
+				weakHashes[hashes.size()] = weak.getValue();
+				hashes.add(hash.toHex());
+			}
+		}
+		return new BlockManifest(algorithm, blockSize, file.length(), hashes, weakHashes);
+	}
+
+	/**
+	 * @param file manifest file
+	 * @return the manifest
+	 * @throws IOException if the file cannot be read or is not a manifest
+	 */
+	public static BlockManifest read(final File file) throws IOException {
+		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				StandardCharsets.UTF_8))) {
+			final String magic = reader.readLine();
+			final boolean weak = MAGIC_WEAK.equals(magic);
+			if (!weak && !MAGIC.equals(magic)) {
+				throw new IOException("Not a block manifest:  " + file);
+			}
+
+			final String algorithm = field(reader, "algorithm", file);
+			final long blockSize;
+			final long fileSize;
+			try {
+				blockSize = Long.parseLong(field(reader, "blocksize", file));
+				fileSize = Long.parseLong(field(reader, "size", file));
+			} catch (final NumberFormatException ex) {
+				throw new IOException("Invalid number in " + file + ":  " + ex.getMessage());
+			}
+
+			final List<String> hashes = new ArrayList<String>();
+			final List<Integer> weakHashes = new ArrayList<Integer>();
+			String line;
+			while (null != (line = reader.readLine())) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				final String[] fields = line.trim().toLowerCase(Locale.ROOT).split("\\s+");
+				hashes.add(fields[0]);
+				if (weak) {
+					if (fields.length < 2) {
+						throw new IOException("Missing weak checksum of block " + (hashes.size() - 1) + " in " + file);
+					}
+					try {
+						weakHashes.add(Integer.valueOf((int) Long.parseLong(fields[1], 16)));
+					} catch (final NumberFormatException ex) {
+						throw new IOException("Invalid weak checksum in " + file + ":  " + fields[1]);
+					}
+				}
+			}
+
+			int[] weakArray = null;
+			if (weak) {
+				weakArray = new int[weakHashes.size()];
+				for (int i = 0; i < weakArray.length; i++) {
+					weakArray[i] = weakHashes.get(i).intValue();
+				}
+			}
+
+			try {
+				return new BlockManifest(algorithm, blockSize, fileSize, hashes, weakArray);
+			} catch (final IllegalArgumentException ex) {
+				throw new IOException(ex.getMessage() + " in " + file);
+			}
+		}
+	}
+
+	/**
+	 * @param writer where to write the manifest
+	 * @throws IOException if the manifest cannot be written
+	 */
+	public void write(final Writer writer) throws IOException {
+		writer.write(((null == myWeakHashes) ? MAGIC : MAGIC_WEAK) + "\nalgorithm " + myAlgorithm + "\nblocksize "
+				+ myBlockSize + "\nsize " + myFileSize + "\n");
+		for (int i = 0; i < myHashes.size(); i++) {
+			if (null == myWeakHashes) {
+				writer.write(myHashes.get(i) + "\n");
+			} else {
+				writer.write(myHashes.get(i) + " " + String.format("%08x", Integer.valueOf(myWeakHashes[i])) + "\n");
+			}
+		}
+	}
+
+	/**
+	 * @param file where to write the manifest
+	 * @throws IOException if the manifest cannot be written
+	 */
+	public void write(final File file) throws IOException {
+		try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			write(writer);
+		}
+	}
+
+	/**
+	 * @return algorithm the blocks are hashed with
+	 */
+	public String getAlgorithm() {
+		return myAlgorithm;
+	}
+
+	/**
+	 * @return size of every block but the last
+	 */
+	public long getBlockSize() {
+		return myBlockSize;
+	}
+
+	/**
+	 * @return size of the whole file
+	 */
+	public long getFileSize() {
+		return myFileSize;
+	}
+
+	/**
+	 * @return number of blocks
+	 */
+	public int getBlockCount() {
+		return myHashes.size();
+	}
+
+	/**
+	 * @param block block number
+	 * @return hex hash of the block
+	 */
+	public String getHash(final int block) {
+		return myHashes.get(block);
+	}
+
+	/**
+	 * @return true if the manifest has a weak checksum for every block
+	 */
+	public boolean hasWeakHashes() {
+		return null != myWeakHashes;
+	}
+
+	/**
+	 * @param block block number
+	 * @return {@link RollingChecksum} of the block
+	 * @throws IllegalStateException if the manifest has no weak checksums
+	 */
+	public int getWeakHash(final int block) {
+		if (null == myWeakHashes) {
+			throw new IllegalStateException("Manifest has no weak checksums");
+		}
+		return myWeakHashes[block];
+	}
+
+	/**
+	 * @param block block number
+	 * @return offset of the first byte of the block
+	 */
+	public long getBlockStart(final int block) {
+		return block * myBlockSize;
+	}
+
+	/**
+	 * @param block block number
+	 * @return offset of the last byte of the block
+	 */
+	public long getBlockEnd(final int block) {
+		return Math.min(myFileSize, (block + 1) * myBlockSize) - 1;
+	}
+
+	/**
+	 * @return a fresh hash of the manifest's algorithm
+	 * @throws IOException if the runtime does not support the algorithm
+	 */
+	public ContentHash newHash() throws IOException {
+		return newHash(myAlgorithm);
+	}
+
+	/**
+	 * @param algorithm name of the algorithm
+	 * @return a fresh hash
+	 * @throws IOException if the runtime does not support the algorithm
+	 */
+	static ContentHash newHash(final String algorithm) throws IOException {
+		try {
+			return ContentHash.getInstance(algorithm);
+		} catch (final NoSuchAlgorithmException ex) {
+			throw new IOException("Unsupported hash algorithm:  " + algorithm, ex);
+		}
+	}
+
+	/**
+	 * @param reader manifest being read
+	 * @param name expected name of the next header line
+	 * @param file manifest file, for the error message
+	 * @return value of the header line
+	 * @throws IOException if the line is missing or has another name
+	 */
+	private static String field(final BufferedReader reader, final String name, final File file) throws IOException {
+		final String line = reader.readLine();
+		if (null == line || !line.startsWith(name + " ")) {
+			throw new IOException("Missing \"" + name + "\" in " + file);
+		}
+		return line.substring(name.length() + 1).trim();
+	}
+}
@@ -0,0 +1,114 @@
+package com.marcschweikert;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large I/O buffers shared by every connection worker, so a segment download neither allocates a buffer nor
+ * reads in tiny pieces.
+ *
+ * The buffer size defaults to 256 KB and can be set with <code>paralleldownloader.bufferSize</code> (bytes); 64 KB
+ * to 1 MB is the useful range on fast links. Heap buffers are used for the blocking stream engine, since an
+ * <code>InputStream</code> can only read into a <code>byte[]</code>; direct buffers are for engines that read from a
+ * channel and can hand the same buffer to the file channel without an intermediate heap copy.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class BufferPool {
+
+	/** Singleton instance. */
+	private static final BufferPool instance = new BufferPool();
+
+	/** Default buffer size in bytes. */
+	private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/** Smallest buffer size accepted. */
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	/** Most idle buffers of each kind kept around. */
+	private static final int MAX_IDLE = 64;
+
+	/** Size of every buffer. */
+	private final int myBufferSize;
+
+	/** Idle heap buffers. */
+	private final ConcurrentLinkedQueue<ByteBuffer> myHeapBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** Idle direct buffers. */
+	private final ConcurrentLinkedQueue<ByteBuffer> myDirectBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** Number of buffers ever allocated. */
+	private final AtomicInteger myAllocated = new AtomicInteger();
+
+	/** Number of buffers currently handed out. */
+	private final AtomicInteger myInUse = new AtomicInteger();
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return size of every buffer in bytes
+	 */
+	public int getBufferSize() {
+		return myBufferSize;
+	}
+
+	/**
+	 * @param direct true for a direct buffer, false for one backed by a <code>byte[]</code>
+	 * @return a cleared buffer; give it back with {@link #release(ByteBuffer)}
+	 */
+	public ByteBuffer acquire(final boolean direct) {
+		ByteBuffer buffer = (direct ? myDirectBuffers : myHeapBuffers).poll();
+		if (null == buffer) {
+			buffer = direct ? ByteBuffer.allocateDirect(myBufferSize) : ByteBuffer.allocate(myBufferSize);
+			myAllocated.incrementAndGet();
+		}
+		myInUse.incrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 *
+	 * @param buffer buffer obtained from {@link #acquire(boolean)}
+	 */
+	public void release(final ByteBuffer buffer) {
+		myInUse.decrementAndGet();
+		final ConcurrentLinkedQueue<ByteBuffer> idle = buffer.isDirect() ? myDirectBuffers : myHeapBuffers;
+
+		// the size check is racy but only decides whether a buffer is kept or left to the GC
+		if (idle.size() < MAX_IDLE) {
+			idle.offer(buffer);
+		}
+	}
+
+	/**
+	 * @return number of buffers ever allocated
+	 */
+	public int getAllocated() {
+		return myAllocated.get();
+	}
+
+	/**
+	 * @return number of buffers currently handed out
+	 */
+	public int getInUse() {
+		return myInUse.get();
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private BufferPool() {
+		myBufferSize = Math.max(MIN_BUFFER_SIZE, Integer.getInteger("paralleldownloader.bufferSize",
+				DEFAULT_BUFFER_SIZE).intValue());
+	}
+}
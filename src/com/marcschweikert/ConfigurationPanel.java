@@ -7,8 +7,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -38,6 +41,9 @@ public final class ConfigurationPanel extends JPanel implements ActionListener {
 	/** Number of download chunks drop-down. */
 	private final JComboBox<Integer> myChunkComboBox = new JComboBox<Integer>();
 
+	/** Let the number of connections follow the measured throughput. */
+	private final JCheckBox myAdaptiveCheckBox = new JCheckBox();
+
 	/** Status message. */
 	private final JTextField myStatusTextField = new JTextField();
 
@@ -53,6 +59,10 @@ public final class ConfigurationPanel extends JPanel implements ActionListener {
 	/** Change nanoseconds to seconds. */
 	private static final double NANO_OFFSET = 1.0e9;
 
+	/** Runs the download started from the panel, one at a time, off the event dispatch thread. */
+	private final transient ExecutorService myDownloadExecutor = Executors.newSingleThreadExecutor(WorkerThreads
+			.getInstance().newThreadFactory("ConfigurationPanel-download-"));
+
 	/** Number of rows to show. */
 	private static final int NUM_ROWS = 10;
 
@@ -88,22 +98,28 @@ public final class ConfigurationPanel extends JPanel implements ActionListener {
 			} else {
 				// disallow changes while downloading
 				myChunkComboBox.setEnabled(false);
+				myAdaptiveCheckBox.setEnabled(false);
 				myDownloadButton.setEnabled(false);
 				myStatusTextField.setText("Download in progress ...");
 
-				// start the download in a new thread to free the GUI
-				new Thread(new Runnable() {
+				// start the download on the download thread to free the GUI
+				myDownloadExecutor.execute(new Runnable() {
 					@Override
 					public void run() {
 						try {
 							final String sourceURL = myURLTextField.getText();
 							final String destination = myDestFileChooser.getText();
 							final int numChunks = ((Integer) myChunkComboBox.getSelectedItem()).intValue();
+							final boolean adaptive = myAdaptiveCheckBox.isSelected();
 
 							// download the file and time it
 							final long start = System.nanoTime();
 
-							ParallelDownloader.download(sourceURL, destination, numChunks);
+							final int connections = adaptive ? ConnectionController.DEFAULT_MAX_ADAPTIVE_CONNECTIONS
+									: numChunks;
+							ParallelDownloader.download(new DownloadRequest.Builder(sourceURL, destination)
+									.connections(connections).adaptive(adaptive).progressRegions(numChunks)
+									.listener(ProgressPanel.getInstance()).build());
 
 							final long end = System.nanoTime();
 							final double totalTime = (end - start) / NANO_OFFSET;
@@ -122,12 +138,13 @@ public final class ConfigurationPanel extends JPanel implements ActionListener {
 								@Override
 								public void run() {
 									myChunkComboBox.setEnabled(true);
+									myAdaptiveCheckBox.setEnabled(true);
 									myDownloadButton.setEnabled(true);
 								}
 							});
 						}
 					}
-				}).start();
+				});
 			}
 		} else if (event.getActionCommand().equals(ACTION_NUMCHUNKS)) {
 			ProgressPanel.getInstance().setSelectedCard(myChunkComboBox.getSelectedIndex());
@@ -206,6 +223,14 @@ public final class ConfigurationPanel extends JPanel implements ActionListener {
 		myChunkComboBox.addActionListener(this);
 		this.add(myChunkComboBox);
 
+		//
+		// ADAPTIVE CONNECTIONS
+		//
+		final JLabel adaptiveLabel = new JLabel("Adaptive Connections");
+		this.add(adaptiveLabel);
+		myAdaptiveCheckBox.setToolTipText("Start with a few connections and add more while throughput improves");
+		this.add(myAdaptiveCheckBox);
+
 		//
 		// DOWNLOAD BUTTON
 		//
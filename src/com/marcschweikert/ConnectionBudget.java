@@ -0,0 +1,96 @@
+package com.marcschweikert;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caps the number of connections open at once across several downloads, both in total and per host.
+ *
+ * Every connection worker holds one permit for as long as it runs. A download that cannot get a permit simply runs
+ * with fewer connections until another download gives one back.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ConnectionBudget {
+
+	/** Budget that never refuses a connection. */
+	public static final ConnectionBudget UNLIMITED = new ConnectionBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+	/** Most connections open at once across all hosts. */
+	private final int myMaxTotal;
+
+	/** Most connections open at once to one host. */
+	private final int myMaxPerHost;
+
+	/** Connections currently open. */
+	private int myTotal;
+
+	/** Connections currently open to each host. */
+	private final Map<String, Integer> myPerHost = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxTotal most connections open at once across all hosts
+	 * @param maxPerHost most connections open at once to one host
+	 */
+	public ConnectionBudget(final int maxTotal, final int maxPerHost) {
+		myMaxTotal = maxTotal;
+		myMaxPerHost = maxPerHost;
+	}
+
+	/**
+	 * @return most connections open at once across all hosts
+	 */
+	public int getMaxTotal() {
+		return myMaxTotal;
+	}
+
+	/**
+	 * @return most connections open at once to one host
+	 */
+	public int getMaxPerHost() {
+		return myMaxPerHost;
+	}
+
+	/**
+	 * @param host host the connection is for
+	 * @return true if a connection may be opened; it must be given back with {@link #release(String)}
+	 */
+	public synchronized boolean tryAcquire(final String host) {
+		final Integer current = myPerHost.get(host);
+		final int hostCount = (null == current) ? 0 : current.intValue();
+		if (myTotal >= myMaxTotal || hostCount >= myMaxPerHost) {
+			return false;
+		}
+
+		myTotal++;
+		myPerHost.put(host, Integer.valueOf(hostCount + 1));
+		return true;
+	}
+
+	/**
+	 * @param host host the connection was for
+	 */
+	public synchronized void release(final String host) {
+		final Integer current = myPerHost.get(host);
+		if (null == current) {
+			return;
+		}
+
+		myTotal--;
+		if (current.intValue() <= 1) {
+			myPerHost.remove(host);
+		} else {
+			myPerHost.put(host, Integer.valueOf(current.intValue() - 1));
+		}
+	}
+
+	/**
+	 * @return connections currently open across all hosts
+	 */
+	public synchronized int getInUse() {
+		return myTotal;
+	}
+}
@@ -0,0 +1,265 @@
+package com.marcschweikert;
+
+/**
+ * Decides how many connection workers a download should be running.
+ *
+ * In fixed mode the count never changes. In adaptive mode the controller behaves much like TCP slow-start applied to
+ * parallelism: it starts with a few connections and doubles them while each step still raises the aggregate
+ * throughput noticeably, then probes one connection at a time. Once extra connections stop paying off it settles,
+ * and when the server starts throttling (HTTP 429/503) it halves the count and stops growing.
+ *
+ * Every running worker holds a permit from the {@link ConnectionBudget}, so several downloads sharing one budget
+ * never open more connections between them than it allows.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ConnectionController {
+
+	/** Connections an adaptive download starts with. */
+	public static final int INITIAL_ADAPTIVE_CONNECTIONS = 2;
+
+	/** Most connections an adaptive download grows to unless told otherwise. */
+	public static final int DEFAULT_MAX_ADAPTIVE_CONNECTIONS = 16;
+
+	/** Relative throughput gain a step must bring to count as an improvement. */
+	private static final double MIN_GAIN = 0.10;
+
+	/** Relative throughput loss after a step that makes us take it back. */
+	private static final double MAX_LOSS = 0.10;
+
+	/** Nanoseconds a measurement window must last before it is judged. */
+	private static final long WINDOW_NANOS = 2000000000L;
+
+	/** Nanoseconds per second. */
+	private static final double NANOS_PER_SECOND = 1.0e9;
+
+	/** Whether the connection count is tuned at all. */
+	private final boolean myAdaptive;
+
+	/** Largest number of connections allowed. */
+	private final int myMaxConnections;
+
+	/** Budget every running worker holds a permit from. */
+	private final ConnectionBudget myBudget;
+
+	/** Host the connections go to. */
+	private final String myHost;
+
+	/** Number of connections we want running. */
+	private int myTarget;
+
+	/** Number of workers running or about to run. */
+	private int myRunning;
+
+	/** Whether we are still doubling. */
+	private boolean mySlowStart = true;
+
+	/** Whether we have stopped looking for more connections. */
+	private boolean mySettled;
+
+	/** Best aggregate throughput seen so far, in bytes per second. */
+	private double myBestRate;
+
+	/** Connection count the best throughput was seen with. */
+	private int myBestTarget;
+
+	/** Throttling reported since the last decision. */
+	private boolean myThrottled;
+
+	/** Aggregate throughput of the last window, in bytes per second. */
+	private double myLastRate;
+
+	/** Average per-connection throughput of the last window, in bytes per second. */
+	private double myLastRatePerConnection;
+
+	/** Byte count at the start of the current window. */
+	private long myWindowBytes = -1;
+
+	/** Start of the current window. */
+	private long myWindowStart;
+
+	/**
+	 * @param connections fixed number of connections
+	 * @param budget budget every running worker holds a permit from
+	 * @param host host the connections go to
+	 * @return controller that never changes the connection count
+	 */
+	public static ConnectionController fixed(final int connections, final ConnectionBudget budget, final String host) {
+		return new ConnectionController(false, connections, connections, budget, host);
+	}
+
+	/**
+	 * @param maxConnections largest number of connections to try
+	 * @param budget budget every running worker holds a permit from
+	 * @param host host the connections go to
+	 * @return controller that tunes the connection count to the measured throughput
+	 */
+	public static ConnectionController adaptive(final int maxConnections, final ConnectionBudget budget,
+			final String host) {
+		return new ConnectionController(true, Math.min(INITIAL_ADAPTIVE_CONNECTIONS, maxConnections),
+				maxConnections, budget, host);
+	}
+
+	/**
+	 * @return largest number of connections allowed
+	 */
+	public int getMaxConnections() {
+		return myMaxConnections;
+	}
+
+	/**
+	 * @return number of connections we want running
+	 */
+	public synchronized int getTarget() {
+		return myTarget;
+	}
+
+	/**
+	 * @return aggregate throughput of the last measurement window, in bytes per second
+	 */
+	public synchronized double getLastRate() {
+		return myLastRate;
+	}
+
+	/**
+	 * @return average per-connection throughput of the last measurement window, in bytes per second
+	 */
+	public synchronized double getLastRatePerConnection() {
+		return myLastRatePerConnection;
+	}
+
+	/**
+	 * Called by a worker before it takes another segment.
+	 *
+	 * @return true to carry on, false if the worker has been retired and must stop
+	 */
+	public synchronized boolean admit() {
+		if (myRunning > myTarget) {
+			myRunning--;
+			myBudget.release(myHost);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Count a worker whose connection already holds a permit from the budget, such as the one reading the response
+	 * to the download's first request.
+	 */
+	public synchronized void adopt() {
+		myRunning++;
+	}
+
+	/**
+	 * Called by a worker that stops on its own because it ran out of work or failed.
+	 */
+	public synchronized void release() {
+		myRunning--;
+		myBudget.release(myHost);
+	}
+
+	/**
+	 * Called by a worker whose request was refused with HTTP 429 or 503.
+	 */
+	public synchronized void reportThrottled() {
+		myThrottled = true;
+	}
+
+	/**
+	 * Reserve room for the workers needed to reach the target, as far as the budget allows.
+	 *
+	 * @return number of new workers the caller must start; they are already counted as running
+	 */
+	public synchronized int startWorkers() {
+		int granted = 0;
+		while (myRunning + granted < myTarget && myBudget.tryAcquire(myHost)) {
+			granted++;
+		}
+		myRunning += granted;
+		return granted;
+	}
+
+	/**
+	 * Take a throughput sample and adjust the connection count.
+	 *
+	 * @param totalBytes bytes written so far
+	 */
+	public synchronized void sample(final long totalBytes) {
+		final long now = System.nanoTime();
+		if (myWindowBytes < 0) {
+			startWindow(totalBytes, now);
+		} else if (myAdaptive && (myThrottled || now - myWindowStart >= WINDOW_NANOS)) {
+			final double rate = (totalBytes - myWindowBytes) * NANOS_PER_SECOND / (now - myWindowStart);
+			myLastRate = rate;
+			myLastRatePerConnection = (myRunning > 0) ? rate / myRunning : 0;
+			adjust(rate);
+			startWindow(totalBytes, now);
+		}
+	}
+
+	/**
+	 * Decide on the next connection count from the throughput of the window that just ended.
+	 *
+	 * @param rate aggregate bytes per second over the window
+	 */
+	private void adjust(final double rate) {
+		if (myThrottled) {
+			// the server is pushing back - halve and stop probing
+			myThrottled = false;
+			mySettled = true;
+			myTarget = Math.max(1, myTarget / 2);
+			myBestRate = 0;
+			return;
+		}
+
+		if (rate > myBestRate * (1 + MIN_GAIN)) {
+			// the last step paid off - keep growing
+			myBestRate = rate;
+			myBestTarget = myTarget;
+			if (!mySettled && myTarget < myMaxConnections) {
+				myTarget = mySlowStart ? Math.min(myMaxConnections, myTarget * 2) : myTarget + 1;
+			}
+		} else if (rate < myBestRate * (1 - MAX_LOSS) && myTarget > myBestTarget) {
+			// more connections made things worse - go back to what worked
+			myTarget = myBestTarget;
+			mySettled = true;
+		} else if (mySlowStart && !mySettled) {
+			// plateau while doubling - fall back to probing one connection at a time
+			mySlowStart = false;
+			myTarget = Math.max(myBestTarget, 1);
+			if (myTarget < myMaxConnections) {
+				myTarget++;
+			}
+		} else {
+			mySettled = true;
+		}
+	}
+
+	/**
+	 * @param totalBytes bytes written so far
+	 * @param now current time in nanoseconds
+	 */
+	private void startWindow(final long totalBytes, final long now) {
+		myWindowBytes = totalBytes;
+		myWindowStart = now;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param adaptive whether the connection count is tuned
+	 * @param initialConnections connections to start with
+	 * @param maxConnections largest number of connections allowed
+	 * @param budget budget every running worker holds a permit from
+	 * @param host host the connections go to
+	 */
+	private ConnectionController(final boolean adaptive, final int initialConnections, final int maxConnections,
+			final ConnectionBudget budget, final String host) {
+		myAdaptive = adaptive;
+		myTarget = initialConnections;
+		myMaxConnections = maxConnections;
+		myBudget = budget;
+		myHost = host;
+	}
+}
@@ -0,0 +1,173 @@
+package com.marcschweikert;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+
+import org.apache.http.params.HttpConnectionParams;
+
+import org.apache.http.pool.PoolStats;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Long-lived HTTP client shared by every chunk worker and every download so that connections are kept alive and
+ * reused instead of paying a fresh TCP/TLS handshake per chunk.
+ *
+ * The limits can be tuned at start-up with the system properties <code>paralleldownloader.pool.maxTotal</code>,
+ * <code>paralleldownloader.pool.maxPerRoute</code> and <code>paralleldownloader.pool.idleSeconds</code>, or at
+ * runtime through the setters. Connect and read timeouts come from <code>paralleldownloader.connectTimeout</code>
+ * and <code>paralleldownloader.readTimeout</code> (milliseconds) so a stalled connection fails and can be retried.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ConnectionPool {
+
+	/** Singleton instance. */
+	private static volatile ConnectionPool instance;
+
+	/** Default limit on open connections across all hosts. */
+	private static final int DEFAULT_MAX_TOTAL = 64;
+
+	/** Default limit on open connections to a single host. */
+	private static final int DEFAULT_MAX_PER_ROUTE = 16;
+
+	/** Default number of seconds an unused connection stays in the pool. */
+	private static final int DEFAULT_IDLE_SECONDS = 30;
+
+	/** Default connect timeout, in milliseconds. */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default time a read may block without receiving data, in milliseconds. */
+	private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** How often the evictor looks for stale connections, in seconds. */
+	private static final int EVICTION_INTERVAL_SECONDS = 5;
+
+	/** Pooling connection manager. */
+	private final PoolingClientConnectionManager myConnectionManager;
+
+	/** Thread-safe client built on top of the pool. */
+	private final DefaultHttpClient myHttpClient;
+
+	/** Background idle connection evictor. */
+	private final ScheduledExecutorService myEvictor;
+
+	/** Seconds a connection may sit idle before it is closed. */
+	private volatile long myIdleSeconds;
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static ConnectionPool getInstance() {
+		if (null == instance) {
+			synchronized (ConnectionPool.class) {
+				if (null == instance) {
+					instance = new ConnectionPool();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return shared thread-safe HTTP client
+	 */
+	public DefaultHttpClient getHttpClient() {
+		return myHttpClient;
+	}
+
+	/**
+	 * @param maxTotal maximum number of open connections across all hosts
+	 */
+	public void setMaxTotal(final int maxTotal) {
+		myConnectionManager.setMaxTotal(maxTotal);
+	}
+
+	/**
+	 * @param maxPerRoute maximum number of open connections to a single host
+	 */
+	public void setMaxPerRoute(final int maxPerRoute) {
+		myConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+	}
+
+	/**
+	 * @param idleSeconds seconds a connection may sit idle in the pool before it is closed
+	 */
+	public void setIdleSeconds(final long idleSeconds) {
+		myIdleSeconds = idleSeconds;
+	}
+
+	/**
+	 * @return connections leased, idle and waited for across all hosts
+	 */
+	public PoolStats getTotalStats() {
+		return myConnectionManager.getTotalStats();
+	}
+
+	/**
+	 * Close every pooled connection. The pool cannot be used afterwards.
+	 */
+	public void shutdown() {
+		myEvictor.shutdownNow();
+		myConnectionManager.shutdown();
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private ConnectionPool() {
+		myIdleSeconds = Integer.getInteger("paralleldownloader.pool.idleSeconds", DEFAULT_IDLE_SECONDS).intValue();
+
+		myConnectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+		myConnectionManager.setMaxTotal(Integer.getInteger("paralleldownloader.pool.maxTotal", DEFAULT_MAX_TOTAL)
+				.intValue());
+		myConnectionManager.setDefaultMaxPerRoute(Integer.getInteger("paralleldownloader.pool.maxPerRoute",
+				DEFAULT_MAX_PER_ROUTE).intValue());
+
+		myHttpClient = new DefaultHttpClient(myConnectionManager);
+		HttpConnectionParams.setConnectionTimeout(myHttpClient.getParams(), Integer.getInteger(
+				"paralleldownloader.connectTimeout", DEFAULT_CONNECT_TIMEOUT).intValue());
+		HttpConnectionParams.setSoTimeout(myHttpClient.getParams(), Integer.getInteger(
+				"paralleldownloader.readTimeout", DEFAULT_READ_TIMEOUT).intValue());
+		myHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			/** Honors the server's Keep-Alive header. */
+			private final ConnectionKeepAliveStrategy myDelegate = new DefaultConnectionKeepAliveStrategy();
+
+			@Override
+			public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+				// servers rarely say how long they keep a connection - fall back to our idle timeout
+				final long duration = myDelegate.getKeepAliveDuration(response, context);
+				return (duration > 0) ? duration : TimeUnit.SECONDS.toMillis(myIdleSeconds);
+			}
+		});
+
+		myEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "ConnectionPool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		myEvictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				myConnectionManager.closeExpiredConnections();
+				myConnectionManager.closeIdleConnections(myIdleSeconds, TimeUnit.SECONDS);
+			}
+		}, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,80 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Reports download progress as plain text lines, for headless use.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ConsoleProgressListener implements DownloadListener {
+
+	/** Least time between two progress lines, in milliseconds. */
+	private static final long PRINT_INTERVAL_MILLIS = 1000;
+
+	/** Bytes in a megabyte. */
+	private static final double MEGABYTE = 1024.0 * 1024.0;
+
+	/** Stream to print to. */
+	private final PrintStream myOut;
+
+	/** Whether progress lines are printed, or only the start and end of each download. */
+	private final boolean myShowProgress;
+
+	/** Time the last progress line was printed. */
+	private long myLastPrint;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out stream to print to
+	 */
+	public ConsoleProgressListener(final PrintStream out) {
+		this(out, true);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out stream to print to
+	 * @param showProgress false to print only the start and end of each download, as when running a batch
+	 */
+	public ConsoleProgressListener(final PrintStream out, final boolean showProgress) {
+		myOut = out;
+		myShowProgress = showProgress;
+	}
+
+	@Override
+	public void downloadStarted(final String url, final File destination, final long fileSize) {
+		myOut.println("Downloading " + url + " (" + fileSize + " bytes) to " + destination);
+	}
+
+	@Override
+	public void progressUpdated(final ProgressSnapshot snapshot) {
+		if (!myShowProgress) {
+			return;
+		}
+
+		// snapshots arrive on a single sampler thread
+		final long now = System.currentTimeMillis();
+		if (now - myLastPrint < PRINT_INTERVAL_MILLIS) {
+			return;
+		}
+		myLastPrint = now;
+
+		myOut.println(String.format("  %3d%%  %.1f MB/s", Integer.valueOf(snapshot.getPercent()),
+				Double.valueOf(snapshot.getBytesPerSecond() / MEGABYTE)));
+	}
+
+	@Override
+	public void downloadCompleted(final File destination, final long fileSize) {
+		myOut.println("Download complete:  " + destination);
+	}
+
+	@Override
+	public void downloadFailed(final String url, final Exception cause) {
+		myOut.println("Download Failed!  " + cause.getMessage());
+	}
+}
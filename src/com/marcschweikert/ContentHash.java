@@ -0,0 +1,150 @@
+package com.marcschweikert;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Locale;
+import java.util.zip.Checksum;
+
+/**
+ * Incremental hash of a byte stream, by name: any {@link MessageDigest} algorithm such as <code>SHA-256</code> or
+ * <code>MD5</code>, or the <code>CRC32C</code> checksum. CRC32C only ships with Java 9 and later and the project
+ * still builds for Java 7, so it is created through reflection.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ContentHash {
+
+	/** Name of the CRC32C checksum. */
+	public static final String CRC32C = "CRC32C";
+
+	/** Hex digits. */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Base64 alphabet. */
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	/** Name of the algorithm. */
+	private final String myAlgorithm;
+
+	/** Message digest, or null for a checksum. */
+	private final MessageDigest myDigest;
+
+	/** Checksum, or null for a message digest. */
+	private final Checksum myChecksum;
+
+	/**
+	 * @param algorithm <code>CRC32C</code> or the name of a message digest
+	 * @return a fresh hash
+	 * @throws NoSuchAlgorithmException if the runtime does not support the algorithm
+	 */
+	public static ContentHash getInstance(final String algorithm) throws NoSuchAlgorithmException {
+		if (CRC32C.equalsIgnoreCase(algorithm)) {
+			try {
+				return new ContentHash(CRC32C, null, (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor()
+						.newInstance());
+			} catch (final ReflectiveOperationException ex) {
+				throw new NoSuchAlgorithmException("CRC32C needs Java 9 or later");
+			}
+		}
+		return new ContentHash(algorithm, MessageDigest.getInstance(algorithm), null);
+	}
+
+	/**
+	 * @return name of the algorithm
+	 */
+	public String getAlgorithm() {
+		return myAlgorithm;
+	}
+
+	/**
+	 * @param bytes data to add
+	 * @param offset start of the data in the array
+	 * @param length number of bytes
+	 */
+	public void update(final byte[] bytes, final int offset, final int length) {
+		if (null != myDigest) {
+			myDigest.update(bytes, offset, length);
+		} else {
+			myChecksum.update(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Finish the hash and start over.
+	 *
+	 * @return lower-case hex value of everything added since the last call
+	 */
+	public String toHex() {
+		if (null != myDigest) {
+			return toHex(myDigest.digest());
+		}
+
+		final long value = myChecksum.getValue();
+		myChecksum.reset();
+		return String.format("%08x", Long.valueOf(value));
+	}
+
+	/**
+	 * @param bytes raw value
+	 * @return lower-case hex
+	 */
+	public static String toHex(final byte[] bytes) {
+		final char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Turn a base64 value, as found in <code>Content-MD5</code> and <code>Digest</code> headers, into hex.
+	 *
+	 * @param base64 base64 value, padded or not
+	 * @return lower-case hex, or null if the value is not valid base64
+	 */
+	public static String base64ToHex(final String base64) {
+		final String value = base64.trim().replaceAll("=+$", "");
+		final byte[] bytes = new byte[value.length() * 3 / 4];
+		int bits = 0;
+		int count = 0;
+		int out = 0;
+		for (int i = 0; i < value.length(); i++) {
+			final int digit = BASE64.indexOf(value.charAt(i));
+			if (digit < 0) {
+				return null;
+			}
+			bits = (bits << 6) | digit;
+			count += 6;
+			if (count >= 8) {
+				count -= 8;
+				bytes[out++] = (byte) (bits >> count);
+			}
+		}
+		return toHex(bytes);
+	}
+
+	/**
+	 * @param expected expected hex value, in any case
+	 * @param actual actual hex value
+	 * @return true if they are the same value
+	 */
+	public static boolean matches(final String expected, final String actual) {
+		return expected.trim().toLowerCase(Locale.ROOT).equals(actual);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param algorithm name of the algorithm
+	 * @param digest message digest, or null for a checksum
+	 * @param checksum checksum, or null for a message digest
+	 */
+	private ContentHash(final String algorithm, final MessageDigest digest, final Checksum checksum) {
+		myAlgorithm = algorithm;
+		myDigest = digest;
+		myChecksum = checksum;
+	}
+}
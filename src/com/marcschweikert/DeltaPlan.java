@@ -0,0 +1,324 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocks of a new file that an older local copy already has, found zsync style from the new file's
+ * {@link BlockManifest}.
+ *
+ * A {@link RollingChecksum} window the size of a block slides over the old file one byte at a time; where its value
+ * is the weak checksum of a block, the window is hashed with the manifest's algorithm to confirm the match, and the
+ * search skips ahead a whole block. Blocks are found wherever they moved to, so data inserted or removed upstream
+ * costs only the blocks it touches. Blocks still missing afterwards, the short last block among them, are compared
+ * at their own offset, which is all a manifest without weak checksums or with blocks over 16 MB allows. Smaller
+ * blocks find more of the old file at the price of a larger manifest.
+ *
+ * The found blocks are copied into the destination before the download starts, so the segment workers only request
+ * the ranges in between.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DeltaPlan {
+
+	/** Largest block the rolling search is done for. */
+	private static final long MAX_ROLLING_BLOCK = 16L * 1024 * 1024;
+
+	/** Bits of the weak checksum filter that saves most map lookups. */
+	private static final int FILTER_BITS = 20;
+
+	/** Manifest of the new file. */
+	private final BlockManifest myManifest;
+
+	/** Old file. */
+	private final File mySource;
+
+	/** Offset of each block in the old file, or -1 if the old file does not have it. */
+	private final long[] mySourceOffsets;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param manifest manifest of the new file
+	 * @param source old file
+	 * @param sourceOffsets offset of each block in the old file, or -1
+	 */
+	private DeltaPlan(final BlockManifest manifest, final File source, final long[] sourceOffsets) {
+		myManifest = manifest;
+		mySource = source;
+		mySourceOffsets = sourceOffsets;
+	}
+
+	/**
+	 * Find the blocks of the new file in the old one.
+	 *
+	 * @param source old copy of the file
+	 * @param manifest manifest of the new file
+	 * @return which blocks the old file has
+	 * @throws IOException if the old file cannot be read or the manifest's algorithm is not supported
+	 */
+	public static DeltaPlan scan(final File source, final BlockManifest manifest) throws IOException {
+		final long[] offsets = new long[manifest.getBlockCount()];
+		Arrays.fill(offsets, -1);
+		final ContentHash strong = manifest.newHash();
+		if (manifest.hasWeakHashes() && manifest.getBlockSize() <= MAX_ROLLING_BLOCK) {
+			roll(source, manifest, strong, offsets);
+		}
+		compareInPlace(source, manifest, strong, offsets);
+		return new DeltaPlan(manifest, source, offsets);
+	}
+
+	/**
+	 * @return number of blocks the old file has
+	 */
+	public int getReusedBlocks() {
+		int reused = 0;
+		for (final long offset : mySourceOffsets) {
+			if (offset >= 0) {
+				reused++;
+			}
+		}
+		return reused;
+	}
+
+	/**
+	 * @return bytes of the new file the old file has
+	 */
+	public long getReusedBytes() {
+		long reused = 0;
+		for (int block = 0; block < mySourceOffsets.length; block++) {
+			if (mySourceOffsets[block] >= 0) {
+				reused += myManifest.getBlockEnd(block) - myManifest.getBlockStart(block) + 1;
+			}
+		}
+		return reused;
+	}
+
+	/**
+	 * Copy the blocks the old file has into the destination.
+	 *
+	 * @param channel destination file, preallocated to the full size
+	 * @return byte ranges of the destination now filled, in file order with neighbours merged
+	 * @throws IOException if the old file cannot be read or the destination written
+	 */
+	public List<Segment> copyTo(final FileChannel channel) throws IOException {
+		final List<Segment> copied = new ArrayList<Segment>();
+		final ByteBuffer buffer = BufferPool.getInstance().acquire(false);
+		try (final RandomAccessFile raf = new RandomAccessFile(mySource, "r");
+				final FileChannel source = raf.getChannel();) {
+			long rangeStart = -1;
+			long rangeEnd = -1;
+			for (int block = 0; block < mySourceOffsets.length; block++) {
+				if (mySourceOffsets[block] < 0) {
+					continue;
+				}
+
+				final long start = myManifest.getBlockStart(block);
+				final long end = myManifest.getBlockEnd(block);
+				for (long done = 0; done < end - start + 1;) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - start + 1 - done));
+					while (buffer.hasRemaining()) {
+						if (source.read(buffer, mySourceOffsets[block] + done + buffer.position()) < 0) {
+							throw new IOException(mySource + " changed while it was being used");
+						}
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, start + done + buffer.position());
+					}
+					done += buffer.limit();
+				}
+
+				if (start == rangeEnd + 1 && rangeStart >= 0) {
+					rangeEnd = end;
+				} else {
+					if (rangeStart >= 0) {
+						copied.add(new Segment(rangeStart, rangeEnd));
+					}
+					rangeStart = start;
+					rangeEnd = end;
+				}
+			}
+			if (rangeStart >= 0) {
+				copied.add(new Segment(rangeStart, rangeEnd));
+			}
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+		return copied;
+	}
+
+	/**
+	 * Slide a block-sized window over the old file and note where each full-size block turns up.
+	 *
+	 * @param source old file
+	 * @param manifest manifest of the new file
+	 * @param strong hash of the manifest's algorithm
+	 * @param offsets offset of each block in the old file, filled in as blocks are found
+	 * @throws IOException if the old file cannot be read
+	 */
+	private static void roll(final File source, final BlockManifest manifest, final ContentHash strong,
+			final long[] offsets) throws IOException {
+		final int blockSize = (int) manifest.getBlockSize();
+
+		// the short last block has another window size and is left to the in-place comparison
+		final Map<Integer, List<Integer>> blocksByWeak = new HashMap<Integer, List<Integer>>();
+		final long[] filter = new long[(1 << FILTER_BITS) / Long.SIZE];
+		int wanted = 0;
+		for (int block = 0; block < manifest.getBlockCount(); block++) {
+			if (manifest.getBlockEnd(block) - manifest.getBlockStart(block) + 1 < blockSize) {
+				continue;
+			}
+			final Integer weak = Integer.valueOf(manifest.getWeakHash(block));
+			List<Integer> blocks = blocksByWeak.get(weak);
+			if (null == blocks) {
+				blocks = new ArrayList<Integer>(1);
+				blocksByWeak.put(weak, blocks);
+			}
+			blocks.add(Integer.valueOf(block));
+			final int bit = filterBit(weak.intValue());
+			filter[bit >>> 6] |= 1L << bit;
+			wanted++;
+		}
+
+		final RollingChecksum weak = new RollingChecksum(blockSize);
+		final byte[] buffer = new byte[blockSize + Math.max(blockSize, BufferPool.getInstance().getBufferSize())];
+		try (final InputStream input = new FileInputStream(source)) {
+			int filled = readFully(input, buffer, 0, buffer.length);
+			if (filled < blockSize) {
+				return;
+			}
+
+			int start = 0;
+			long position = 0;
+			weak.update(buffer, 0, blockSize);
+			while (wanted > 0) {
+				boolean matched = false;
+				final int value = weak.getValue();
+				final int bit = filterBit(value);
+				final List<Integer> candidates = (0 == (filter[bit >>> 6] & (1L << bit))) ? null : blocksByWeak
+						.get(Integer.valueOf(value));
+				if (null != candidates) {
+					String hash = null;
+					for (final Integer block : candidates) {
+						if (offsets[block.intValue()] >= 0) {
+							continue;
+						}
+						if (null == hash) {
+							strong.update(buffer, start, blockSize);
+							hash = strong.toHex();
+						}
+						if (hash.equals(manifest.getHash(block.intValue()))) {
+							offsets[block.intValue()] = position;
+							wanted--;
+							matched = true;
+						}
+					}
+				}
+
+				// after a match the next block most likely follows right on
+				final int advance = matched ? blockSize : 1;
+				if (start + advance + blockSize > filled) {
+					System.arraycopy(buffer, start, buffer, 0, filled - start);
+					filled -= start;
+					start = 0;
+					filled += readFully(input, buffer, filled, buffer.length - filled);
+					if (advance + blockSize > filled) {
+						return;
+					}
+				}
+
+				if (matched) {
+					start += blockSize;
+					weak.reset();
+					weak.update(buffer, start, blockSize);
+				} else {
+					weak.roll(buffer[start], buffer[start + blockSize]);
+					start++;
+				}
+				position += advance;
+			}
+		}
+	}
+
+	/**
+	 * Compare each block still missing with the bytes at its own offset in the old file.
+	 *
+	 * @param source old file
+	 * @param manifest manifest of the new file
+	 * @param strong hash of the manifest's algorithm
+	 * @param offsets offset of each block in the old file, filled in as blocks are found
+	 * @throws IOException if the old file cannot be read
+	 */
+	private static void compareInPlace(final File source, final BlockManifest manifest, final ContentHash strong,
+			final long[] offsets) throws IOException {
+		final ByteBuffer buffer = BufferPool.getInstance().acquire(false);
+		try (final RandomAccessFile raf = new RandomAccessFile(source, "r");
+				final FileChannel channel = raf.getChannel();) {
+			final long sourceSize = channel.size();
+			for (int block = 0; block < offsets.length; block++) {
+				final long start = manifest.getBlockStart(block);
+				final long end = manifest.getBlockEnd(block);
+				if (offsets[block] >= 0 || end >= sourceSize) {
+					continue;
+				}
+
+				for (long position = start; position <= end;) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position + 1));
+					final int read = channel.read(buffer, position);
+					if (read < 0) {
+						break;
+					}
+					strong.update(buffer.array(), 0, read);
+					position += read;
+				}
+				if (strong.toHex().equals(manifest.getHash(block))) {
+					offsets[block] = start;
+				}
+			}
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+
+	/**
+	 * @param input stream to read
+	 * @param buffer where to put the bytes
+	 * @param offset first byte to fill
+	 * @param length most bytes to read
+	 * @return bytes read, less than asked for only at the end of the stream
+	 * @throws IOException if the stream cannot be read
+	 */
+	private static int readFully(final InputStream input, final byte[] buffer, final int offset, final int length)
+			throws IOException {
+		int filled = 0;
+		int read;
+		while (filled < length && (read = input.read(buffer, offset + filled, length - filled)) > 0) {
+			filled += read;
+		}
+		return filled;
+	}
+
+	/**
+	 * @param weak weak checksum
+	 * @return bit of the filter the checksum sets
+	 */
+	private static int filterBit(final int weak) {
+		return (weak ^ (weak >>> FILTER_BITS)) & ((1 << FILTER_BITS) - 1);
+	}
+}
@@ -0,0 +1,364 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.Charset;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * On-disk cache of finished downloads, keyed by URL and revalidated against the server's ETag and Last-Modified.
+ *
+ * Each entry is a data file named after the SHA-1 of its URL and a <code>.properties</code> file holding the URL,
+ * size and validators. {@link ParallelDownloader} sends the validators of a cached entry with its probe of the remote
+ * file; a <code>304 Not Modified</code> or an unchanged ETag and size serves the entry instead of downloading again.
+ * Entries are copied into place, or hardlinked where the file system allows it when
+ * <code>paralleldownloader.cache.link</code> is <code>true</code>. A link shares its bytes with the cache, so editing
+ * the destination in place would corrupt the entry; downloads replace an existing destination instead of writing into
+ * it, but other programs do not, so linking is only for destinations nobody modifies.
+ *
+ * The cache is kept under its size cap by dropping the least recently used entries; the modification time of an
+ * entry's properties file is its last use. Files are created under temporary names and renamed into place, so
+ * several processes can share one cache directory.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadCache {
+
+	/** Size cap used when none is given, in bytes. */
+	public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+
+	/** Extension of an entry's properties file. */
+	private static final String META_EXTENSION = ".properties";
+
+	/** Extension of files still being written. */
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	/** Encoding of URLs hashed into names. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Directory holding the entries. */
+	private final File myDirectory;
+
+	/** Most bytes of data kept. */
+	private final long myMaxSize;
+
+	/** True to hardlink entries into place where possible. */
+	private final boolean myLink;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory directory holding the entries, created if missing
+	 * @param maxSize most bytes of data kept
+	 */
+	public DownloadCache(final File directory, final long maxSize) {
+		myDirectory = directory;
+		myMaxSize = maxSize;
+		myLink = Boolean.getBoolean("paralleldownloader.cache.link");
+	}
+
+	/**
+	 * @return directory holding the entries
+	 */
+	public File getDirectory() {
+		return myDirectory;
+	}
+
+	/**
+	 * @return most bytes of data kept
+	 */
+	public long getMaxSize() {
+		return myMaxSize;
+	}
+
+	/**
+	 * @param url remote file
+	 * @return the cached copy of the file, or null if there is none
+	 */
+	public synchronized Entry lookup(final String url) {
+		final String name = nameOf(url);
+		final File meta = new File(myDirectory, name + META_EXTENSION);
+		final File data = new File(myDirectory, name);
+		if (!meta.isFile() || !data.isFile()) {
+			return null;
+		}
+
+		final Properties properties = new Properties();
+		try (final InputStream input = new FileInputStream(meta)) {
+			properties.load(input);
+		} catch (final IOException ex) {
+			System.err.println("Ignoring unreadable cache entry " + meta + ":  " + ex.getMessage());
+			return null;
+		}
+
+		// a different URL hashing to the same name, or an entry cut short, is no use
+		final Entry entry;
+		try {
+			entry = new Entry(url, Long.parseLong(properties.getProperty("size", "-1")), properties
+					.getProperty("etag"), properties.getProperty("modified"), data, meta);
+		} catch (final NumberFormatException ex) {
+			return null;
+		}
+		if (!url.equals(properties.getProperty("url")) || data.length() != entry.getSize()) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Put a cached file in place of the destination and mark the entry as just used.
+	 *
+	 * @param entry entry found by {@link #lookup(String)}
+	 * @param destination file to create or replace
+	 * @throws IOException if the entry can be neither linked nor copied
+	 */
+	public synchronized void retrieve(final Entry entry, final File destination) throws IOException {
+		final Path target = destination.toPath();
+		Files.deleteIfExists(target);
+		if (!link(entry.myData.toPath(), target)) {
+			final Path temp = new File(destination.getPath() + TEMP_EXTENSION).toPath();
+			Files.copy(entry.myData.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (!entry.myMeta.setLastModified(System.currentTimeMillis())) {
+			System.err.println("Cannot mark cache entry " + entry.myMeta + " as used");
+		}
+	}
+
+	/**
+	 * Add a finished download to the cache, replacing any older entry of the same URL, and drop the least recently
+	 * used entries if the cache is now over its cap. Files without a validator or larger than the cap are not kept.
+	 *
+	 * @param url remote file
+	 * @param eTag ETag validator, or null
+	 * @param lastModified Last-Modified validator, or null
+	 * @param file the downloaded file
+	 * @throws IOException if the entry cannot be written
+	 */
+	public synchronized void store(final String url, final String eTag, final String lastModified, final File file)
+			throws IOException {
+		final long size = file.length();
+		if ((null == eTag && null == lastModified) || size > myMaxSize) {
+			return;
+		}
+		if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+			throw new IOException("Unable to create cache directory " + myDirectory);
+		}
+
+		final String name = nameOf(url);
+		final Path data = new File(myDirectory, name).toPath();
+		final Path tempData = new File(myDirectory, name + TEMP_EXTENSION).toPath();
+		Files.deleteIfExists(tempData);
+		if (!link(file.toPath(), tempData)) {
+			Files.copy(file.toPath(), tempData);
+		}
+
+		final Properties properties = new Properties();
+		properties.setProperty("url", url);
+		properties.setProperty("size", Long.toString(size));
+		if (null != eTag) {
+			properties.setProperty("etag", eTag);
+		}
+		if (null != lastModified) {
+			properties.setProperty("modified", lastModified);
+		}
+		final File tempMeta = new File(myDirectory, name + META_EXTENSION + TEMP_EXTENSION);
+		try (final OutputStream output = new FileOutputStream(tempMeta)) {
+			properties.store(output, "ParallelDownloader cache entry");
+		}
+
+		// the old properties go first so a reader never pairs them with the new data
+		final Path meta = new File(myDirectory, name + META_EXTENSION).toPath();
+		Files.deleteIfExists(meta);
+		Files.move(tempData, data, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tempMeta.toPath(), meta, StandardCopyOption.REPLACE_EXISTING);
+
+		evict();
+	}
+
+	/**
+	 * Drop the least recently used entries until the cache fits its cap.
+	 */
+	public synchronized void evict() {
+		final File[] metas = myDirectory.listFiles();
+		if (null == metas) {
+			return;
+		}
+
+		final List<File> entries = new ArrayList<File>();
+		long total = 0;
+		for (final File meta : metas) {
+			if (meta.getName().endsWith(META_EXTENSION)) {
+				entries.add(meta);
+				total += dataOf(meta).length();
+			}
+		}
+		if (total <= myMaxSize) {
+			return;
+		}
+
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(final File left, final File right) {
+				return Long.compare(left.lastModified(), right.lastModified());
+			}
+		});
+		for (final File meta : entries) {
+			if (total <= myMaxSize) {
+				break;
+			}
+			final File data = dataOf(meta);
+			final long size = data.length();
+			final boolean deleted = meta.delete();
+			if (data.delete() || deleted) {
+				total -= size;
+			}
+		}
+	}
+
+	/**
+	 * @param source existing file
+	 * @param target name to give it as well
+	 * @return true if the link was made, false if the file has to be copied instead
+	 * @throws IOException if the source is unreadable
+	 */
+	private boolean link(final Path source, final Path target) throws IOException {
+		if (!myLink) {
+			return false;
+		}
+		try {
+			Files.createLink(target, source);
+			return true;
+		} catch (final FileSystemException ex) {
+			// another file system, or no hardlinks at all
+			return false;
+		} catch (final UnsupportedOperationException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param meta properties file of an entry
+	 * @return data file of the entry
+	 */
+	private static File dataOf(final File meta) {
+		final String name = meta.getName();
+		return new File(meta.getParentFile(), name.substring(0, name.length() - META_EXTENSION.length()));
+	}
+
+	/**
+	 * @param url remote file
+	 * @return name of the entry's data file
+	 */
+	private static String nameOf(final String url) {
+		try {
+			return ContentHash.toHex(MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF8)));
+		} catch (final NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-1 is always available", ex);
+		}
+	}
+
+	/**
+	 * A cached copy of one remote file.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public static final class Entry {
+
+		/** Remote file. */
+		private final String myURL;
+
+		/** Size of the file. */
+		private final long mySize;
+
+		/** ETag validator, or null. */
+		private final String myETag;
+
+		/** Last-Modified validator, or null. */
+		private final String myLastModified;
+
+		/** Data file. */
+		private final File myData;
+
+		/** Properties file. */
+		private final File myMeta;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param url remote file
+		 * @param size size of the file
+		 * @param eTag ETag validator, or null
+		 * @param lastModified Last-Modified validator, or null
+		 * @param data data file
+		 * @param meta properties file
+		 */
+		private Entry(final String url, final long size, final String eTag, final String lastModified,
+				final File data, final File meta) {
+			myURL = url;
+			mySize = size;
+			myETag = eTag;
+			myLastModified = lastModified;
+			myData = data;
+			myMeta = meta;
+		}
+
+		/**
+		 * @return remote file
+		 */
+		public String getURL() {
+			return myURL;
+		}
+
+		/**
+		 * @return size of the file
+		 */
+		public long getSize() {
+			return mySize;
+		}
+
+		/**
+		 * @return ETag validator, or null
+		 */
+		public String getETag() {
+			return myETag;
+		}
+
+		/**
+		 * @return Last-Modified validator, or null
+		 */
+		public String getLastModified() {
+			return myLastModified;
+		}
+
+		/**
+		 * A strong ETag names one exact representation, so an unchanged ETag and size mean unchanged content.
+		 *
+		 * @param eTag ETag the server sent now, or null
+		 * @param size size the server reported now
+		 * @return true if the cached copy is the current file
+		 */
+		public boolean matches(final String eTag, final long size) {
+			return null != myETag && myETag.equals(eTag) && !myETag.startsWith("W/") && mySize == size;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.marcschweikert;
+
+import java.io.File;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Embeddable entry point for running downloads without any GUI.
+ *
+ * <pre>
+ * final DownloadEngine engine = new DownloadEngine();
+ * final Future&lt;File&gt; handle = engine.start(new DownloadRequest.Builder(url, "/tmp").connections(8).build());
+ * final File file = handle.get();
+ * </pre>
+ *
+ * Nothing here touches AWT or Swing, so the engine starts quickly in headless JVMs. Downloads are supervised on
+ * virtual threads where the runtime has them; see {@link WorkerThreads}.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadEngine {
+
+	/** Runs each download's supervisor. */
+	private final ExecutorService myExecutor;
+
+	/**
+	 * Constructor.
+	 */
+	public DownloadEngine() {
+		myExecutor = Executors.newCachedThreadPool(WorkerThreads.getInstance().newThreadFactory("DownloadEngine-"));
+	}
+
+	/**
+	 * Start a download in the background.
+	 *
+	 * @param request what to download
+	 * @return handle to wait for the downloaded file or cancel the download
+	 */
+	public Future<File> start(final DownloadRequest request) {
+		return myExecutor.submit(new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				return ParallelDownloader.download(request);
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting downloads. Downloads already started run to completion.
+	 */
+	public void shutdown() {
+		myExecutor.shutdown();
+	}
+}
@@ -0,0 +1,273 @@
+package com.marcschweikert;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sidecar file recording which byte ranges of a download have safely reached the disk, so an interrupted download
+ * can be resumed by requesting only the missing ranges.
+ *
+ * The journal is a small text file: a header identifying the remote file (URL, size, ETag and Last-Modified) followed
+ * by one <code>done start end</code> line per finished range. Ranges are only appended after the data file has been
+ * forced to disk, and only in batches, so the fsync cost is paid once per checkpoint rather than once per segment.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadJournal implements Closeable {
+
+	/** First line of every journal. */
+	private static final String MAGIC = "ParallelDownloader journal 1";
+
+	/** Placeholder for a missing validator. */
+	private static final String NONE = "-";
+
+	/** Extension appended to the destination file name. */
+	private static final String EXTENSION = ".journal";
+
+	/** Bytes that may finish between checkpoints. */
+	private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+	/** Milliseconds that may pass between checkpoints. */
+	private static final long CHECKPOINT_MILLIS = 5000;
+
+	/** Journal file encoding. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Journal file. */
+	private final File myFile;
+
+	/** Destination file data is written to. */
+	private final FileChannel myDataChannel;
+
+	/** Total size of the remote file. */
+	private final long myFileSize;
+
+	/** Ranges already recorded in the journal. */
+	private final List<Segment> myCompleted = new ArrayList<Segment>();
+
+	/** Ranges finished since the last checkpoint. */
+	private final List<Segment> myUnsynced = new ArrayList<Segment>();
+
+	/** Bytes finished since the last checkpoint. */
+	private long myUnsyncedBytes;
+
+	/** Time of the last checkpoint. */
+	private long myLastCheckpoint = System.currentTimeMillis();
+
+	/** Open journal stream. */
+	private final FileOutputStream myOutput;
+
+	/**
+	 * Open the journal for a download, picking up a previous attempt if it was for the same remote content.
+	 *
+	 * @param destinationFile file the download is written to
+	 * @param dataChannel open channel of the destination file
+	 * @param url remote file
+	 * @param fileSize size of the remote file
+	 * @param eTag ETag validator, or null if the server sent none
+	 * @param lastModified Last-Modified validator, or null if the server sent none
+	 * @throws IOException Cannot read or create the journal
+	 */
+	public DownloadJournal(final File destinationFile, final FileChannel dataChannel, final String url,
+			final long fileSize, final String eTag, final String lastModified) throws IOException {
+		myFile = fileFor(destinationFile);
+		myDataChannel = dataChannel;
+		myFileSize = fileSize;
+
+		final String[] header = { MAGIC, "url " + url, "size " + fileSize, "etag " + valueOf(eTag),
+				"modified " + valueOf(lastModified) };
+
+		// without a validator there is no way to know the remote file is unchanged
+		final boolean canResume = (null != eTag || null != lastModified) && myFile.isFile()
+				&& destinationFile.length() == fileSize;
+		if (canResume) {
+			load(header);
+		}
+
+		myOutput = new FileOutputStream(myFile, canResume && !myCompleted.isEmpty());
+		if (myCompleted.isEmpty()) {
+			final StringBuilder builder = new StringBuilder();
+			for (final String line : header) {
+				builder.append(line).append('\n');
+			}
+			append(builder.toString());
+		}
+	}
+
+	/**
+	 * @param destinationFile file a download is written to
+	 * @return the journal of that download, which need not exist
+	 */
+	public static File fileFor(final File destinationFile) {
+		return new File(destinationFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * @return number of bytes already on disk from a previous attempt
+	 */
+	public synchronized long getCompletedBytes() {
+		long total = 0;
+		for (final Segment range : myCompleted) {
+			total += range.getEnd() - range.getStart() + 1;
+		}
+		return total;
+	}
+
+	/**
+	 * @return ranges recorded as on disk by a previous attempt
+	 */
+	public synchronized List<Segment> getCompletedRanges() {
+		return new ArrayList<Segment>(myCompleted);
+	}
+
+	/**
+	 * @return ranges that still have to be downloaded, in file order
+	 */
+	public synchronized List<Segment> getMissingRanges() {
+		final List<Segment> missing = new ArrayList<Segment>();
+
+		long next = 0;
+		for (final Segment range : myCompleted) {
+			if (range.getStart() > next) {
+				missing.add(new Segment(next, range.getStart() - 1));
+			}
+			next = Math.max(next, range.getEnd() + 1);
+		}
+		if (next < myFileSize) {
+			missing.add(new Segment(next, myFileSize - 1));
+		}
+
+		return missing;
+	}
+
+	/**
+	 * Record a finished range. It is written to the journal at the next checkpoint.
+	 *
+	 * @param start first byte of the range
+	 * @param end last byte of the range (inclusive)
+	 * @throws IOException Cannot sync the data or write the journal
+	 */
+	public synchronized void complete(final long start, final long end) throws IOException {
+		myUnsynced.add(new Segment(start, end));
+		myUnsyncedBytes += end - start + 1;
+
+		if (myUnsyncedBytes >= CHECKPOINT_BYTES || System.currentTimeMillis() - myLastCheckpoint >= CHECKPOINT_MILLIS) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Force the finished data to disk and then record it in the journal.
+	 *
+	 * @throws IOException Cannot sync the data or write the journal
+	 */
+	public synchronized void checkpoint() throws IOException {
+		myLastCheckpoint = System.currentTimeMillis();
+		if (myUnsynced.isEmpty()) {
+			return;
+		}
+
+		// the data has to be durable before the journal claims it is
+		myDataChannel.force(false);
+		EngineMetrics.getInstance().bytesSynced(myUnsyncedBytes);
+
+		final StringBuilder builder = new StringBuilder();
+		for (final Segment range : myUnsynced) {
+			builder.append("done ").append(range.getStart()).append(' ').append(range.getEnd()).append('\n');
+		}
+		append(builder.toString());
+
+		myCompleted.addAll(myUnsynced);
+		myUnsynced.clear();
+		myUnsyncedBytes = 0;
+	}
+
+	/**
+	 * Remove the journal once the download is complete.
+	 *
+	 * @throws IOException Cannot delete the journal
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		if (myFile.exists() && !myFile.delete()) {
+			throw new IOException("Unable to delete journal " + myFile);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		myOutput.close();
+	}
+
+	/**
+	 * Read a previous journal, ignoring it if it describes different remote content.
+	 *
+	 * @param header header the journal must start with
+	 * @throws IOException Cannot read the journal
+	 */
+	private void load(final String[] header) throws IOException {
+		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(myFile),
+				UTF8));) {
+			for (final String expected : header) {
+				if (!expected.equals(reader.readLine())) {
+					return;
+				}
+			}
+
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split(" ");
+
+				// a torn last line from a crash is simply dropped
+				if (fields.length == 3 && "done".equals(fields[0])) {
+					try {
+						myCompleted.add(new Segment(Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+					} catch (final NumberFormatException ex) {
+						break;
+					}
+				}
+			}
+		}
+
+		Collections.sort(myCompleted, new Comparator<Segment>() {
+			@Override
+			public int compare(final Segment first, final Segment second) {
+				return Long.compare(first.getStart(), second.getStart());
+			}
+		});
+	}
+
+	/**
+	 * Append text to the journal and sync it.
+	 *
+	 * @param text text to append
+	 * @throws IOException Cannot write the journal
+	 */
+	private void append(final String text) throws IOException {
+		myOutput.write(text.getBytes(UTF8));
+		myOutput.flush();
+		myOutput.getFD().sync();
+	}
+
+	/**
+	 * @param validator validator header value
+	 * @return value to store in the journal header
+	 */
+	private static String valueOf(final String validator) {
+		return (null == validator) ? NONE : validator.replace('\n', ' ');
+	}
+}
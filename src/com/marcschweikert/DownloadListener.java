@@ -0,0 +1,67 @@
+package com.marcschweikert;
+
+import java.io.File;
+
+/**
+ * Receives notifications about a download. The Swing {@link ProgressPanel} is one implementation; headless callers
+ * can supply their own or use {@link #NONE}.
+ *
+ * Callbacks arrive on the engine's threads, so implementations that touch a GUI must hand the work over to their own
+ * UI thread.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public interface DownloadListener {
+
+	/** Listener that ignores every notification. */
+	DownloadListener NONE = new DownloadListener() {
+		@Override
+		public void downloadStarted(final String url, final File destination, final long fileSize) {
+		}
+
+		@Override
+		public void progressUpdated(final ProgressSnapshot snapshot) {
+		}
+
+		@Override
+		public void downloadCompleted(final File destination, final long fileSize) {
+		}
+
+		@Override
+		public void downloadFailed(final String url, final Exception cause) {
+		}
+	};
+
+	/**
+	 * The remote size is known and the transfer is about to begin.
+	 *
+	 * @param url remote file
+	 * @param destination local file being written
+	 * @param fileSize size of the remote file in bytes
+	 */
+	void downloadStarted(String url, File destination, long fileSize);
+
+	/**
+	 * The download has advanced. Called from the {@link ProgressSampler} tick, at most about 60 times a second.
+	 *
+	 * @param snapshot progress of the whole file and of each equal-sized region, one per progress bar
+	 */
+	void progressUpdated(ProgressSnapshot snapshot);
+
+	/**
+	 * Every byte is on disk.
+	 *
+	 * @param destination local file written
+	 * @param fileSize size of the file in bytes
+	 */
+	void downloadCompleted(File destination, long fileSize);
+
+	/**
+	 * The download stopped with an error.
+	 *
+	 * @param url remote file
+	 * @param cause reason for the failure
+	 */
+	void downloadFailed(String url, Exception cause);
+}
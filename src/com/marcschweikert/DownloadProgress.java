@@ -0,0 +1,154 @@
+package com.marcschweikert;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks how much of each region of a file has been written.
+ *
+ * Connection workers no longer own a fixed range, so progress is reported per equal-sized region of the file - one
+ * per progress bar - no matter which worker wrote the bytes.
+ *
+ * Recording a write is a plain atomic add on the I/O path; nobody is notified. The {@link ProgressSampler} reads the
+ * counters on a fixed tick and publishes a {@link ProgressSnapshot} instead. Each region's counter sits on its own
+ * cache line so connections writing different regions never contend.
+ *
+ * Bytes are only written out a pooled buffer at a time, so a separate counter of the bytes received from the network,
+ * bumped on every read, shows that a download slower than a buffer per check is still moving.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadProgress {
+
+	/** Longs between two counters - 128 bytes keeps them on separate cache lines. */
+	private static final int STRIDE = 16;
+
+	/** Total number of bytes in the file. */
+	private final long myFileSize;
+
+	/** Size of every region except possibly the last. */
+	private final long myRegionSize;
+
+	/** Number of regions. */
+	private final int myNumRegions;
+
+	/** Bytes written into each region, one counter every {@link #STRIDE} slots. */
+	private final AtomicLongArray myWritten;
+
+	/** Bytes read from the network, written or not. */
+	private final AtomicLong myReceived = new AtomicLong();
+
+	/** Time tracking started. */
+	private final long myStartNanos = System.nanoTime();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fileSize total number of bytes in the file
+	 * @param numRegions number of regions (progress bars) to report
+	 */
+	public DownloadProgress(final long fileSize, final int numRegions) {
+		myFileSize = fileSize;
+		myRegionSize = Math.max(1, fileSize / numRegions);
+		myNumRegions = numRegions;
+		myWritten = new AtomicLongArray(numRegions * STRIDE);
+	}
+
+	/**
+	 * Record bytes written to the file.
+	 *
+	 * @param position file offset of the first byte written
+	 * @param length number of bytes written
+	 */
+	public void add(final long position, final long length) {
+		update(position, length, 1);
+	}
+
+	/**
+	 * Record bytes read from the network, before they reach the file.
+	 *
+	 * @param length number of bytes read
+	 */
+	public void received(final long length) {
+		myReceived.addAndGet(length);
+	}
+
+	/**
+	 * @return bytes read from the network so far, including ones not yet written
+	 */
+	public long getTotalReceived() {
+		return myReceived.get();
+	}
+
+	/**
+	 * Take back bytes that turned out to be bad and will be downloaded again.
+	 *
+	 * @param position offset in the file of the first byte
+	 * @param length number of bytes
+	 */
+	public void remove(final long position, final long length) {
+		update(position, length, -1);
+	}
+
+	/**
+	 * @param position offset in the file of the first byte
+	 * @param length number of bytes
+	 * @param sign 1 to add the bytes, -1 to take them back
+	 */
+	private void update(final long position, final long length, final int sign) {
+		long offset = position;
+		long left = length;
+
+		// a write may straddle a region boundary
+		while (left > 0) {
+			final int region = regionOf(offset);
+			final long inRegion = Math.min(left, regionStart(region + 1) - offset);
+
+			myWritten.addAndGet(region * STRIDE, sign * inRegion);
+
+			offset += inRegion;
+			left -= inRegion;
+		}
+	}
+
+	/**
+	 * @return bytes written into the whole file so far
+	 */
+	public long getTotalWritten() {
+		long total = 0;
+		for (int region = 0; region < myNumRegions; region++) {
+			total += myWritten.get(region * STRIDE);
+		}
+		return total;
+	}
+
+	/**
+	 * @return consistent-enough copy of the counters for listeners
+	 */
+	public ProgressSnapshot snapshot() {
+		final long[] written = new long[myNumRegions];
+		final long[] sizes = new long[myNumRegions];
+		for (int region = 0; region < myNumRegions; region++) {
+			written[region] = myWritten.get(region * STRIDE);
+			sizes[region] = regionStart(region + 1) - regionStart(region);
+		}
+		return new ProgressSnapshot(myFileSize, written, sizes, System.nanoTime() - myStartNanos);
+	}
+
+	/**
+	 * @param position file offset
+	 * @return index of the region holding the offset
+	 */
+	private int regionOf(final long position) {
+		return (int) Math.min(position / myRegionSize, myNumRegions - 1);
+	}
+
+	/**
+	 * @param region region index, or the number of regions for the end of the file
+	 * @return first file offset of the region
+	 */
+	private long regionStart(final int region) {
+		return (region >= myNumRegions) ? myFileSize : Math.min(myFileSize, region * myRegionSize);
+	}
+}
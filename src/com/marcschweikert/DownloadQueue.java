@@ -0,0 +1,148 @@
+package com.marcschweikert;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a batch of downloads, several at a time, under one shared {@link ConnectionBudget}.
+ *
+ * The aim is throughput across the whole batch rather than the speed of any one file: files smaller than
+ * <code>paralleldownloader.smallFileBytes</code> (8 MB by default) get a single connection, so the budget goes to the
+ * large files that benefit from many.
+ *
+ * <pre>
+ * final DownloadQueue queue = new DownloadQueue(4, new ConnectionBudget(32, 8));
+ * for (final DownloadRequest.Builder builder : DownloadQueue.readList(new File("files.txt"), "/tmp")) {
+ *     queue.add(builder.connections(8).build());
+ * }
+ * queue.shutdown();
+ * queue.awaitTermination();
+ * </pre>
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadQueue {
+
+	/** Default size below which a file is fetched over a single connection. */
+	private static final long DEFAULT_SMALL_FILE_BYTES = 8L * 1024 * 1024;
+
+	/** Size below which a file is fetched over a single connection. */
+	private static final long SMALL_FILE_BYTES = Long.getLong("paralleldownloader.smallFileBytes",
+			DEFAULT_SMALL_FILE_BYTES).longValue();
+
+	/** Budget every download in the queue draws its connections from. */
+	private final ConnectionBudget myBudget;
+
+	/** Runs the supervisor of each download, a few at a time. */
+	private final ExecutorService myExecutor;
+
+	/**
+	 * Constructor. Raises the shared HTTP connection pool limits to match the budget.
+	 *
+	 * @param parallelDownloads most downloads running at once
+	 * @param budget budget every download draws its connections from
+	 */
+	public DownloadQueue(final int parallelDownloads, final ConnectionBudget budget) {
+		myBudget = budget;
+		myExecutor = Executors.newFixedThreadPool(parallelDownloads, WorkerThreads.getInstance().newThreadFactory(
+				"DownloadQueue-"));
+
+		// the pool must not be the tighter limit or workers would wait inside it while holding a permit
+		if (budget.getMaxTotal() < Integer.MAX_VALUE) {
+			ConnectionPool.getInstance().setMaxTotal(budget.getMaxTotal());
+		}
+		if (budget.getMaxPerHost() < Integer.MAX_VALUE) {
+			ConnectionPool.getInstance().setMaxPerRoute(budget.getMaxPerHost());
+		}
+	}
+
+	/**
+	 * Read a list file: one URL per line, optionally followed by whitespace and a destination. Blank lines and lines
+	 * starting with <code>#</code> are skipped.
+	 *
+	 * @param listFile file to read
+	 * @param destination file or directory used for lines that don't name their own destination
+	 * @return one builder per URL, for the caller to finish configuring
+	 * @throws IOException if the list cannot be read
+	 */
+	public static List<DownloadRequest.Builder> readList(final File listFile, final String destination)
+			throws IOException {
+		final List<DownloadRequest.Builder> builders = new ArrayList<DownloadRequest.Builder>();
+		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile),
+				StandardCharsets.UTF_8))) {
+			String line;
+			while (null != (line = reader.readLine())) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				final String[] fields = line.split("\\s+", 2);
+				builders.add(new DownloadRequest.Builder(fields[0], (fields.length > 1) ? fields[1] : destination));
+			}
+		}
+		return builders;
+	}
+
+	/**
+	 * Queue a download. It shares the queue's connection budget and, unless the request sets its own threshold, gets
+	 * a single connection when the file is small.
+	 *
+	 * @param request what to download
+	 * @return handle to wait for the downloaded file or cancel the download
+	 */
+	public Future<File> add(final DownloadRequest request) {
+		final DownloadRequest.Builder builder = new DownloadRequest.Builder(request).budget(myBudget);
+		if (0 == request.getSingleConnectionThreshold()) {
+			builder.singleConnectionThreshold(SMALL_FILE_BYTES);
+		}
+		final DownloadRequest queued = builder.build();
+
+		return myExecutor.submit(new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				return ParallelDownloader.download(queued);
+			}
+		});
+	}
+
+	/**
+	 * @return budget every download in the queue draws its connections from
+	 */
+	public ConnectionBudget getBudget() {
+		return myBudget;
+	}
+
+	/**
+	 * Stop accepting downloads. Downloads already queued still run.
+	 */
+	public void shutdown() {
+		myExecutor.shutdown();
+	}
+
+	/**
+	 * Wait until every queued download has finished, after {@link #shutdown()}.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitTermination() throws InterruptedException {
+		boolean done = false;
+		while (!done) {
+			done = myExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package com.marcschweikert;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable description of one download. Build instances with {@link Builder}.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadRequest {
+
+	/** Connections used when none are specified. */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * How the connections move data.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public enum Engine {
+		/** One worker thread per connection, reading through the pooled HttpClient. */
+		BLOCKING,
+
+		/** A few {@link NioEngine} event-loop threads multiplexing every connection; plain http only. */
+		NON_BLOCKING,
+
+		/** One worker thread per {@link Http2Engine} stream, sharing a few HTTP/2 connections; Java 11 and later. */
+		HTTP2
+	}
+
+	/** Remote file to download. */
+	private final String myURL;
+
+	/** Local file or directory to store into. */
+	private final String myDestination;
+
+	/** Number of parallel connections, or the most an adaptive download may use. */
+	private final int myConnections;
+
+	/** Whether the number of connections follows the measured throughput. */
+	private final boolean myAdaptive;
+
+	/** Number of equal-sized regions progress is reported for. */
+	private final int myProgressRegions;
+
+	/** Retry policy for failed segment requests. */
+	private final RetryPolicy myRetryPolicy;
+
+	/** Receives progress notifications. */
+	private final DownloadListener myListener;
+
+	/** Budget the connections are drawn from. */
+	private final ConnectionBudget myBudget;
+
+	/** Files smaller than this many bytes are fetched over a single connection. */
+	private final long mySingleConnectionThreshold;
+
+	/** How the connections move data. */
+	private final Engine myEngine;
+
+	/** Other URLs serving exactly the same file. */
+	private final List<String> myMirrors;
+
+	/** Algorithm of the expected whole-file digest, or null. */
+	private final String myDigestAlgorithm;
+
+	/** Expected hex whole-file digest, or null. */
+	private final String myDigest;
+
+	/** Expected hashes of the file's blocks, or null. */
+	private final BlockManifest myBlockManifest;
+
+	/** The download's own bandwidth cap, or null. */
+	private final RateLimiter myRateLimiter;
+
+	/** True to write the destination through a {@link MappedFileChannel}. */
+	private final boolean myMemoryMapped;
+
+	/** Cache of finished downloads, or null. */
+	private final DownloadCache myCache;
+
+	/** Older copy of the file to take unchanged blocks from, or null. */
+	private final File myDeltaSource;
+
+	/**
+	 * @return remote file to download
+	 */
+	public String getURL() {
+		return myURL;
+	}
+
+	/**
+	 * @return local file or directory to store into
+	 */
+	public String getDestination() {
+		return myDestination;
+	}
+
+	/**
+	 * @return number of parallel connections, or the most an adaptive download may use
+	 */
+	public int getConnections() {
+		return myConnections;
+	}
+
+	/**
+	 * @return true if the number of connections follows the measured throughput
+	 */
+	public boolean isAdaptive() {
+		return myAdaptive;
+	}
+
+	/**
+	 * @return number of equal-sized regions progress is reported for
+	 */
+	public int getProgressRegions() {
+		return myProgressRegions;
+	}
+
+	/**
+	 * @return retry policy for failed segment requests
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return myRetryPolicy;
+	}
+
+	/**
+	 * @return listener receiving progress notifications
+	 */
+	public DownloadListener getListener() {
+		return myListener;
+	}
+
+	/**
+	 * @return budget the connections are drawn from
+	 */
+	public ConnectionBudget getBudget() {
+		return myBudget;
+	}
+
+	/**
+	 * @return files smaller than this many bytes are fetched over a single connection
+	 */
+	public long getSingleConnectionThreshold() {
+		return mySingleConnectionThreshold;
+	}
+
+	/**
+	 * @return how the connections move data
+	 */
+	public Engine getEngine() {
+		return myEngine;
+	}
+
+	/**
+	 * @return other URLs serving exactly the same file
+	 */
+	public List<String> getMirrors() {
+		return myMirrors;
+	}
+
+	/**
+	 * @return algorithm of the expected whole-file digest, or null
+	 */
+	public String getDigestAlgorithm() {
+		return myDigestAlgorithm;
+	}
+
+	/**
+	 * @return expected hex whole-file digest, or null to use one the server sends
+	 */
+	public String getDigest() {
+		return myDigest;
+	}
+
+	/**
+	 * @return expected hashes of the file's blocks, or null
+	 */
+	public BlockManifest getBlockManifest() {
+		return myBlockManifest;
+	}
+
+	/**
+	 * @return the download's own bandwidth cap, or null
+	 */
+	public RateLimiter getRateLimiter() {
+		return myRateLimiter;
+	}
+
+	/**
+	 * @return true to write the destination through a {@link MappedFileChannel}
+	 */
+	public boolean isMemoryMapped() {
+		return myMemoryMapped;
+	}
+
+	/**
+	 * @return cache to serve the file from and keep it in, or null
+	 */
+	public DownloadCache getCache() {
+		return myCache;
+	}
+
+	/**
+	 * @return older copy of the file to take unchanged blocks from, or null
+	 */
+	public File getDeltaSource() {
+		return myDeltaSource;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param builder builder holding the settings
+	 */
+	private DownloadRequest(final Builder builder) {
+		myURL = builder.myURL;
+		myDestination = builder.myDestination;
+		myConnections = builder.myConnections;
+		myAdaptive = builder.myAdaptive;
+		myProgressRegions = (builder.myProgressRegions > 0) ? builder.myProgressRegions : builder.myConnections;
+		myRetryPolicy = builder.myRetryPolicy;
+		myListener = builder.myListener;
+		myBudget = builder.myBudget;
+		mySingleConnectionThreshold = builder.mySingleConnectionThreshold;
+		myEngine = builder.myEngine;
+		myMirrors = Collections.unmodifiableList(new ArrayList<String>(builder.myMirrors));
+		myDigestAlgorithm = builder.myDigestAlgorithm;
+		myDigest = builder.myDigest;
+		myBlockManifest = builder.myBlockManifest;
+		myRateLimiter = builder.myRateLimiter;
+		myMemoryMapped = builder.myMemoryMapped;
+		myCache = builder.myCache;
+		myDeltaSource = builder.myDeltaSource;
+	}
+
+	/**
+	 * Builder for {@link DownloadRequest}.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public static final class Builder {
+
+		/** Remote file to download. */
+		private final String myURL;
+
+		/** Local file or directory to store into. */
+		private final String myDestination;
+
+		/** Number of parallel connections. */
+		private int myConnections = DEFAULT_CONNECTIONS;
+
+		/** Whether the number of connections follows the measured throughput. */
+		private boolean myAdaptive;
+
+		/** Number of progress regions, or 0 for one per connection. */
+		private int myProgressRegions;
+
+		/** Retry policy. */
+		private RetryPolicy myRetryPolicy = RetryPolicy.DEFAULT;
+
+		/** Progress listener. */
+		private DownloadListener myListener = DownloadListener.NONE;
+
+		/** Connection budget. */
+		private ConnectionBudget myBudget = ConnectionBudget.UNLIMITED;
+
+		/** Size below which a single connection is used. */
+		private long mySingleConnectionThreshold;
+
+		/** I/O engine. */
+		private Engine myEngine = Engine.BLOCKING;
+
+		/** Mirror URLs. */
+		private final List<String> myMirrors = new ArrayList<String>();
+
+		/** Whole-file digest algorithm. */
+		private String myDigestAlgorithm;
+
+		/** Whole-file digest. */
+		private String myDigest;
+
+		/** Block hashes. */
+		private BlockManifest myBlockManifest;
+
+		/** The download's own bandwidth cap. */
+		private RateLimiter myRateLimiter;
+
+		/** Write through memory mappings. */
+		private boolean myMemoryMapped;
+
+		/** Cache of finished downloads. */
+		private DownloadCache myCache;
+
+		/** Older copy of the file. */
+		private File myDeltaSource;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param url remote file to download
+		 * @param destination local file or directory to store into
+		 */
+		public Builder(final String url, final String destination) {
+			myURL = url;
+			myDestination = destination;
+		}
+
+		/**
+		 * Constructor starting from the settings of an existing request.
+		 *
+		 * @param request request to copy
+		 */
+		public Builder(final DownloadRequest request) {
+			myURL = request.myURL;
+			myDestination = request.myDestination;
+			myConnections = request.myConnections;
+			myAdaptive = request.myAdaptive;
+			myProgressRegions = request.myProgressRegions;
+			myRetryPolicy = request.myRetryPolicy;
+			myListener = request.myListener;
+			myBudget = request.myBudget;
+			mySingleConnectionThreshold = request.mySingleConnectionThreshold;
+			myEngine = request.myEngine;
+			myMirrors.addAll(request.myMirrors);
+			myDigestAlgorithm = request.myDigestAlgorithm;
+			myDigest = request.myDigest;
+			myBlockManifest = request.myBlockManifest;
+			myRateLimiter = request.myRateLimiter;
+			myMemoryMapped = request.myMemoryMapped;
+			myCache = request.myCache;
+			myDeltaSource = request.myDeltaSource;
+		}
+
+		/**
+		 * @param connections number of parallel connections, or the most an adaptive download may use
+		 * @return this builder
+		 */
+		public Builder connections(final int connections) {
+			if (connections < 1) {
+				throw new IllegalArgumentException("At least one connection is required:  " + connections);
+			}
+			myConnections = connections;
+			return this;
+		}
+
+		/**
+		 * @param adaptive true to let the number of connections follow the measured throughput
+		 * @return this builder
+		 */
+		public Builder adaptive(final boolean adaptive) {
+			myAdaptive = adaptive;
+			return this;
+		}
+
+		/**
+		 * @param progressRegions number of equal-sized regions progress is reported for
+		 * @return this builder
+		 */
+		public Builder progressRegions(final int progressRegions) {
+			myProgressRegions = progressRegions;
+			return this;
+		}
+
+		/**
+		 * @param retryPolicy retry policy for failed segment requests
+		 * @return this builder
+		 */
+		public Builder retryPolicy(final RetryPolicy retryPolicy) {
+			myRetryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * @param listener listener receiving progress notifications
+		 * @return this builder
+		 */
+		public Builder listener(final DownloadListener listener) {
+			myListener = listener;
+			return this;
+		}
+
+		/**
+		 * @param budget budget shared with other downloads that the connections are drawn from
+		 * @return this builder
+		 */
+		public Builder budget(final ConnectionBudget budget) {
+			myBudget = budget;
+			return this;
+		}
+
+		/**
+		 * @param threshold files smaller than this many bytes are fetched over a single connection
+		 * @return this builder
+		 */
+		public Builder singleConnectionThreshold(final long threshold) {
+			mySingleConnectionThreshold = threshold;
+			return this;
+		}
+
+		/**
+		 * @param engine how the connections move data
+		 * @return this builder
+		 */
+		public Builder engine(final Engine engine) {
+			myEngine = engine;
+			return this;
+		}
+
+		/**
+		 * @param url another URL serving exactly the same file; segments are spread over every mirror by throughput
+		 * @return this builder
+		 */
+		public Builder mirror(final String url) {
+			myMirrors.add(url);
+			return this;
+		}
+
+		/**
+		 * @param algorithm <code>SHA-256</code>, <code>MD5</code>, <code>CRC32C</code> or another {@link ContentHash}
+		 *            algorithm
+		 * @param digest expected hex digest of the whole file
+		 * @return this builder
+		 */
+		public Builder digest(final String algorithm, final String digest) {
+			myDigestAlgorithm = algorithm;
+			myDigest = digest;
+			return this;
+		}
+
+		/**
+		 * @param manifest expected hashes of the file's blocks; a bad block is fetched again on its own
+		 * @return this builder
+		 */
+		public Builder blockManifest(final BlockManifest manifest) {
+			myBlockManifest = manifest;
+			return this;
+		}
+
+		/**
+		 * @param rateLimiter bandwidth cap of this download alone, on top of the {@link RateLimits}; keep it to change
+		 *            the rate while the download runs
+		 * @return this builder
+		 */
+		public Builder rateLimiter(final RateLimiter rateLimiter) {
+			myRateLimiter = rateLimiter;
+			return this;
+		}
+
+		/**
+		 * @param memoryMapped true to write the destination through a {@link MappedFileChannel} instead of a write
+		 *            call per buffer
+		 * @return this builder
+		 */
+		public Builder memoryMapped(final boolean memoryMapped) {
+			myMemoryMapped = memoryMapped;
+			return this;
+		}
+
+		/**
+		 * @param cache cache to serve the file from while it is current, and to keep it in once downloaded
+		 * @return this builder
+		 */
+		public Builder cache(final DownloadCache cache) {
+			myCache = cache;
+			return this;
+		}
+
+		/**
+		 * @param source older copy of the file, possibly the destination itself; the blocks of the
+		 *            {@link #blockManifest(BlockManifest)} it still has are copied instead of downloaded
+		 * @return this builder
+		 */
+		public Builder deltaSource(final File source) {
+			myDeltaSource = source;
+			return this;
+		}
+
+		/**
+		 * @return the request
+		 */
+		public DownloadRequest build() {
+			return new DownloadRequest(this);
+		}
+	}
+}
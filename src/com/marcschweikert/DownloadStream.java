@@ -0,0 +1,286 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The bytes of a download in file order, readable while the segments are still being fetched in parallel. Create one
+ * with {@link ParallelDownloader#stream(DownloadRequest)}.
+ *
+ * The destination file is the reassembly buffer: a read returns the bytes just past the last one read as soon as
+ * they are on disk, and blocks until then. The {@link SegmentScheduler} hands out no segment starting more than
+ * <code>paralleldownloader.stream.window</code> (64 MB) beyond the reader, and when it splits an in-flight segment it
+ * takes the one nearest the reader, so a slow consumer holds back the transfer instead of letting it run far ahead,
+ * and the bytes the reader waits for come first. With a {@link BlockManifest} only verified blocks are passed on.
+ *
+ * The stream ends once the download has succeeded. A failed download, including a whole-file digest mismatch, is
+ * thrown from the read that would otherwise have waited; closing the stream early abandons the download.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class DownloadStream extends InputStream implements ReadableByteChannel {
+
+	/** Default distance the transfer may run ahead of the reader, in bytes. */
+	private static final long DEFAULT_WINDOW = 64L * 1024 * 1024;
+
+	/** Distance the transfer may run ahead of the reader. */
+	private final long myWindow = Math.max(1, Long.getLong("paralleldownloader.stream.window", DEFAULT_WINDOW)
+			.longValue());
+
+	/** Bytes on disk, as start to end of merged ranges. */
+	private final TreeMap<Long, Long> myCovered = new TreeMap<Long, Long>();
+
+	/** Destination file, or null until the download has opened it. */
+	private FileChannel myChannel;
+
+	/** Size of the file, or -1 until it is known. */
+	private long mySize = -1;
+
+	/** Scheduler waiting for the reader, or null. */
+	private SegmentScheduler myScheduler;
+
+	/** Next byte to read. */
+	private volatile long myPosition;
+
+	/** True once the download has succeeded. */
+	private boolean myFinished;
+
+	/** Why the download failed, or null. */
+	private IOException myFailure;
+
+	/** True once the reader has closed the stream. */
+	private volatile boolean myClosed;
+
+	/**
+	 * Constructor.
+	 */
+	DownloadStream() {
+	}
+
+	/**
+	 * @return size of the file, or -1 until the download has started
+	 */
+	public synchronized long getSize() {
+		return mySize;
+	}
+
+	/**
+	 * @return next byte to read
+	 */
+	public long getPosition() {
+		return myPosition;
+	}
+
+	/**
+	 * @return distance the transfer may run ahead of the reader
+	 */
+	public long getWindow() {
+		return myWindow;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] single = new byte[1];
+		final int read = read(single, 0, 1);
+		return (read < 0) ? -1 : (single[0] & 0xff);
+	}
+
+	@Override
+	public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+		if (0 == length) {
+			return 0;
+		}
+		return read(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	@Override
+	public int read(final ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		final long ready = await();
+		if (ready < 0) {
+			return -1;
+		}
+
+		final int limit = dst.limit();
+		if (dst.remaining() > ready) {
+			dst.limit(dst.position() + (int) ready);
+		}
+		final int read;
+		try {
+			read = myChannel.read(dst, myPosition);
+		} finally {
+			dst.limit(limit);
+		}
+
+		if (read > 0) {
+			myPosition += read;
+			final SegmentScheduler scheduler = myScheduler;
+			if (null != scheduler) {
+				scheduler.readerMoved();
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if (null == myChannel || myClosed) {
+			return 0;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, readyAt(myPosition));
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !myClosed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		final FileChannel channel;
+		final SegmentScheduler scheduler;
+		synchronized (this) {
+			if (myClosed) {
+				return;
+			}
+			myClosed = true;
+			channel = myChannel;
+			scheduler = myScheduler;
+			notifyAll();
+		}
+
+		// nobody is left to read the rest
+		if (null != scheduler) {
+			scheduler.cancel();
+		}
+		if (null != channel) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The download has preallocated the destination.
+	 *
+	 * @param file destination file
+	 * @param size size of the file
+	 * @param scheduler scheduler to wake when the reader moves on
+	 * @throws IOException if the file cannot be opened for reading, or the stream is already closed
+	 */
+	synchronized void open(final File file, final long size, final SegmentScheduler scheduler) throws IOException {
+		if (myClosed) {
+			throw new IOException("Stream closed");
+		}
+		myChannel = new RandomAccessFile(file, "r").getChannel();
+		mySize = size;
+		myScheduler = scheduler;
+		notifyAll();
+	}
+
+	/**
+	 * A range has reached the file.
+	 *
+	 * @param start first byte
+	 * @param end last byte
+	 */
+	synchronized void completed(final long start, final long end) {
+		long mergedStart = start;
+		long mergedEnd = end;
+
+		final Map.Entry<Long, Long> before = myCovered.floorEntry(Long.valueOf(start));
+		if (null != before && before.getValue().longValue() >= start - 1) {
+			mergedStart = before.getKey().longValue();
+			mergedEnd = Math.max(mergedEnd, before.getValue().longValue());
+			myCovered.remove(before.getKey());
+		}
+
+		Map.Entry<Long, Long> after = myCovered.ceilingEntry(Long.valueOf(mergedStart));
+		while (null != after && after.getKey().longValue() <= mergedEnd + 1) {
+			mergedEnd = Math.max(mergedEnd, after.getValue().longValue());
+			myCovered.remove(after.getKey());
+			after = myCovered.ceilingEntry(Long.valueOf(mergedStart));
+		}
+
+		myCovered.put(Long.valueOf(mergedStart), Long.valueOf(mergedEnd));
+		notifyAll();
+	}
+
+	/**
+	 * The download has succeeded.
+	 */
+	synchronized void finished() {
+		myFinished = true;
+		notifyAll();
+	}
+
+	/**
+	 * The download has failed.
+	 *
+	 * @param failure why
+	 */
+	synchronized void failed(final IOException failure) {
+		myFailure = failure;
+		notifyAll();
+	}
+
+	/**
+	 * @return true once the reader has closed the stream
+	 */
+	boolean isClosed() {
+		return myClosed;
+	}
+
+	/**
+	 * Wait for bytes at the read position.
+	 *
+	 * @return number of bytes ready, or -1 at the end of the file
+	 * @throws IOException if the download failed or the stream is closed
+	 */
+	private synchronized long await() throws IOException {
+		try {
+			while (true) {
+				if (myClosed) {
+					throw new IOException("Stream closed");
+				}
+				if (null != myChannel) {
+					final long ready = readyAt(myPosition);
+					if (ready > 0) {
+						return ready;
+					}
+				}
+				if (null != myFailure) {
+					throw new IOException("Download failed:  " + myFailure.getMessage(), myFailure);
+				}
+				if (myFinished && myPosition >= mySize) {
+					return -1;
+				}
+				wait();
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bytes " + myPosition + " onwards");
+		}
+	}
+
+	/**
+	 * @param position offset in the file
+	 * @return number of bytes on disk from the offset on without a gap
+	 */
+	private long readyAt(final long position) {
+		final Map.Entry<Long, Long> range = myCovered.floorEntry(Long.valueOf(position));
+		return (null == range) ? 0 : Math.max(0, range.getValue().longValue() - position + 1);
+	}
+}
@@ -1,22 +1,20 @@
 package com.marcschweikert;
 
+import java.io.Closeable;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 
 import org.apache.http.client.methods.HttpGet;
 
-import org.apache.http.conn.ClientConnectionManager;
-
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-
-import org.apache.http.params.HttpParams;
-
 /**
  * Utility class that downloads parts of a remote file.
  * 
@@ -26,72 +24,168 @@ import org.apache.http.params.HttpParams;
 public final class Downloader {
 
 	/**
-	 * Download a piece of a file
+	 * Download a segment of a file and write it straight into the destination at its own offset.
 	 * 
-	 * @param start start byte number
-	 * @param end end byte number
+	 * The segment's tail may be stolen by another worker while this one is reading, in which case the request is
+	 * abandoned as soon as the shortened segment is full.
+	 * 
+	 * @param segment byte range to download
 	 * @param url URL of remote file
-	 * @param chunkIndex chunk number used to update progress bar
-	 * @return byte array containing file piece
-	 * @throws IOException Fail to read from stream
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @return number of bytes written to the destination
+	 * @throws IOException Fail to read from stream or the server ended the response early
 	 */
-	public static final byte[] downloadChunk(final int start, final int end, final String url, final int chunkIndex)
-			throws IOException {
-
-		final DefaultHttpClient httpClient = getThreadSafeClient();
-		final HttpGet httpGet = new HttpGet(url);
-		httpGet.addHeader("Range", "bytes=" + start + "-" + end);
-
-		// try to execute the httpGet request
-		final int totalSize = end - start + 1;
-		final byte[] returnArray = new byte[totalSize];
-		final HttpResponse httpResponse = httpClient.execute(httpGet);
-		try (final InputStream urlStream = httpResponse.getEntity().getContent();) {
+	public static final long downloadSegment(final Segment segment, final String url, final FileChannel channel,
+			final DownloadProgress progress) throws IOException {
+		return downloadSegment(segment, url, channel, progress, RateLimits.Throttle.NONE);
+	}
 
-			// the maximum transmission unit (MTU) of Ethernet v2
-			final int bufSize = 1500;
+	/**
+	 * Download a segment of a file, reading no faster than the throttle allows.
+	 * 
+	 * @param segment byte range to download
+	 * @param url URL of remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @param throttle bandwidth caps every read counts against
+	 * @return number of bytes written to the destination
+	 * @throws IOException Fail to read from stream or the server ended the response early
+	 */
+	public static final long downloadSegment(final Segment segment, final String url, final FileChannel channel,
+			final DownloadProgress progress, final RateLimits.Throttle throttle) throws IOException {
+		return downloadSegment(segment, url, channel, progress, throttle, null);
+	}
 
-			final byte[] buffer = new byte[bufSize];
+	/**
+	 * Download a segment of a file for a scheduler, which aborts the request if the download is abandoned.
+	 * 
+	 * @param segment byte range to download
+	 * @param url URL of remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @param throttle bandwidth caps every read counts against
+	 * @param scheduler scheduler the segment came from, or null
+	 * @return number of bytes written to the destination
+	 * @throws IOException Fail to read from stream, the server ended the response early or the download was abandoned
+	 */
+	public static final long downloadSegment(final Segment segment, final String url, final FileChannel channel,
+			final DownloadProgress progress, final RateLimits.Throttle throttle, final SegmentScheduler scheduler)
+			throws IOException {
 
-			int bytesRead = 0;
-			int position = 0;
-			while ((bytesRead = urlStream.read(buffer)) != -1) {
-				System.arraycopy(buffer, 0, returnArray, position, bytesRead);
-				position += bytesRead;
+		final HttpClient httpClient = ConnectionPool.getInstance().getHttpClient();
+		final HttpGet httpGet = new HttpGet(url);
+		final long requestedEnd = segment.getEnd();
+		httpGet.addHeader("Range", "bytes=" + segment.getPosition() + "-" + requestedEnd);
 
-				final double progress = (double) position / (double) totalSize;
-				final int percent = (int) (progress * 100);
+		final Closeable abort = new Closeable() {
+			@Override
+			public void close() {
+				httpGet.abort();
+			}
+		};
+		if (null != scheduler && !scheduler.track(abort)) {
+			throw new IOException("Download abandoned before " + segment);
+		}
 
-				ProgressPanel.getInstance().updateProgress(chunkIndex, percent);
+		// try to execute the httpGet request
+		long written = 0;
+		try {
+			final long requested = System.nanoTime();
+			final HttpResponse httpResponse = httpClient.execute(httpGet);
+			EngineMetrics.getInstance().firstByte(httpGet.getURI().getAuthority(), System.nanoTime() - requested);
+
+			// a server ignoring the range is only usable when we wanted the start of the file anyway
+			final int status = httpResponse.getStatusLine().getStatusCode();
+			final boolean wholeFile = status == HttpStatus.SC_OK && segment.getPosition() == 0;
+			if (status != HttpStatus.SC_PARTIAL_CONTENT && !wholeFile) {
+				throw new HttpResponseException(status, "Unexpected response " + httpResponse.getStatusLine() + " for "
+						+ segment);
 			}
 
-			// clean up and shut down
-			httpClient.getConnectionManager().shutdown();
+			// closing the stream after a full read hands the connection back to the pool
+			try (final InputStream urlStream = httpResponse.getEntity().getContent();) {
+				written = copy(urlStream, segment, requestedEnd, channel, progress, throttle);
+				if (segment.getEnd() < requestedEnd) {
+					// the rest of the response belongs to whoever stole our tail
+					httpGet.abort();
+				}
+			}
 
-			// make sure the bar is filled - account for rounding error
-			ProgressPanel.getInstance().updateProgress(chunkIndex, 100);
+			if (!segment.isComplete()) {
+				throw new IOException("Short read - connection closed early for " + segment);
+			}
 
-			return returnArray;
-		} catch (final ClientProtocolException e) {
-			e.printStackTrace();
+			return written;
 		} catch (final IOException e) {
-			e.printStackTrace();
+			// a broken connection must not go back into the pool
+			httpGet.abort();
+			throw e;
+		} finally {
+			if (null != scheduler) {
+				scheduler.untrack(abort);
+			}
+			httpGet.releaseConnection();
 		}
-
-		return returnArray;
 	}
 
 	/**
-	 * Have to use this to get a thread safe client instead of just making a call to DefaultHttpClient constructor.
+	 * Copy a response body into its segment of the destination through a pooled buffer, stopping early if the
+	 * segment's tail is stolen.
 	 * 
-	 * @return DefaultHttpClient instance to download with
+	 * @param input response body, starting at the segment's current position
+	 * @param segment segment the body belongs to
+	 * @param requestedEnd last byte the request asked for
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @param throttle bandwidth caps every read counts against
+	 * @return number of bytes written to the destination
+	 * @throws IOException Fail to read from stream or write the file
 	 */
-	private static final DefaultHttpClient getThreadSafeClient() {
-		final DefaultHttpClient dummyClient = new DefaultHttpClient();
-		final ClientConnectionManager mgr = dummyClient.getConnectionManager();
-		final HttpParams params = dummyClient.getParams();
-		final DefaultHttpClient client = new DefaultHttpClient(new PoolingClientConnectionManager(
-				mgr.getSchemeRegistry()), params);
-		return client;
+	static long copy(final InputStream input, final Segment segment, final long requestedEnd,
+			final FileChannel channel, final DownloadProgress progress, final RateLimits.Throttle throttle)
+			throws IOException {
+		long written = 0;
+		final ByteBuffer buffer = BufferPool.getInstance().acquire(false);
+		try {
+			final byte[] array = buffer.array();
+			long expected = requestedEnd - segment.getPosition() + 1;
+
+			while (!segment.isComplete() && expected > 0) {
+				// fill the whole buffer before writing - a single read often returns only a packet or two
+				final int wanted = (int) Math.min(array.length, expected);
+				int filled = 0;
+				int bytesRead = 0;
+				while (filled < wanted && (bytesRead = input.read(array, filled, wanted - filled)) != -1) {
+					filled += bytesRead;
+					progress.received(bytesRead);
+					throttle.acquire(bytesRead);
+				}
+				if (0 == filled) {
+					break;
+				}
+				expected -= filled;
+
+				// never write past the (possibly shortened) end of the segment
+				final long position = segment.getPosition();
+				final int length = segment.claim(filled);
+				buffer.clear();
+				buffer.limit(length);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, position + buffer.position());
+				}
+				written += length;
+
+				progress.add(position, length);
+				EngineMetrics.getInstance().bytesWritten(length);
+
+				if (bytesRead == -1) {
+					break;
+				}
+			}
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+		return written;
 	}
 }
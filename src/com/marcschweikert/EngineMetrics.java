@@ -0,0 +1,410 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Counters, gauges and latency histograms of every download in this JVM.
+ *
+ * The engines report to the singleton, which keeps the aggregates published over JMX as
+ * <code>com.marcschweikert:type=EngineMetrics</code> and passes every event on to the registered
+ * {@link MetricsListener}s. Connection pool and buffer pool figures are read from their owners when asked for, and
+ * the {@link RateLimits} can be changed through the same bean.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class EngineMetrics implements EngineMetricsMXBean, MetricsListener {
+
+	/** Name the bean is registered under. */
+	public static final String OBJECT_NAME = "com.marcschweikert:type=EngineMetrics";
+
+	/** Singleton instance. */
+	private static final EngineMetrics instance = register(new EngineMetrics());
+
+	/** Shortest interval the aggregate rate is averaged over, in nanoseconds. */
+	private static final long RATE_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Listeners receiving every event. */
+	private final List<MetricsListener> myListeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	/** Connection workers running. */
+	private final AtomicInteger myActiveConnections = new AtomicInteger();
+
+	/** Bytes written to destination files. */
+	private final AtomicLong myBytesWritten = new AtomicLong();
+
+	/** Bytes forced to disk. */
+	private final AtomicLong myBytesSynced = new AtomicLong();
+
+	/** Range requests ended. */
+	private final AtomicLong myRequests = new AtomicLong();
+
+	/** Range requests failed. */
+	private final AtomicLong myFailedRequests = new AtomicLong();
+
+	/** Failed requests tried again. */
+	private final AtomicLong myRetries = new AtomicLong();
+
+	/** Time to first byte. */
+	private final LatencyHistogram myTimeToFirstByte = new LatencyHistogram();
+
+	/** Time of successful segment requests. */
+	private final LatencyHistogram mySegmentTime = new LatencyHistogram();
+
+	/** Figures per host. */
+	private final ConcurrentMap<String, HostStats> myHosts = new ConcurrentHashMap<String, HostStats>();
+
+	/** When the aggregate rate was last worked out. */
+	private long myRateNanos = System.nanoTime();
+
+	/** Bytes written when the aggregate rate was last worked out. */
+	private long myRateBytes;
+
+	/** Last aggregate rate. */
+	private double myBytesPerSecond;
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static EngineMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param listener listener to receive every engine event from now on
+	 */
+	public void addListener(final MetricsListener listener) {
+		myListeners.add(listener);
+	}
+
+	/**
+	 * @param listener listener to stop sending events to
+	 */
+	public void removeListener(final MetricsListener listener) {
+		myListeners.remove(listener);
+	}
+
+	@Override
+	public void connectionStarted() {
+		myActiveConnections.incrementAndGet();
+		for (final MetricsListener listener : myListeners) {
+			listener.connectionStarted();
+		}
+	}
+
+	@Override
+	public void connectionStopped() {
+		myActiveConnections.decrementAndGet();
+		for (final MetricsListener listener : myListeners) {
+			listener.connectionStopped();
+		}
+	}
+
+	@Override
+	public void firstByte(final String host, final long nanos) {
+		myTimeToFirstByte.record(nanos);
+		for (final MetricsListener listener : myListeners) {
+			listener.firstByte(host, nanos);
+		}
+	}
+
+	@Override
+	public void requestFinished(final String host, final long bytes, final long nanos, final IOException failure) {
+		myRequests.incrementAndGet();
+		final HostStats stats = getHostStats(host);
+		stats.myBytes.addAndGet(bytes);
+		stats.myNanos.addAndGet(nanos);
+		if (null == failure) {
+			mySegmentTime.record(nanos);
+		} else {
+			myFailedRequests.incrementAndGet();
+			stats.myFailures.incrementAndGet();
+		}
+		for (final MetricsListener listener : myListeners) {
+			listener.requestFinished(host, bytes, nanos, failure);
+		}
+	}
+
+	@Override
+	public void retryScheduled(final String host, final IOException failure) {
+		myRetries.incrementAndGet();
+		for (final MetricsListener listener : myListeners) {
+			listener.retryScheduled(host, failure);
+		}
+	}
+
+	@Override
+	public void bytesWritten(final long bytes) {
+		myBytesWritten.addAndGet(bytes);
+		for (final MetricsListener listener : myListeners) {
+			listener.bytesWritten(bytes);
+		}
+	}
+
+	@Override
+	public void bytesSynced(final long bytes) {
+		myBytesSynced.addAndGet(bytes);
+		for (final MetricsListener listener : myListeners) {
+			listener.bytesSynced(bytes);
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return myBytesWritten.get();
+	}
+
+	@Override
+	public long getBytesSynced() {
+		return myBytesSynced.get();
+	}
+
+	@Override
+	public synchronized double getBytesPerSecond() {
+		final long now = System.nanoTime();
+		if (now - myRateNanos >= RATE_INTERVAL_NANOS) {
+			final long bytes = myBytesWritten.get();
+			myBytesPerSecond = (bytes - myRateBytes) * NANO_OFFSET / (now - myRateNanos);
+			myRateBytes = bytes;
+			myRateNanos = now;
+		}
+		return myBytesPerSecond;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return myActiveConnections.get();
+	}
+
+	@Override
+	public long getRequests() {
+		return myRequests.get();
+	}
+
+	@Override
+	public long getFailedRequests() {
+		return myFailedRequests.get();
+	}
+
+	@Override
+	public long getRetries() {
+		return myRetries.get();
+	}
+
+	@Override
+	public double getTimeToFirstByteMeanMillis() {
+		return myTimeToFirstByte.getMeanMillis();
+	}
+
+	@Override
+	public double getTimeToFirstByte50thMillis() {
+		return myTimeToFirstByte.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getTimeToFirstByte99thMillis() {
+		return myTimeToFirstByte.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSegmentMeanMillis() {
+		return mySegmentTime.getMeanMillis();
+	}
+
+	@Override
+	public double getSegment50thMillis() {
+		return mySegmentTime.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getSegment99thMillis() {
+		return mySegmentTime.getPercentileMillis(99);
+	}
+
+	/**
+	 * @return histogram of the time to first byte
+	 */
+	public LatencyHistogram getTimeToFirstByte() {
+		return myTimeToFirstByte;
+	}
+
+	/**
+	 * @return histogram of the time of successful segment requests
+	 */
+	public LatencyHistogram getSegmentTime() {
+		return mySegmentTime;
+	}
+
+	@Override
+	public Map<String, Double> getHostBytesPerSecond() {
+		final Map<String, Double> rates = new TreeMap<String, Double>();
+		for (final Map.Entry<String, HostStats> entry : myHosts.entrySet()) {
+			final long nanos = entry.getValue().myNanos.get();
+			rates.put(entry.getKey(), Double.valueOf((nanos > 0) ? entry.getValue().myBytes.get() * NANO_OFFSET
+					/ nanos : 0));
+		}
+		return rates;
+	}
+
+	@Override
+	public Map<String, Long> getHostFailures() {
+		final Map<String, Long> failures = new TreeMap<String, Long>();
+		for (final Map.Entry<String, HostStats> entry : myHosts.entrySet()) {
+			failures.put(entry.getKey(), Long.valueOf(entry.getValue().myFailures.get()));
+		}
+		return failures;
+	}
+
+	@Override
+	public int getPoolLeased() {
+		return getPoolStats().getLeased();
+	}
+
+	@Override
+	public int getPoolAvailable() {
+		return getPoolStats().getAvailable();
+	}
+
+	@Override
+	public int getPoolPending() {
+		return getPoolStats().getPending();
+	}
+
+	@Override
+	public int getPoolMax() {
+		return getPoolStats().getMax();
+	}
+
+	@Override
+	public int getBuffersAllocated() {
+		return BufferPool.getInstance().getAllocated();
+	}
+
+	@Override
+	public int getBuffersInUse() {
+		return BufferPool.getInstance().getInUse();
+	}
+
+	@Override
+	public int getBufferSize() {
+		return BufferPool.getInstance().getBufferSize();
+	}
+
+	@Override
+	public long getGlobalRate() {
+		return RateLimits.getInstance().getGlobal().getRate();
+	}
+
+	@Override
+	public void setGlobalRate(final long bytesPerSecond) {
+		RateLimits.getInstance().getGlobal().setRate(bytesPerSecond);
+	}
+
+	@Override
+	public long getPerHostRate() {
+		return RateLimits.getInstance().getPerHostRate();
+	}
+
+	@Override
+	public void setPerHostRate(final long bytesPerSecond) {
+		RateLimits.getInstance().setPerHostRate(bytesPerSecond);
+	}
+
+	@Override
+	public synchronized void reset() {
+		myBytesWritten.set(0);
+		myBytesSynced.set(0);
+		myRequests.set(0);
+		myFailedRequests.set(0);
+		myRetries.set(0);
+		myTimeToFirstByte.reset();
+		mySegmentTime.reset();
+		myHosts.clear();
+		myRateBytes = 0;
+		myRateNanos = System.nanoTime();
+		myBytesPerSecond = 0;
+	}
+
+	/**
+	 * @return statistics of the shared HTTP connection pool
+	 */
+	private static PoolStats getPoolStats() {
+		return ConnectionPool.getInstance().getTotalStats();
+	}
+
+	/**
+	 * @param host host name
+	 * @return figures of the host, created on first use
+	 */
+	private HostStats getHostStats(final String host) {
+		HostStats stats = myHosts.get(host);
+		if (null == stats) {
+			final HostStats created = new HostStats();
+			stats = myHosts.putIfAbsent(host, created);
+			if (null == stats) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Publish the metrics over JMX. A JVM without a platform MBean server still gets the listeners.
+	 *
+	 * @param metrics metrics to publish
+	 * @return the metrics
+	 */
+	private static EngineMetrics register(final EngineMetrics metrics) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+		} catch (final JMException ex) {
+			System.err.println("Cannot register " + OBJECT_NAME + ":  " + ex.getMessage());
+		} catch (final SecurityException ex) {
+			System.err.println("Cannot register " + OBJECT_NAME + ":  " + ex.getMessage());
+		}
+		return metrics;
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private EngineMetrics() {
+	}
+
+	/**
+	 * Figures of one host.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	private static final class HostStats {
+
+		/** Body bytes received. */
+		private final AtomicLong myBytes = new AtomicLong();
+
+		/** Time spent on requests. */
+		private final AtomicLong myNanos = new AtomicLong();
+
+		/** Failed requests. */
+		private final AtomicLong myFailures = new AtomicLong();
+	}
+}
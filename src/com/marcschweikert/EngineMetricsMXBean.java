@@ -0,0 +1,147 @@
+package com.marcschweikert;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link EngineMetrics}, registered as <code>com.marcschweikert:type=EngineMetrics</code>.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public interface EngineMetricsMXBean {
+
+	/**
+	 * @return bytes written to destination files
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return bytes forced to disk
+	 */
+	long getBytesSynced();
+
+	/**
+	 * @return bytes written per second across every download, averaged since the previous reading
+	 */
+	double getBytesPerSecond();
+
+	/**
+	 * @return connection workers running
+	 */
+	int getActiveConnections();
+
+	/**
+	 * @return range requests ended, successful or not
+	 */
+	long getRequests();
+
+	/**
+	 * @return range requests that failed
+	 */
+	long getFailedRequests();
+
+	/**
+	 * @return failed requests tried again
+	 */
+	long getRetries();
+
+	/**
+	 * @return mean time to first byte, in milliseconds
+	 */
+	double getTimeToFirstByteMeanMillis();
+
+	/**
+	 * @return median time to first byte, in milliseconds
+	 */
+	double getTimeToFirstByte50thMillis();
+
+	/**
+	 * @return 99th percentile time to first byte, in milliseconds
+	 */
+	double getTimeToFirstByte99thMillis();
+
+	/**
+	 * @return mean time of a successful segment request, in milliseconds
+	 */
+	double getSegmentMeanMillis();
+
+	/**
+	 * @return median time of a successful segment request, in milliseconds
+	 */
+	double getSegment50thMillis();
+
+	/**
+	 * @return 99th percentile time of a successful segment request, in milliseconds
+	 */
+	double getSegment99thMillis();
+
+	/**
+	 * @return bytes per second of a single connection to each host
+	 */
+	Map<String, Double> getHostBytesPerSecond();
+
+	/**
+	 * @return failed requests to each host
+	 */
+	Map<String, Long> getHostFailures();
+
+	/**
+	 * @return pooled HTTP connections in use
+	 */
+	int getPoolLeased();
+
+	/**
+	 * @return pooled HTTP connections idle
+	 */
+	int getPoolAvailable();
+
+	/**
+	 * @return requests waiting for a pooled HTTP connection
+	 */
+	int getPoolPending();
+
+	/**
+	 * @return most pooled HTTP connections
+	 */
+	int getPoolMax();
+
+	/**
+	 * @return I/O buffers ever allocated
+	 */
+	int getBuffersAllocated();
+
+	/**
+	 * @return I/O buffers handed out
+	 */
+	int getBuffersInUse();
+
+	/**
+	 * @return size of an I/O buffer
+	 */
+	int getBufferSize();
+
+	/**
+	 * @return global bandwidth cap in bytes per second, 0 for none
+	 */
+	long getGlobalRate();
+
+	/**
+	 * @param bytesPerSecond global bandwidth cap in bytes per second, 0 for none
+	 */
+	void setGlobalRate(long bytesPerSecond);
+
+	/**
+	 * @return bandwidth cap per host in bytes per second, 0 for none
+	 */
+	long getPerHostRate();
+
+	/**
+	 * @param bytesPerSecond bandwidth cap per host in bytes per second, 0 for none
+	 */
+	void setPerHostRate(long bytesPerSecond);
+
+	/**
+	 * Zero the counters and histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,421 @@
+package com.marcschweikert;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import java.nio.channels.FileChannel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpStatus;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * HTTP/2 transport for the segment workers: every range request is a stream on one of a few shared connections
+ * instead of a TCP/TLS connection of its own, so parallel segments pay neither a handshake nor slow start each.
+ *
+ * It uses the JDK's <code>java.net.http</code> client, which ships with Java 11 and later; the project still builds
+ * for Java 7, so the client is reached through reflection. Servers that do not speak HTTP/2 are answered over
+ * HTTP/1.1 by the same client. Streams are spread round-robin over <code>paralleldownloader.http2.connections</code>
+ * (1) clients, each holding one connection per server. Flow-control windows are opened wide enough for high
+ * bandwidth-delay paths: <code>paralleldownloader.http2.streamWindow</code> (16 MB) per stream and
+ * <code>paralleldownloader.http2.connectionWindow</code> (256 MB) per connection, unless the JDK's own
+ * <code>jdk.httpclient.windowsize</code> and <code>jdk.httpclient.connectionWindowSize</code> are set.
+ *
+ * The client opens a connection for every request started before it knows the server speaks HTTP/2, so the first
+ * request to each server on each client goes out alone and the others wait for its response headers.
+ *
+ * The client's request timeout only covers the response headers, so a watchdog resets any stream whose body leaves
+ * a read waiting <code>paralleldownloader.readTimeout</code> (30 s) without a byte, and the read fails with a
+ * {@link SocketTimeoutException} the {@link RetryPolicy} retries like any other timeout. A slow or rate-capped stream
+ * that still brings bytes is left alone.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class Http2Engine {
+
+	/** Singleton instance. */
+	private static volatile Http2Engine instance;
+
+	/** Default number of clients. */
+	private static final int DEFAULT_CONNECTIONS = 1;
+
+	/** Default flow-control window of a stream. */
+	private static final int DEFAULT_STREAM_WINDOW = 16 * 1024 * 1024;
+
+	/** Default flow-control window of a connection. */
+	private static final int DEFAULT_CONNECTION_WINDOW = 256 * 1024 * 1024;
+
+	/** Default connect timeout, in milliseconds. */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default time to wait for the response headers or the next bytes of the body, in milliseconds. */
+	private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** Clients, each with its own connections. */
+	private final Object[] myClients;
+
+	/** Picks the client for the next request. */
+	private final AtomicInteger myNext = new AtomicInteger();
+
+	/** Released once each client has a connection to a server, by client number and authority. */
+	private final ConcurrentMap<String, CountDownLatch> myConnected = new ConcurrentHashMap<String, CountDownLatch>();
+
+	/** Time to wait for the response headers. */
+	private final Object myTimeout;
+
+	/** Time to wait for the next bytes of a body, in milliseconds. */
+	private final long myReadTimeoutMillis;
+
+	/** Resets streams whose body has stalled. */
+	private final ScheduledExecutorService myWatchdog;
+
+	/** Body handler returning an <code>InputStream</code>. */
+	private final Object myBodyHandler;
+
+	/** <code>HttpRequest.newBuilder(URI)</code>. */
+	private final Method myNewRequest;
+
+	/** <code>HttpRequest.Builder.header(String, String)</code>. */
+	private final Method myHeader;
+
+	/** <code>HttpRequest.Builder.timeout(Duration)</code>. */
+	private final Method myRequestTimeout;
+
+	/** <code>HttpRequest.Builder.build()</code>. */
+	private final Method myBuildRequest;
+
+	/** <code>HttpClient.send(HttpRequest, BodyHandler)</code>. */
+	private final Method mySend;
+
+	/** <code>HttpResponse.statusCode()</code>. */
+	private final Method myStatusCode;
+
+	/** <code>HttpResponse.body()</code>. */
+	private final Method myBody;
+
+	/**
+	 * @return Singleton instance, created on first use
+	 * @throws IOException if the runtime has no <code>java.net.http</code> client
+	 */
+	public static Http2Engine getInstance() throws IOException {
+		if (null == instance) {
+			synchronized (Http2Engine.class) {
+				if (null == instance) {
+					try {
+						instance = new Http2Engine();
+					} catch (final ReflectiveOperationException ex) {
+						throw new IOException("HTTP/2 needs the java.net.http client of Java 11 or later", ex);
+					}
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Download a segment of a file on a stream of a shared connection and write it straight into the destination.
+	 *
+	 * @param segment byte range to download
+	 * @param url URL of remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @param throttle bandwidth caps every read counts against
+	 * @param scheduler scheduler the segment came from, which resets the stream if the download is abandoned, or null
+	 * @return number of bytes written to the destination
+	 * @throws IOException Fail to read from stream, the server ended the response early or the download was abandoned
+	 */
+	public long downloadSegment(final Segment segment, final String url, final FileChannel channel,
+			final DownloadProgress progress, final RateLimits.Throttle throttle, final SegmentScheduler scheduler)
+			throws IOException {
+		final URI uri;
+		try {
+			uri = new URI(url);
+		} catch (final URISyntaxException ex) {
+			throw new IOException("Invalid URL " + url, ex);
+		}
+
+		final long requestedEnd = segment.getEnd();
+		final Object builder = invoke(myNewRequest, null, uri);
+		invoke(myHeader, builder, "Range", "bytes=" + segment.getPosition() + "-" + requestedEnd);
+		invoke(myHeader, builder, "User-Agent", "ParallelDownloader");
+		invoke(myRequestTimeout, builder, myTimeout);
+		final Object request = invoke(myBuildRequest, builder);
+
+		final int index = (myNext.getAndIncrement() & Integer.MAX_VALUE) % myClients.length;
+		final String key = index + " " + uri.getScheme() + "://" + uri.getAuthority();
+		final CountDownLatch connected = new CountDownLatch(1);
+		final CountDownLatch first = myConnected.putIfAbsent(key, connected);
+		if (null != first) {
+			try {
+				first.await();
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while connecting to " + uri.getAuthority());
+			}
+		}
+
+		final long requested = System.nanoTime();
+		final Object response;
+		try {
+			response = invoke(mySend, myClients[index], request, myBodyHandler);
+		} catch (final IOException ex) {
+			if (null == first) {
+				// let the next request try to connect
+				myConnected.remove(key, connected);
+			}
+			throw ex;
+		} finally {
+			connected.countDown();
+		}
+		EngineMetrics.getInstance().firstByte(uri.getAuthority(), System.nanoTime() - requested);
+
+		// closing the body early resets just this stream, not the connection
+		final InputStream body = (InputStream) invoke(myBody, response);
+		if (null != scheduler && !scheduler.track(body)) {
+			body.close();
+			throw new IOException("Download abandoned before " + segment);
+		}
+		final WatchedBody watched = new WatchedBody(body, TimeUnit.MILLISECONDS.toNanos(myReadTimeoutMillis));
+		final ScheduledFuture<?> watchdog = myWatchdog.scheduleWithFixedDelay(watched, myReadTimeoutMillis,
+				myReadTimeoutMillis, TimeUnit.MILLISECONDS);
+		try {
+			// a server ignoring the range is only usable when we wanted the start of the file anyway
+			final int status = ((Integer) invoke(myStatusCode, response)).intValue();
+			final boolean wholeFile = status == HttpStatus.SC_OK && segment.getPosition() == 0;
+			if (status != HttpStatus.SC_PARTIAL_CONTENT && !wholeFile) {
+				throw new HttpResponseException(status, "Unexpected response " + status + " for " + segment);
+			}
+
+			final long written = Downloader.copy(watched, segment, requestedEnd, channel, progress, throttle);
+			if (!segment.isComplete()) {
+				throw new IOException("Short read - stream closed early for " + segment);
+			}
+			return written;
+		} catch (final IOException ex) {
+			if (watched.isStalled()) {
+				final SocketTimeoutException timeout = new SocketTimeoutException("Read timed out for " + segment);
+				timeout.initCause(ex);
+				throw timeout;
+			}
+			throw ex;
+		} finally {
+			watchdog.cancel(false);
+			if (null != scheduler) {
+				scheduler.untrack(body);
+			}
+			body.close();
+		}
+	}
+
+	/**
+	 * Call a method of the <code>java.net.http</code> client, passing on the exceptions it throws.
+	 *
+	 * @param method method to call
+	 * @param target object to call it on, or null for a static method
+	 * @param args arguments
+	 * @return what the method returned
+	 * @throws IOException if the method threw one, or was interrupted
+	 */
+	private static Object invoke(final Method method, final Object target, final Object... args) throws IOException {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException ex) {
+			final Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted in " + method.getName());
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} catch (final IllegalAccessException ex) {
+			throw new IllegalStateException("Cannot call " + method, ex);
+		}
+	}
+
+	/**
+	 * Open the flow-control windows unless they were set explicitly.
+	 *
+	 * @param property JDK property to set
+	 * @param ours our property giving the value
+	 * @param defaultValue value if neither is set
+	 */
+	private static void setWindow(final String property, final String ours, final int defaultValue) {
+		if (null == System.getProperty(property)) {
+			System.setProperty(property, Integer.toString(Integer.getInteger(ours, defaultValue).intValue()));
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @throws ReflectiveOperationException if the runtime has no <code>java.net.http</code> client
+	 */
+	private Http2Engine() throws ReflectiveOperationException {
+		final Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+		final Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+		final Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+		final Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+		final Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+		final Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+		final Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+		final Class<?> bodyHandlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+		final Class<?> bodyHandlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+		final Class<?> durationClass = Class.forName("java.time.Duration");
+		final Method ofMillis = durationClass.getMethod("ofMillis", long.class);
+
+		// the windows are read when a client is built
+		setWindow("jdk.httpclient.windowsize", "paralleldownloader.http2.streamWindow", DEFAULT_STREAM_WINDOW);
+		setWindow("jdk.httpclient.connectionWindowSize", "paralleldownloader.http2.connectionWindow",
+				DEFAULT_CONNECTION_WINDOW);
+
+		final Object connectTimeout = ofMillis.invoke(null, Long.valueOf(Integer.getInteger(
+				"paralleldownloader.connectTimeout", DEFAULT_CONNECT_TIMEOUT).longValue()));
+		myClients = new Object[Math.max(1, Integer.getInteger("paralleldownloader.http2.connections",
+				DEFAULT_CONNECTIONS).intValue())];
+		for (int i = 0; i < myClients.length; i++) {
+			final Object builder = clientClass.getMethod("newBuilder").invoke(null);
+			clientBuilderClass.getMethod("version", versionClass).invoke(builder, versionClass.getField("HTTP_2")
+					.get(null));
+			clientBuilderClass.getMethod("followRedirects", redirectClass).invoke(builder, redirectClass.getField(
+					"NORMAL").get(null));
+			clientBuilderClass.getMethod("connectTimeout", durationClass).invoke(builder, connectTimeout);
+			myClients[i] = clientBuilderClass.getMethod("build").invoke(builder);
+		}
+
+		myReadTimeoutMillis = Math.max(1, Integer.getInteger("paralleldownloader.readTimeout", DEFAULT_READ_TIMEOUT)
+				.intValue());
+		myTimeout = ofMillis.invoke(null, Long.valueOf(myReadTimeoutMillis));
+		myWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "Http2Engine-watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		myBodyHandler = bodyHandlersClass.getMethod("ofInputStream").invoke(null);
+		myNewRequest = requestClass.getMethod("newBuilder", URI.class);
+		myHeader = requestBuilderClass.getMethod("header", String.class, String.class);
+		myRequestTimeout = requestBuilderClass.getMethod("timeout", durationClass);
+		myBuildRequest = requestBuilderClass.getMethod("build");
+		mySend = clientClass.getMethod("send", requestClass, bodyHandlerClass);
+		myStatusCode = responseClass.getMethod("statusCode");
+		myBody = responseClass.getMethod("body");
+	}
+
+	/**
+	 * Body of a response that notes every read, and resets the stream once a read has waited a whole read timeout
+	 * without a byte. Time spent outside a read, such as waiting for a bandwidth cap, is not a stall.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	private static final class WatchedBody extends FilterInputStream implements Runnable {
+
+		/** Longest a read may wait for a byte, in nanoseconds. */
+		private final long myTimeoutNanos;
+
+		/** <code>System.nanoTime()</code> when a read last started or brought bytes. */
+		private volatile long myActiveAt = System.nanoTime();
+
+		/** True while the worker is blocked in a read. */
+		private volatile boolean myReading;
+
+		/** Set once the body has been closed for stalling. */
+		private volatile boolean myStalled;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param body body of the response
+		 * @param timeoutNanos longest a read may wait for a byte
+		 */
+		private WatchedBody(final InputStream body, final long timeoutNanos) {
+			super(body);
+			myTimeoutNanos = timeoutNanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			started();
+			try {
+				return super.read();
+			} finally {
+				finished();
+			}
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+			started();
+			try {
+				return super.read(bytes, offset, length);
+			} finally {
+				finished();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (!myReading || System.nanoTime() - myActiveAt < myTimeoutNanos) {
+				return;
+			}
+
+			// closing the body wakes the worker blocked reading it
+			myStalled = true;
+			try {
+				close();
+			} catch (final IOException ex) {
+				// the worker's read fails either way
+			}
+		}
+
+		/**
+		 * @return true if the body was closed because it stalled
+		 */
+		private boolean isStalled() {
+			return myStalled;
+		}
+
+		/**
+		 * A read is about to block.
+		 */
+		private void started() {
+			myActiveAt = System.nanoTime();
+			myReading = true;
+		}
+
+		/**
+		 * A read has returned.
+		 */
+		private void finished() {
+			myReading = false;
+			myActiveAt = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package com.marcschweikert;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks downloaded bytes against expected hashes while the download runs, so a multi-gigabyte file needs no second
+ * pass once it is complete.
+ *
+ * Workers report every finished segment to the {@link SegmentScheduler}, which passes it on here. A follower thread
+ * keeps track of which bytes are on disk and reads each piece back while it is still in the page cache:
+ * <ul>
+ * <li>a whole-file digest is fed the contiguous prefix of the file as it grows, and compared at the end;</li>
+ * <li>with a {@link BlockManifest}, each block is hashed as soon as it is complete, and a bad block is handed back
+ * to the scheduler to be fetched again on its own, up to {@link #MAX_BLOCK_FAILURES} times.</li>
+ * </ul>
+ * With a manifest, a range only goes into the {@link DownloadJournal} once its block has passed, so a resumed
+ * download never trusts a block that was bad or never checked.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class IntegrityVerifier implements Closeable, Runnable {
+
+	/** Times one block may fail verification before the download fails. */
+	public static final int MAX_BLOCK_FAILURES = 3;
+
+	/** Digest header algorithms understood, weakest first. */
+	private static final List<String> HEADER_ALGORITHMS = Arrays.asList("MD5", "SHA-256", "SHA-512");
+
+	/** Marks the end of the work queue. */
+	private static final Segment STOP = new Segment(0, -1);
+
+	/** Destination file. */
+	private final FileChannel myChannel;
+
+	/** Size of the whole file. */
+	private final long myFileSize;
+
+	/** Whole-file hash, or null if no whole-file digest is expected. */
+	private final ContentHash myFileHash;
+
+	/** Expected hex whole-file digest, or null. */
+	private final String myExpectedDigest;
+
+	/** Block hashes, or null. */
+	private final BlockManifest myBlocks;
+
+	/** Hash of the block algorithm, or null. */
+	private final ContentHash myBlockHash;
+
+	/** Scheduler bad blocks are handed back to. */
+	private final SegmentScheduler myScheduler;
+
+	/** Progress tracker bad blocks are taken back from. */
+	private final DownloadProgress myProgress;
+
+	/** Finished ranges not yet looked at. */
+	private final BlockingQueue<Segment> myQueue = new LinkedBlockingQueue<Segment>();
+
+	/** Finished ranges reported but not yet fully processed. */
+	private final AtomicInteger myPending = new AtomicInteger();
+
+	/** Bytes on disk, as start to end of merged ranges. Only touched by the follower thread. */
+	private final TreeMap<Long, Long> myCovered = new TreeMap<Long, Long>();
+
+	/** Blocks that passed. Only touched by the follower thread, and read by {@link #verify()} once it has stopped. */
+	private final boolean[] myVerified;
+
+	/** Failed verifications of each block. Only touched by the follower thread. */
+	private final int[] myFailures;
+
+	/** Bytes fed to the whole-file hash so far. */
+	private long myHashed;
+
+	/** Hex whole-file digest once every byte has been hashed. */
+	private volatile String myActualDigest;
+
+	/** First unrecoverable problem, if any. */
+	private volatile IOException myFailure;
+
+	/** Reader of the file passed each good block, or null. */
+	private volatile DownloadStream myStream;
+
+	/** Journal each good block is recorded in, or null. */
+	private volatile DownloadJournal myJournal;
+
+	/** Follower thread. */
+	private final Thread myThread;
+
+	/**
+	 * Constructor. Starts the follower thread.
+	 *
+	 * @param channel destination file
+	 * @param fileSize size of the whole file
+	 * @param algorithm algorithm of the expected whole-file digest, or null
+	 * @param expectedDigest expected hex whole-file digest, or null to check only blocks
+	 * @param blocks block hashes, or null to check only the whole file
+	 * @param scheduler scheduler bad blocks are handed back to
+	 * @param progress progress tracker bad blocks are taken back from
+	 * @throws IOException if an algorithm is not supported or the manifest is for a file of another size
+	 */
+	public IntegrityVerifier(final FileChannel channel, final long fileSize, final String algorithm,
+			final String expectedDigest, final BlockManifest blocks, final SegmentScheduler scheduler,
+			final DownloadProgress progress) throws IOException {
+		if (null != blocks && blocks.getFileSize() != fileSize) {
+			throw new IOException("Block manifest is for " + blocks.getFileSize() + " bytes, remote file has "
+					+ fileSize);
+		}
+
+		myChannel = channel;
+		myFileSize = fileSize;
+		myExpectedDigest = expectedDigest;
+		myFileHash = (null == expectedDigest) ? null : BlockManifest.newHash(algorithm);
+		myBlocks = blocks;
+		myBlockHash = (null == blocks) ? null : blocks.newHash();
+		myVerified = new boolean[(null == blocks) ? 0 : blocks.getBlockCount()];
+		myFailures = new int[myVerified.length];
+		myScheduler = scheduler;
+		myProgress = progress;
+
+		myThread = WorkerThreads.getInstance().newThreadFactory("IntegrityVerifier-").newThread(this);
+		myThread.start();
+	}
+
+	/**
+	 * Pick the strongest whole-file digest out of the headers of a response for the whole file:
+	 * <code>Repr-Digest: sha-256=:base64:</code>, <code>Digest: SHA-256=base64</code> or
+	 * <code>Content-MD5: base64</code>.
+	 *
+	 * @param reprDigest value of the <code>Repr-Digest</code> header, or null
+	 * @param digest value of the <code>Digest</code> header, or null
+	 * @param contentMD5 value of the <code>Content-MD5</code> header, or null
+	 * @return algorithm and hex digest, or null if the headers hold nothing usable
+	 */
+	public static String[] fromHeaders(final String reprDigest, final String digest, final String contentMD5) {
+		String[] best = null;
+		int bestRank = 0;
+		for (final String header : new String[] { reprDigest, digest }) {
+			if (null == header) {
+				continue;
+			}
+
+			for (final String entry : header.split(",")) {
+				final int equals = entry.indexOf('=');
+				if (equals < 0) {
+					continue;
+				}
+				final String algorithm = entry.substring(0, equals).trim().toUpperCase(Locale.ROOT);
+				final int rank = HEADER_ALGORITHMS.indexOf(algorithm) + 1;
+				final String hex = ContentHash.base64ToHex(entry.substring(equals + 1).trim().replace(":", ""));
+				if (rank > bestRank && null != hex) {
+					best = new String[] { algorithm, hex };
+					bestRank = rank;
+				}
+			}
+		}
+
+		if (null == best && null != contentMD5) {
+			final String hex = ContentHash.base64ToHex(contentMD5);
+			if (null != hex) {
+				best = new String[] { "MD5", hex };
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param stream reader to pass each block to once it has passed
+	 */
+	public void setStream(final DownloadStream stream) {
+		myStream = stream;
+	}
+
+	/**
+	 * @param journal journal to record each block in once it has passed
+	 */
+	public void setJournal(final DownloadJournal journal) {
+		myJournal = journal;
+	}
+
+	/**
+	 * @return true if blocks are checked on their own
+	 */
+	public boolean hasBlocks() {
+		return null != myBlocks;
+	}
+
+	/**
+	 * A range has reached the file. Cheap enough to call from any I/O thread.
+	 *
+	 * @param start first byte
+	 * @param end last byte
+	 */
+	public void completed(final long start, final long end) {
+		myPending.incrementAndGet();
+		myQueue.add(new Segment(start, end));
+	}
+
+	/**
+	 * @return true while reported ranges are still being checked, so bad blocks may yet be handed back
+	 */
+	public boolean isBusy() {
+		return myPending.get() > 0;
+	}
+
+	/**
+	 * @throws IOException if a block failed too often or could not be read back
+	 */
+	public void checkFailure() throws IOException {
+		if (null != myFailure) {
+			throw myFailure;
+		}
+	}
+
+	/**
+	 * Check that every block has passed and the whole-file digest matches, once every range has been reported and the
+	 * follower thread has been closed.
+	 *
+	 * @throws IOException if a block was never verified or the file does not match
+	 */
+	public void verify() throws IOException {
+		checkFailure();
+		for (int block = 0; block < myVerified.length; block++) {
+			if (!myVerified[block]) {
+				throw new IOException("Block " + block + " (bytes " + myBlocks.getBlockStart(block) + "-"
+						+ myBlocks.getBlockEnd(block) + ") was never verified");
+			}
+		}
+		if (null == myExpectedDigest) {
+			return;
+		}
+
+		if (null == myActualDigest) {
+			throw new IOException("Only " + myHashed + " of " + myFileSize + " bytes could be verified");
+		}
+		if (!ContentHash.matches(myExpectedDigest, myActualDigest)) {
+			throw new IOException(myFileHash.getAlgorithm() + " mismatch:  expected " + myExpectedDigest + ", got "
+					+ myActualDigest);
+		}
+	}
+
+	/**
+	 * Stop the follower thread once it has taken in every range reported so far.
+	 */
+	@Override
+	public void close() {
+		myQueue.add(STOP);
+		try {
+			myThread.join();
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		final ByteBuffer buffer = BufferPool.getInstance().acquire(false);
+		try {
+			while (true) {
+				final Segment range = myQueue.take();
+				if (STOP == range) {
+					break;
+				}
+
+				try {
+					if (null == myFailure) {
+						process(range, buffer);
+					}
+				} catch (final IOException ex) {
+					myFailure = ex;
+				} finally {
+					myPending.decrementAndGet();
+				}
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+
+	/**
+	 * Take in a finished range: check the blocks it completes, then extend the whole-file hash.
+	 *
+	 * @param range finished range
+	 * @param buffer scratch buffer
+	 * @throws IOException if a block failed too often or the file cannot be read
+	 */
+	private void process(final Segment range, final ByteBuffer buffer) throws IOException {
+		cover(range.getStart(), range.getEnd());
+
+		if (null != myBlocks) {
+			final int first = (int) (range.getStart() / myBlocks.getBlockSize());
+			final int last = (int) (range.getEnd() / myBlocks.getBlockSize());
+			for (int block = first; block <= last; block++) {
+				final long start = myBlocks.getBlockStart(block);
+				final long end = myBlocks.getBlockEnd(block);
+				if (myVerified[block] || !isCovered(start, end)) {
+					continue;
+				}
+
+				final String actual = hash(myBlockHash, start, end, buffer);
+				if (ContentHash.matches(myBlocks.getHash(block), actual)) {
+					myVerified[block] = true;
+					if (null != myJournal) {
+						myJournal.complete(start, end);
+					}
+					if (null != myStream) {
+						myStream.completed(start, end);
+					}
+					continue;
+				}
+
+				if (++myFailures[block] >= MAX_BLOCK_FAILURES) {
+					throw new IOException("Block " + block + " (bytes " + start + "-" + end + ") failed "
+							+ myBlocks.getAlgorithm() + " verification " + myFailures[block] + " times");
+				}
+				System.err.println("Re-fetching block " + block + " (bytes " + start + "-" + end + "):  "
+						+ myBlocks.getAlgorithm() + " mismatch");
+				uncover(start, end);
+				myProgress.remove(start, end - start + 1);
+				myScheduler.requeue(new Segment(start, end));
+			}
+		}
+
+		if (null != myFileHash) {
+			final Map.Entry<Long, Long> prefix = myCovered.floorEntry(Long.valueOf(myHashed));
+			long end = (null == prefix) ? -1 : prefix.getValue().longValue();
+
+			// only bytes that passed their block check go into the whole-file hash
+			if (null != myBlocks) {
+				int block = (int) (myHashed / myBlocks.getBlockSize());
+				while (block < myVerified.length && myVerified[block]) {
+					block++;
+				}
+				end = Math.min(end, (block < myVerified.length) ? myBlocks.getBlockStart(block) - 1 : end);
+			}
+
+			if (end >= myHashed) {
+				feed(myFileHash, myHashed, end, buffer);
+				myHashed = end + 1;
+				if (myHashed == myFileSize) {
+					myActualDigest = myFileHash.toHex();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param hash hash to use
+	 * @param start first byte
+	 * @param end last byte
+	 * @param buffer scratch buffer
+	 * @return hex hash of the bytes
+	 * @throws IOException if the file cannot be read
+	 */
+	private String hash(final ContentHash hash, final long start, final long end, final ByteBuffer buffer)
+			throws IOException {
+		feed(hash, start, end, buffer);
+		return hash.toHex();
+	}
+
+	/**
+	 * Feed bytes of the file to a hash.
+	 *
+	 * @param hash hash to feed
+	 * @param start first byte
+	 * @param end last byte
+	 * @param buffer scratch buffer
+	 * @throws IOException if the file cannot be read
+	 */
+	private void feed(final ContentHash hash, final long start, final long end, final ByteBuffer buffer)
+			throws IOException {
+		final byte[] array = buffer.array();
+		long position = start;
+		while (position <= end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(array.length, end - position + 1));
+			final int read = myChannel.read(buffer, position);
+			if (read <= 0) {
+				throw new IOException("Cannot read back bytes " + position + "-" + end);
+			}
+			hash.update(array, 0, read);
+			position += read;
+		}
+	}
+
+	/**
+	 * @param start first byte now on disk
+	 * @param end last byte now on disk
+	 */
+	private void cover(final long start, final long end) {
+		long mergedStart = start;
+		long mergedEnd = end;
+
+		final Map.Entry<Long, Long> before = myCovered.floorEntry(Long.valueOf(start));
+		if (null != before && before.getValue().longValue() >= start - 1) {
+			mergedStart = before.getKey().longValue();
+			mergedEnd = Math.max(mergedEnd, before.getValue().longValue());
+			myCovered.remove(before.getKey());
+		}
+
+		Map.Entry<Long, Long> after = myCovered.ceilingEntry(Long.valueOf(mergedStart));
+		while (null != after && after.getKey().longValue() <= mergedEnd + 1) {
+			mergedEnd = Math.max(mergedEnd, after.getValue().longValue());
+			myCovered.remove(after.getKey());
+			after = myCovered.ceilingEntry(Long.valueOf(mergedStart));
+		}
+
+		myCovered.put(Long.valueOf(mergedStart), Long.valueOf(mergedEnd));
+	}
+
+	/**
+	 * @param start first byte no longer valid
+	 * @param end last byte no longer valid
+	 */
+	private void uncover(final long start, final long end) {
+		final Map.Entry<Long, Long> range = myCovered.floorEntry(Long.valueOf(start));
+		myCovered.remove(range.getKey());
+		if (range.getKey().longValue() < start) {
+			myCovered.put(range.getKey(), Long.valueOf(start - 1));
+		}
+		if (range.getValue().longValue() > end) {
+			myCovered.put(Long.valueOf(end + 1), range.getValue());
+		}
+	}
+
+	/**
+	 * @param start first byte
+	 * @param end last byte
+	 * @return true if every byte of the range is on disk
+	 */
+	private boolean isCovered(final long start, final long end) {
+		final Map.Entry<Long, Long> range = myCovered.floorEntry(Long.valueOf(start));
+		return null != range && range.getValue().longValue() >= end;
+	}
+}
@@ -0,0 +1,95 @@
+package com.marcschweikert;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in power-of-two microsecond buckets, from under a microsecond to over an hour.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are accurate to within a factor of
+ * two, which is plenty for spotting a slow mirror.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class LatencyHistogram {
+
+	/** Number of buckets; the last one also takes everything longer. */
+	private static final int BUCKETS = 32;
+
+	/** Change microseconds to milliseconds. */
+	private static final double MICRO_OFFSET = 1000.0;
+
+	/** Count of durations in each bucket. */
+	private final AtomicLongArray myCounts = new AtomicLongArray(BUCKETS);
+
+	/** Number of durations. */
+	private final AtomicLong myCount = new AtomicLong();
+
+	/** Sum of the durations, in microseconds. */
+	private final AtomicLong myTotalMicros = new AtomicLong();
+
+	/**
+	 * @param nanos duration to add
+	 */
+	public void record(final long nanos) {
+		final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		myCounts.incrementAndGet(bucket);
+		myCount.incrementAndGet();
+		myTotalMicros.addAndGet(micros);
+	}
+
+	/**
+	 * @return number of durations added
+	 */
+	public long getCount() {
+		return myCount.get();
+	}
+
+	/**
+	 * @return mean duration in milliseconds, or 0 if there are none
+	 */
+	public double getMeanMillis() {
+		final long count = myCount.get();
+		return (0 == count) ? 0 : myTotalMicros.get() / MICRO_OFFSET / count;
+	}
+
+	/**
+	 * @param percentile percentile wanted, from 0 to 100
+	 * @return upper bound in milliseconds of the bucket holding the percentile, or 0 if there are no durations
+	 */
+	public double getPercentileMillis(final double percentile) {
+		long total = 0;
+		final long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = myCounts.get(i);
+			total += counts[i];
+		}
+		if (0 == total) {
+			return 0;
+		}
+
+		final double wanted = total * percentile / 100.0;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= wanted && counts[i] > 0) {
+				return (1L << i) / MICRO_OFFSET;
+			}
+		}
+		return (1L << (BUCKETS - 1)) / MICRO_OFFSET;
+	}
+
+	/**
+	 * Forget every duration.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			myCounts.set(i, 0);
+		}
+		myCount.set(0);
+		myTotalMicros.set(0);
+	}
+}
@@ -0,0 +1,410 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Destination file written through memory mappings instead of a write call per buffer.
+ *
+ * Positional writes inside the preallocated size are copied into <code>paralleldownloader.mapWindowSize</code>
+ * (64 MB) windows mapped with {@link FileChannel#map}, and the page cache writes them back. At most
+ * <code>paralleldownloader.mapWindows</code> (16) windows are mapped at once, so a huge file never takes more than
+ * their total of address space: the least recently used idle window is forced to disk and unmapped to make room, and
+ * a write finding every window busy falls back to the file channel. Everything else, reads included, goes straight to
+ * the file channel, which shares its pages with the mappings.
+ *
+ * {@link #force(boolean)} forces every mapped window before the file, so the {@link DownloadJournal} still only
+ * records durable data; {@link #sync(FileChannel, Segment)} forces a finished segment right away. Closing the channel
+ * unmaps the idle windows at once and a busy one when its last user lets go of it, so a writer still running never
+ * touches an unmapped window; it gets a {@link ClosedChannelException} on its next write instead.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class MappedFileChannel extends FileChannel {
+
+	/** Default size of a window in bytes. */
+	private static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/** Default most windows mapped at once. */
+	private static final int DEFAULT_MAX_WINDOWS = 16;
+
+	/** Smallest window size accepted. */
+	private static final long MIN_WINDOW_SIZE = 1024 * 1024;
+
+	/** <code>sun.misc.Unsafe</code> instance, or null if windows are left for the garbage collector to unmap. */
+	private static final Object UNSAFE;
+
+	/** <code>Unsafe.invokeCleaner(ByteBuffer)</code> of Java 9 and later, or null. */
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (final ReflectiveOperationException ex) {
+			invokeCleaner = null;
+		} catch (final SecurityException ex) {
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	/** File the windows map. */
+	private final FileChannel myChannel;
+
+	/** Bytes of the file that are mapped. */
+	private final long mySize;
+
+	/** Size of a window. */
+	private final long myWindowSize;
+
+	/** Most windows mapped at once. */
+	private final int myMaxWindows;
+
+	/** Mapped windows by index, least recently used first. */
+	private final Map<Long, Window> myWindows = new LinkedHashMap<Long, Window>(16, 0.75f, true);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param channel destination file, preallocated to the full size before the first write
+	 * @param size bytes of the file to map
+	 */
+	public MappedFileChannel(final FileChannel channel, final long size) {
+		myChannel = channel;
+		mySize = size;
+		// a single mapping cannot be larger than 2 GB
+		myWindowSize = Math.min(Integer.MAX_VALUE, Math.max(MIN_WINDOW_SIZE, Long.getLong(
+				"paralleldownloader.mapWindowSize", DEFAULT_WINDOW_SIZE).longValue()));
+		myMaxWindows = Math.max(1, Integer.getInteger("paralleldownloader.mapWindows", DEFAULT_MAX_WINDOWS)
+				.intValue());
+	}
+
+	/**
+	 * Force a finished segment to disk if the destination is mapped. Other destinations are left to the journal.
+	 *
+	 * @param channel destination file
+	 * @param segment finished segment
+	 * @throws IOException if the segment cannot be forced
+	 */
+	public static void sync(final FileChannel channel, final Segment segment) throws IOException {
+		if (channel instanceof MappedFileChannel) {
+			((MappedFileChannel) channel).force(segment.getStart(), segment.getEnd());
+		}
+	}
+
+	@Override
+	public int write(final ByteBuffer src, final long position) throws IOException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position " + position);
+		}
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+
+		int written = 0;
+		while (src.hasRemaining()) {
+			final long at = position + written;
+			if (at >= mySize) {
+				// past the mapped size - let the file grow as usual
+				return written + myChannel.write(src, at);
+			}
+
+			final long index = at / myWindowSize;
+			final int offset = (int) (at - index * myWindowSize);
+			final int length = (int) Math.min(src.remaining(), Math.min(myWindowSize - offset, mySize - at));
+			final int limit = src.limit();
+			src.limit(src.position() + length);
+			try {
+				final Window window = acquire(index);
+				if (null == window) {
+					while (src.hasRemaining()) {
+						myChannel.write(src, at + length - src.remaining());
+					}
+				} else {
+					try {
+						final ByteBuffer target = window.myBuffer.duplicate();
+						target.position(offset);
+						target.put(src);
+					} finally {
+						release(window);
+					}
+				}
+			} finally {
+				src.limit(limit);
+			}
+			written += length;
+		}
+		return written;
+	}
+
+	@Override
+	public int read(final ByteBuffer dst, final long position) throws IOException {
+		return myChannel.read(dst, position);
+	}
+
+	@Override
+	public int read(final ByteBuffer dst) throws IOException {
+		return myChannel.read(dst);
+	}
+
+	@Override
+	public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+		return myChannel.read(dsts, offset, length);
+	}
+
+	@Override
+	public int write(final ByteBuffer src) throws IOException {
+		return myChannel.write(src);
+	}
+
+	@Override
+	public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+		return myChannel.write(srcs, offset, length);
+	}
+
+	@Override
+	public long position() throws IOException {
+		return myChannel.position();
+	}
+
+	@Override
+	public FileChannel position(final long newPosition) throws IOException {
+		myChannel.position(newPosition);
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return myChannel.size();
+	}
+
+	@Override
+	public FileChannel truncate(final long size) throws IOException {
+		if (size < mySize) {
+			throw new IOException("Cannot truncate a mapped file to " + size + " bytes");
+		}
+		myChannel.truncate(size);
+		return this;
+	}
+
+	@Override
+	public void force(final boolean metaData) throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+		force(0, mySize - 1);
+		myChannel.force(metaData);
+	}
+
+	@Override
+	public long transferTo(final long position, final long count, final WritableByteChannel target)
+			throws IOException {
+		return myChannel.transferTo(position, count, target);
+	}
+
+	@Override
+	public long transferFrom(final ReadableByteChannel src, final long position, final long count)
+			throws IOException {
+		return myChannel.transferFrom(src, position, count);
+	}
+
+	@Override
+	public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+		return myChannel.map(mode, position, size);
+	}
+
+	@Override
+	public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+		return myChannel.lock(position, size, shared);
+	}
+
+	@Override
+	public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+		return myChannel.tryLock(position, size, shared);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		// unmapping keeps the pages dirtied so far in the page cache; a window still in use goes on its last release
+		final List<Window> idle = new ArrayList<Window>();
+		synchronized (myWindows) {
+			for (final Window window : myWindows.values()) {
+				window.myClosed = true;
+				if (0 == window.myUsers) {
+					idle.add(window);
+				}
+			}
+			myWindows.clear();
+		}
+		for (final Window window : idle) {
+			unmap(window.myBuffer);
+		}
+		myChannel.close();
+	}
+
+	/**
+	 * Force the mapped windows holding a range of the file to disk. Unmapped windows were forced when they were
+	 * dropped.
+	 *
+	 * @param start first byte of the range
+	 * @param end last byte of the range
+	 * @throws IOException if a window cannot be forced, or the channel is closed
+	 */
+	private void force(final long start, final long end) throws IOException {
+		final List<Window> windows = new ArrayList<Window>();
+		synchronized (myWindows) {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			for (final Window window : myWindows.values()) {
+				if (window.myIndex >= start / myWindowSize && window.myIndex <= end / myWindowSize) {
+					window.myUsers++;
+					windows.add(window);
+				}
+			}
+		}
+
+		try {
+			for (final Window window : windows) {
+				window.myBuffer.force();
+			}
+		} finally {
+			for (final Window window : windows) {
+				release(window);
+			}
+		}
+	}
+
+	/**
+	 * Map a window, dropping the least recently used idle one if there are too many.
+	 *
+	 * @param index number of the window
+	 * @return the window, held until {@link #release(Window)}, or null if every window is busy
+	 * @throws IOException if the window cannot be mapped or the dropped one cannot be forced, or the channel is closed
+	 */
+	private Window acquire(final long index) throws IOException {
+		Window window;
+		Window dropped = null;
+		synchronized (myWindows) {
+			// a window mapped now would never be unmapped
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			window = myWindows.get(Long.valueOf(index));
+			if (null == window) {
+				if (myWindows.size() >= myMaxWindows) {
+					final Iterator<Window> iterator = myWindows.values().iterator();
+					while (null == dropped && iterator.hasNext()) {
+						final Window candidate = iterator.next();
+						if (0 == candidate.myUsers) {
+							iterator.remove();
+							dropped = candidate;
+						}
+					}
+					if (null == dropped) {
+						return null;
+					}
+				}
+
+				final long start = index * myWindowSize;
+				window = new Window(index, myChannel.map(MapMode.READ_WRITE, start, Math.min(myWindowSize, mySize
+						- start)));
+				myWindows.put(Long.valueOf(index), window);
+			}
+			window.myUsers++;
+		}
+
+		// nobody can reach the dropped window any more
+		if (null != dropped) {
+			dropped.myBuffer.force();
+			unmap(dropped.myBuffer);
+		}
+		return window;
+	}
+
+	/**
+	 * @param window window no longer used by the caller
+	 */
+	private void release(final Window window) {
+		final boolean unmap;
+		synchronized (myWindows) {
+			window.myUsers--;
+			unmap = window.myClosed && 0 == window.myUsers;
+		}
+		if (unmap) {
+			unmap(window.myBuffer);
+		}
+	}
+
+	/**
+	 * Unmap a window now where the runtime allows it; otherwise the garbage collector unmaps it later.
+	 *
+	 * @param buffer mapping no longer used by anyone
+	 */
+	private static void unmap(final MappedByteBuffer buffer) {
+		if (null == INVOKE_CLEANER) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (final ReflectiveOperationException ex) {
+			System.err.println("Cannot unmap window:  " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * One mapped window of the file.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	private static final class Window {
+
+		/** Number of the window. */
+		private final long myIndex;
+
+		/** Mapping of the window. */
+		private final MappedByteBuffer myBuffer;
+
+		/** Writers and syncs using the window; guarded by the window map. */
+		private int myUsers;
+
+		/** Set when the channel closes while the window is in use; guarded by the window map. */
+		private boolean myClosed;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param index number of the window
+		 * @param buffer mapping of the window
+		 */
+		private Window(final long index, final MappedByteBuffer buffer) {
+			myIndex = index;
+			myBuffer = buffer;
+		}
+	}
+}
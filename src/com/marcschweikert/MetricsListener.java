@@ -0,0 +1,66 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+/**
+ * Receives low-level events from the download engines, for feeding a metrics system. Register implementations with
+ * {@link EngineMetrics#addListener(MetricsListener)}; the built-in aggregates are also published over JMX.
+ *
+ * Callbacks arrive on the engines' worker and event-loop threads, often many times a second, so implementations must
+ * be thread-safe and return quickly.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public interface MetricsListener {
+
+	/**
+	 * A connection worker started pulling segments.
+	 */
+	void connectionStarted();
+
+	/**
+	 * A connection worker stopped.
+	 */
+	void connectionStopped();
+
+	/**
+	 * The response headers of a range request arrived.
+	 *
+	 * @param host host the request went to
+	 * @param nanos time from sending the request to receiving the headers
+	 */
+	void firstByte(String host, long nanos);
+
+	/**
+	 * A range request ended.
+	 *
+	 * @param host host the request went to
+	 * @param bytes body bytes received
+	 * @param nanos time from sending the request until it ended
+	 * @param failure why the request failed, or null if it finished its segment
+	 */
+	void requestFinished(String host, long bytes, long nanos, IOException failure);
+
+	/**
+	 * A failed request will be tried again after a backoff.
+	 *
+	 * @param host host the failed request went to
+	 * @param failure why it failed
+	 */
+	void retryScheduled(String host, IOException failure);
+
+	/**
+	 * Bytes were written to a destination file.
+	 *
+	 * @param bytes bytes written
+	 */
+	void bytesWritten(long bytes);
+
+	/**
+	 * Bytes written earlier were forced to disk.
+	 *
+	 * @param bytes bytes made durable
+	 */
+	void bytesSynced(long bytes);
+}
@@ -0,0 +1,234 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Equivalent copies of one remote file and how well each of them is doing.
+ *
+ * Every segment attempt asks for a mirror and reports back how many bytes it got in how long. The next attempt goes to
+ * the mirror expected to finish it soonest given the connections already on it, so segments spread across the mirrors
+ * in proportion to their measured throughput and the total can exceed what any one server gives a single client.
+ * A mirror is dropped after {@link #MAX_FAILURES} failures in a row, at once on a permanent error, or when it runs at
+ * less than a twentieth of the best mirror's speed; the ranges it was serving are retried on the others. The last
+ * healthy mirror is never dropped.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class MirrorSet {
+
+	/** Consecutive failures after which a mirror is dropped. */
+	public static final int MAX_FAILURES = 3;
+
+	/** Weight of the newest sample in the throughput average. */
+	private static final double EWMA_WEIGHT = 0.3;
+
+	/** A mirror slower than this fraction of the best one counts as stalled. */
+	private static final double STALL_FRACTION = 0.05;
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Every mirror, dropped or not. */
+	private final List<Mirror> myMirrors = new ArrayList<Mirror>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url primary URL of the file
+	 * @param mirrors other URLs serving exactly the same bytes
+	 * @throws MalformedURLException if a URL cannot be parsed
+	 */
+	public MirrorSet(final String url, final List<String> mirrors) throws MalformedURLException {
+		myMirrors.add(new Mirror(url));
+		for (final String mirror : mirrors) {
+			myMirrors.add(new Mirror(mirror));
+		}
+	}
+
+	/**
+	 * @return every mirror, dropped or not
+	 */
+	public List<Mirror> getMirrors() {
+		return Collections.unmodifiableList(myMirrors);
+	}
+
+	/**
+	 * @return true if every mirror is a plain <code>http</code> URL
+	 */
+	public boolean isPlainHttp() {
+		for (final Mirror mirror : myMirrors) {
+			if (!"http".equalsIgnoreCase(mirror.myURL.getProtocol())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pick the mirror for the next attempt: the healthy one expected to finish it soonest. Mirrors not measured yet
+	 * count as fast as the best one so they get tried.
+	 *
+	 * @return the mirror, to be handed back with {@link #release(Mirror, long, long, IOException, boolean)}
+	 */
+	public synchronized Mirror acquire() {
+		double best = 0;
+		for (final Mirror mirror : myMirrors) {
+			best = Math.max(best, mirror.myBytesPerSecond);
+		}
+
+		Mirror chosen = null;
+		double chosenScore = Double.MAX_VALUE;
+		for (final Mirror mirror : myMirrors) {
+			if (mirror.myDropped) {
+				continue;
+			}
+
+			final double rate = (mirror.myBytesPerSecond > 0) ? mirror.myBytesPerSecond : Math.max(best, 1);
+			final double score = (mirror.myActive + 1) / rate;
+			if (score < chosenScore) {
+				chosen = mirror;
+				chosenScore = score;
+			}
+		}
+
+		chosen.myActive++;
+		return chosen;
+	}
+
+	/**
+	 * Report how an attempt went.
+	 *
+	 * @param mirror mirror returned by {@link #acquire()}
+	 * @param bytes bytes received during the attempt
+	 * @param nanos length of the attempt
+	 * @param failure why the attempt failed, or null if it succeeded
+	 * @param permanent true if the failure will not go away by asking the same mirror again
+	 * @return true if the mirror was dropped and the attempt should move to another one
+	 */
+	public synchronized boolean release(final Mirror mirror, final long bytes, final long nanos,
+			final IOException failure, final boolean permanent) {
+		mirror.myActive--;
+		if (bytes > 0 && nanos > 0) {
+			final double sample = bytes * NANO_OFFSET / nanos;
+			mirror.myBytesPerSecond = (mirror.myBytesPerSecond > 0) ? EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT)
+					* mirror.myBytesPerSecond : sample;
+		}
+
+		String reason = null;
+		if (null == failure) {
+			mirror.myFailures = 0;
+		} else {
+			mirror.myFailures = permanent ? MAX_FAILURES : mirror.myFailures + 1;
+			if (mirror.myFailures >= MAX_FAILURES) {
+				reason = failure.getMessage();
+			}
+		}
+
+		double best = 0;
+		for (final Mirror other : myMirrors) {
+			if (!other.myDropped) {
+				best = Math.max(best, other.myBytesPerSecond);
+			}
+		}
+		if (null == reason && mirror.myBytesPerSecond > 0 && mirror.myBytesPerSecond < best * STALL_FRACTION) {
+			reason = "stalled at " + (long) mirror.myBytesPerSecond + " bytes/s";
+		}
+
+		if (null == reason || mirror.myDropped || getHealthyCount() < 2) {
+			return false;
+		}
+
+		mirror.myDropped = true;
+		System.err.println("Dropping mirror " + mirror.getURL() + ":  " + reason);
+		return true;
+	}
+
+	/**
+	 * @return number of mirrors not dropped
+	 */
+	public synchronized int getHealthyCount() {
+		int healthy = 0;
+		for (final Mirror mirror : myMirrors) {
+			if (!mirror.myDropped) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * One copy of the file. Its statistics are guarded by the owning {@link MirrorSet}.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public static final class Mirror {
+
+		/** URL of this copy. */
+		private final URL myURL;
+
+		/** Average throughput of one connection, or 0 before the first sample. */
+		private double myBytesPerSecond;
+
+		/** Attempts in progress. */
+		private int myActive;
+
+		/** Failures in a row. */
+		private int myFailures;
+
+		/** Whether this mirror no longer gets work. */
+		private boolean myDropped;
+
+		/** Address of the server, resolved on first use. */
+		private InetSocketAddress myAddress;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param url URL of this copy
+		 * @throws MalformedURLException if the URL cannot be parsed
+		 */
+		Mirror(final String url) throws MalformedURLException {
+			myURL = new URL(url);
+		}
+
+		/**
+		 * @return URL of this copy
+		 */
+		public String getURL() {
+			return myURL.toString();
+		}
+
+		/**
+		 * @return URL of this copy
+		 */
+		public URL toURL() {
+			return myURL;
+		}
+
+		/**
+		 * @return resolved address of the server
+		 * @throws UnknownHostException if the host name cannot be resolved
+		 */
+		public synchronized InetSocketAddress getAddress() throws UnknownHostException {
+			if (null == myAddress) {
+				final InetSocketAddress address = new InetSocketAddress(myURL.getHost(), (-1 == myURL.getPort())
+						? myURL.getDefaultPort() : myURL.getPort());
+				if (address.isUnresolved()) {
+					throw new UnknownHostException(myURL.getHost());
+				}
+				myAddress = address;
+			}
+			return myAddress;
+		}
+	}
+}
@@ -0,0 +1,750 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpStatus;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * The non-blocking counterpart of a {@link SegmentWorker}: one HTTP/1.1 connection driven by a {@link NioEngine}
+ * event loop that keeps pulling segments from the scheduler until none are left.
+ *
+ * Each segment is fetched with a range request on the same keep-alive connection. Received bytes collect in a
+ * pooled direct buffer and go straight to their file position whenever it fills, without passing through the heap.
+ * Failures are retried like {@link SegmentWorker} does, except that the backoff is a timer on the event loop instead
+ * of a sleeping thread. Each segment goes to the mirror the {@link MirrorSet} picks, reconnecting when that is not
+ * the one the socket is open to. Only plain <code>http</code> with a <code>Content-Length</code> body is spoken.
+ * Reads count against the {@link RateLimits} of the mirror's host and of the download; when a cap is reached the
+ * socket simply stops being read until the wait is over, so the event loop never blocks.
+ *
+ * The connection is its own {@link Future}: it adds itself to the completion queue when it stops.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class NioConnection implements Future<Long> {
+
+	/** Default connect timeout in milliseconds. */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default read timeout in milliseconds. */
+	private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** Connect timeout in nanoseconds. */
+	private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger(
+			"paralleldownloader.connectTimeout", DEFAULT_CONNECT_TIMEOUT).intValue());
+
+	/** Read timeout in nanoseconds. */
+	private static final long READ_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger(
+			"paralleldownloader.readTimeout", DEFAULT_READ_TIMEOUT).intValue());
+
+	/** Waiting for the retry delay to pass. */
+	private static final int STATE_WAITING = 0;
+
+	/** Waiting for the TCP connection. */
+	private static final int STATE_CONNECTING = 1;
+
+	/** Writing the request. */
+	private static final int STATE_SENDING = 2;
+
+	/** Reading the status line and headers. */
+	private static final int STATE_HEADERS = 3;
+
+	/** Reading the body. */
+	private static final int STATE_BODY = 4;
+
+	/** Stopped. */
+	private static final int STATE_DONE = 5;
+
+	/** Source of segments. */
+	private final SegmentScheduler myScheduler;
+
+	/** Copies of the remote file. */
+	private final MirrorSet myMirrors;
+
+	/** Destination file. */
+	private final FileChannel myChannel;
+
+	/** Progress tracker. */
+	private final DownloadProgress myProgress;
+
+	/** Resume journal. */
+	private final DownloadJournal myJournal;
+
+	/** Retry policy for failed requests. */
+	private final RetryPolicy myRetryPolicy;
+
+	/** Decides whether this connection keeps running. */
+	private final ConnectionController myController;
+
+	/** The download's own bandwidth cap, or null for none. */
+	private final RateLimiter myRateLimiter;
+
+	/** Queue this connection is added to when it stops. */
+	private final BlockingQueue<Future<Long>> myFinished;
+
+	/** Released once this connection has stopped. */
+	private final CountDownLatch myDone = new CountDownLatch(1);
+
+	/** Mirror of the current attempt and of the open socket. */
+	private MirrorSet.Mirror myMirror;
+
+	/** Whether the current attempt still has to be reported to the mirror set. */
+	private boolean myMirrorHeld;
+
+	/** When the current attempt started. */
+	private long myAttemptNanos;
+
+	/** When the current request was sent. */
+	private long myRequestNanos;
+
+	/** Bandwidth caps of the current attempt. */
+	private RateLimits.Throttle myThrottle = RateLimits.Throttle.NONE;
+
+	/** Whether the socket is ignored until a bandwidth cap lets it be read again. */
+	private boolean myThrottled;
+
+	/** Operations the socket was waiting for when it was throttled. */
+	private int myThrottledOps;
+
+	/** Selector of the event loop running this connection. */
+	private Selector mySelector;
+
+	/** Socket to the server, or null between connections. */
+	private SocketChannel mySocket;
+
+	/** Registration of the socket with the selector. */
+	private SelectionKey myKey;
+
+	/** Receives the headers and then the body, borrowed from the {@link BufferPool}. */
+	private ByteBuffer myBuffer;
+
+	/** Request being written. */
+	private ByteBuffer myRequest;
+
+	/** One of the <code>STATE_</code> constants. */
+	private int myState = STATE_WAITING;
+
+	/** Segment being downloaded, or null between segments. */
+	private Segment mySegment;
+
+	/** Position of the segment when the current attempt started. */
+	private long myAttemptStart;
+
+	/** Failed attempts at the current segment without any progress. */
+	private int myAttempts;
+
+	/** Body bytes not yet read from the socket. */
+	private long myBodyRemaining;
+
+	/** Whether the server lets the connection be reused after this response. */
+	private boolean myKeepAlive;
+
+	/** Where the search for the end of the headers resumes. */
+	private int myHeaderScan;
+
+	/** Time of the last I/O, or when the retry delay or the throttling ends. */
+	private long myLastActivity;
+
+	/** Whether the controller has already taken this connection off the count. */
+	private boolean myRetired;
+
+	/** Bytes of completed segments. */
+	private long myWritten;
+
+	/** Why this connection stopped, or null if it ran out of work. */
+	private volatile Exception myFailure;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param scheduler source of segments
+	 * @param mirrors copies of the remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker
+	 * @param journal resume journal
+	 * @param retryPolicy retry policy for failed requests
+	 * @param controller decides whether this connection keeps running
+	 * @param rateLimiter the download's own bandwidth cap, or null for none
+	 * @param finished queue this connection is added to when it stops
+	 */
+	public NioConnection(final SegmentScheduler scheduler, final MirrorSet mirrors, final FileChannel channel,
+			final DownloadProgress progress, final DownloadJournal journal, final RetryPolicy retryPolicy,
+			final ConnectionController controller, final RateLimiter rateLimiter,
+			final BlockingQueue<Future<Long>> finished) {
+		myScheduler = scheduler;
+		myMirrors = mirrors;
+		myChannel = channel;
+		myProgress = progress;
+		myJournal = journal;
+		myRetryPolicy = retryPolicy;
+		myController = controller;
+		myRateLimiter = rateLimiter;
+		myFinished = finished;
+	}
+
+	/**
+	 * Start pulling segments. Called on the event loop thread.
+	 *
+	 * @param selector selector of the event loop
+	 */
+	void begin(final Selector selector) {
+		mySelector = selector;
+		myBuffer = BufferPool.getInstance().acquire(true);
+		EngineMetrics.getInstance().connectionStarted();
+		try {
+			next();
+		} catch (final IOException ex) {
+			failed(ex);
+		} catch (final RuntimeException ex) {
+			finish(ex);
+		}
+	}
+
+	/**
+	 * The socket is ready for the operation this connection is waiting for. Called on the event loop thread.
+	 *
+	 * @param key selection key of the socket
+	 */
+	void ready(final SelectionKey key) {
+		try {
+			if (STATE_CONNECTING == myState && key.isConnectable()) {
+				if (mySocket.finishConnect()) {
+					sendRequest();
+				}
+			} else if (STATE_SENDING == myState && key.isWritable()) {
+				writeRequest();
+			} else if ((STATE_HEADERS == myState || STATE_BODY == myState) && key.isReadable()) {
+				read();
+			}
+		} catch (final IOException ex) {
+			failed(ex);
+		} catch (final RuntimeException ex) {
+			finish(ex);
+		}
+	}
+
+	/**
+	 * Retry when the backoff has passed, resume reading when throttling ends, give up on a stalled connection and
+	 * stop once the download is abandoned. Called on the event loop thread.
+	 *
+	 * @param now current <code>System.nanoTime()</code>
+	 */
+	void tick(final long now) {
+		try {
+			if (myScheduler.isCancelled()) {
+				// the supervisor waits for every connection before it closes the destination
+				finish(new IOException("Download abandoned during " + mySegment));
+			} else if (myThrottled) {
+				if (now - myLastActivity >= 0) {
+					myThrottled = false;
+					myLastActivity = now;
+					myKey.interestOps(myThrottledOps);
+				}
+			} else if (STATE_WAITING == myState && null != mySegment && now - myLastActivity >= 0) {
+				acquireMirror();
+				connect();
+			} else if (STATE_CONNECTING == myState && now - myLastActivity > CONNECT_TIMEOUT_NANOS) {
+				throw new SocketTimeoutException("Connect timed out for " + mySegment);
+			} else if (STATE_DONE != myState && STATE_WAITING != myState
+					&& now - myLastActivity > READ_TIMEOUT_NANOS) {
+				throw new SocketTimeoutException("Read timed out for " + mySegment);
+			}
+		} catch (final IOException ex) {
+			failed(ex);
+		} catch (final RuntimeException ex) {
+			finish(ex);
+		}
+	}
+
+	/**
+	 * @return <code>System.nanoTime()</code> when this connection next needs {@link #tick(long)}
+	 */
+	long getWakeAt() {
+		return (myThrottled || (STATE_WAITING == myState && null != mySegment)) ? myLastActivity : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Take the next segment, reusing the socket if it is still open.
+	 *
+	 * @throws IOException if the request cannot be started
+	 */
+	private void next() throws IOException {
+		if (!myController.admit()) {
+			myRetired = true;
+			finish(null);
+			return;
+		}
+
+		mySegment = myScheduler.next();
+		if (null == mySegment) {
+			finish(null);
+			return;
+		}
+
+		myAttempts = 0;
+		acquireMirror();
+		if (null != mySocket) {
+			sendRequest();
+		} else {
+			connect();
+		}
+	}
+
+	/**
+	 * Start an attempt at the rest of the current segment on the mirror the mirror set picks.
+	 */
+	private void acquireMirror() {
+		final MirrorSet.Mirror mirror = myMirrors.acquire();
+		if (mirror != myMirror) {
+			closeSocket();
+		}
+		myMirror = mirror;
+		myMirrorHeld = true;
+		myThrottle = RateLimits.getInstance().throttle(myRateLimiter, mirror.toURL().getHost());
+		myAttemptStart = mySegment.getPosition();
+		myAttemptNanos = System.nanoTime();
+	}
+
+	/**
+	 * Report the current attempt to the mirror set.
+	 *
+	 * @param failure why the attempt failed, or null if it succeeded
+	 * @return true if the mirror was dropped
+	 */
+	private boolean releaseMirror(final IOException failure) {
+		if (!myMirrorHeld) {
+			return false;
+		}
+
+		myMirrorHeld = false;
+		final long bytes = (null == mySegment) ? 0 : mySegment.getPosition() - myAttemptStart;
+		final long nanos = System.nanoTime() - myAttemptNanos;
+		EngineMetrics.getInstance().requestFinished(myMirror.toURL().getAuthority(), bytes, nanos, failure);
+		return myMirrors.release(myMirror, bytes, nanos, failure, null != failure && !myRetryPolicy.isTransient(
+				failure));
+	}
+
+	/**
+	 * Open a new connection to the server.
+	 *
+	 * @throws IOException if the connection cannot be started
+	 */
+	private void connect() throws IOException {
+		mySocket = SocketChannel.open();
+		mySocket.configureBlocking(false);
+		mySocket.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		myKey = mySocket.register(mySelector, 0, this);
+		myLastActivity = System.nanoTime();
+
+		if (mySocket.connect(myMirror.getAddress())) {
+			sendRequest();
+		} else {
+			myState = STATE_CONNECTING;
+			myKey.interestOps(SelectionKey.OP_CONNECT);
+		}
+	}
+
+	/**
+	 * Start writing the range request for the rest of the current segment.
+	 *
+	 * @throws IOException if the socket fails
+	 */
+	private void sendRequest() throws IOException {
+		final URL url = myMirror.toURL();
+		final String path = url.getFile().isEmpty() ? "/" : url.getFile();
+		final String host = (-1 == url.getPort()) ? url.getHost() : url.getHost() + ":" + url.getPort();
+		final String request = "GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nRange: bytes="
+				+ mySegment.getPosition() + "-" + mySegment.getEnd() + "\r\nUser-Agent: ParallelDownloader\r\n\r\n";
+
+		myRequest = ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+		myRequestNanos = System.nanoTime();
+		myState = STATE_SENDING;
+		writeRequest();
+	}
+
+	/**
+	 * Write as much of the request as the socket takes.
+	 *
+	 * @throws IOException if the socket fails
+	 */
+	private void writeRequest() throws IOException {
+		mySocket.write(myRequest);
+		myLastActivity = System.nanoTime();
+		if (myRequest.hasRemaining()) {
+			myKey.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		myBuffer.clear();
+		myHeaderScan = 0;
+		myState = STATE_HEADERS;
+		myKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Read whatever the socket has.
+	 *
+	 * @throws IOException if the socket fails, the response is unusable or the server ended it early
+	 */
+	private void read() throws IOException {
+		final int received;
+		if (STATE_HEADERS == myState) {
+			if (-1 == mySocket.read(myBuffer)) {
+				throw new IOException("Connection closed before the response for " + mySegment);
+			}
+			myLastActivity = System.nanoTime();
+
+			final int headerEnd = findHeaderEnd();
+			if (headerEnd < 0) {
+				if (!myBuffer.hasRemaining()) {
+					throw new IOException("Response headers too large for " + mySegment);
+				}
+				return;
+			}
+			parseHeaders(headerEnd);
+			EngineMetrics.getInstance().firstByte(myMirror.toURL().getAuthority(), myLastActivity
+					- myRequestNanos);
+
+			// keep the body bytes that arrived with the headers
+			myBuffer.flip();
+			myBuffer.position(headerEnd);
+			myBuffer.compact();
+			if (myBuffer.position() > myBodyRemaining) {
+				myBuffer.position((int) myBodyRemaining);
+			}
+			received = myBuffer.position();
+			myBodyRemaining -= received;
+			myState = STATE_BODY;
+		} else {
+			// never read past the end of this response
+			myBuffer.limit((int) Math.min(myBuffer.capacity(), myBuffer.position() + myBodyRemaining));
+			final int bytesRead = mySocket.read(myBuffer);
+			if (-1 == bytesRead) {
+				flush();
+				closeSocket();
+				if (mySegment.isComplete()) {
+					completeSegment();
+					return;
+				}
+				throw new IOException("Short read - connection closed early for " + mySegment);
+			}
+			myLastActivity = System.nanoTime();
+			myBodyRemaining -= bytesRead;
+			myBuffer.limit(myBuffer.capacity());
+			received = bytesRead;
+		}
+
+		// charge the caps of the attempt that read the bytes, before a completed segment moves on
+		myProgress.received(received);
+		final long wait = myThrottle.reserve(received);
+
+		// write once the buffer is full - a single read often returns only a packet or two
+		if (myBuffer.position() == myBuffer.capacity() || 0 == myBodyRemaining) {
+			flush();
+			if (mySegment.isComplete()) {
+				// the rest of the response belongs to whoever stole our tail
+				final boolean reusable = myKeepAlive && 0 == myBodyRemaining;
+				if (!reusable) {
+					closeSocket();
+				}
+				completeSegment();
+			} else if (0 == myBodyRemaining) {
+				throw new IOException("Short read - connection closed early for " + mySegment);
+			}
+		}
+
+		if (wait > 0) {
+			pause(wait);
+		}
+	}
+
+	/**
+	 * Stop watching the socket until a bandwidth cap lets it be read again.
+	 *
+	 * @param nanos how long to wait
+	 */
+	private void pause(final long nanos) {
+		if (null == myKey || STATE_DONE == myState) {
+			return;
+		}
+
+		myThrottled = true;
+		myThrottledOps = myKey.interestOps();
+		myKey.interestOps(0);
+		myLastActivity = System.nanoTime() + nanos;
+	}
+
+	/**
+	 * Write the buffered body bytes at their file position, never past the (possibly shortened) end of the segment.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	private void flush() throws IOException {
+		final int filled = myBuffer.position();
+		if (0 == filled) {
+			return;
+		}
+
+		final long position = mySegment.getPosition();
+		final int length = mySegment.claim(filled);
+		myBuffer.flip();
+		myBuffer.limit(length);
+		while (myBuffer.hasRemaining()) {
+			myChannel.write(myBuffer, position + myBuffer.position());
+		}
+		myBuffer.clear();
+
+		myProgress.add(position, length);
+		EngineMetrics.getInstance().bytesWritten(length);
+	}
+
+	/**
+	 * @return offset just past the blank line ending the headers, or -1 if it has not arrived yet
+	 */
+	private int findHeaderEnd() {
+		final int end = myBuffer.position();
+		for (int i = Math.max(0, myHeaderScan - 3); i + 3 < end; i++) {
+			if ('\r' == myBuffer.get(i) && '\n' == myBuffer.get(i + 1) && '\r' == myBuffer.get(i + 2)
+					&& '\n' == myBuffer.get(i + 3)) {
+				return i + 4;
+			}
+		}
+		myHeaderScan = end;
+		return -1;
+	}
+
+	/**
+	 * Check the status and pick up the body length and keep-alive from the headers.
+	 *
+	 * @param headerEnd offset just past the headers in the buffer
+	 * @throws IOException if the response cannot be used
+	 */
+	private void parseHeaders(final int headerEnd) throws IOException {
+		final byte[] bytes = new byte[headerEnd];
+		for (int i = 0; i < headerEnd; i++) {
+			bytes[i] = myBuffer.get(i);
+		}
+		final String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+
+		final String statusLine = lines[0];
+		final String[] status = statusLine.split(" ", 3);
+		int statusCode = -1;
+		if (status.length > 1) {
+			try {
+				statusCode = Integer.parseInt(status[1]);
+			} catch (final NumberFormatException ex) {
+				statusCode = -1;
+			}
+		}
+		if (statusCode < 0) {
+			throw new IOException("Malformed status line \"" + statusLine + "\" for " + mySegment);
+		}
+
+		// a server ignoring the range is only usable when we wanted the start of the file anyway
+		final boolean wholeFile = statusCode == HttpStatus.SC_OK && mySegment.getPosition() == 0;
+		if (statusCode != HttpStatus.SC_PARTIAL_CONTENT && !wholeFile) {
+			throw new HttpResponseException(statusCode, "Unexpected response " + statusLine + " for " + mySegment);
+		}
+
+		myKeepAlive = !"HTTP/1.0".equals(status[0]);
+		myBodyRemaining = -1;
+		for (int i = 1; i < lines.length; i++) {
+			final int colon = lines[i].indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			final String name = lines[i].substring(0, colon).trim();
+			final String value = lines[i].substring(colon + 1).trim();
+
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				try {
+					myBodyRemaining = Long.parseLong(value);
+				} catch (final NumberFormatException ex) {
+					myBodyRemaining = -1;
+				}
+				if (myBodyRemaining < 0) {
+					throw new IOException("Malformed Content-Length \"" + value + "\" for " + mySegment);
+				}
+			} else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+				throw new IOException("Transfer-Encoding " + value + " is not supported for " + mySegment);
+			} else if ("Connection".equalsIgnoreCase(name)) {
+				myKeepAlive = "keep-alive".equalsIgnoreCase(value);
+			}
+		}
+
+		if (myBodyRemaining < 0) {
+			throw new IOException("Response without Content-Length for " + mySegment);
+		}
+	}
+
+	/**
+	 * Record the finished segment and move on to the next one.
+	 *
+	 * @throws IOException if the journal cannot be written or the next request cannot be started
+	 */
+	private void completeSegment() throws IOException {
+		releaseMirror(null);
+		MappedFileChannel.sync(myChannel, mySegment);
+		myScheduler.complete(mySegment);
+		if (!myScheduler.isJournaledByVerifier()) {
+			myJournal.complete(mySegment.getStart(), mySegment.getEnd());
+		}
+		myWritten += mySegment.getEnd() - mySegment.getStart() + 1;
+		mySegment = null;
+		next();
+	}
+
+	/**
+	 * Drop the connection and either schedule a retry of the rest of the segment or give up.
+	 *
+	 * @param ex why the attempt failed
+	 */
+	private void failed(final IOException ex) {
+		closeSocket();
+		if (null == mySegment || STATE_DONE == myState) {
+			finish(ex);
+			return;
+		}
+
+		if (releaseMirror(ex) && !myScheduler.isCancelled()) {
+			// the rest of the segment moves to a healthy mirror right away
+			myAttempts = 0;
+			myState = STATE_WAITING;
+			myLastActivity = System.nanoTime();
+			return;
+		}
+
+		// only count failures that made no headway at all
+		if (mySegment.getPosition() > myAttemptStart) {
+			myAttempts = 0;
+		}
+		myAttempts++;
+
+		if (ex instanceof HttpResponseException) {
+			final int status = ((HttpResponseException) ex).getStatusCode();
+			if (status == RetryPolicy.SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+				myController.reportThrottled();
+			}
+		}
+
+		if (myScheduler.isCancelled() || !myRetryPolicy.shouldRetry(myAttempts, ex)) {
+			finish(ex);
+			return;
+		}
+
+		final long delay = myRetryPolicy.getDelay(myAttempts);
+		System.err.println("Retrying " + mySegment + " in " + delay + " ms:  " + ex.getMessage());
+		EngineMetrics.getInstance().retryScheduled(myMirror.toURL().getAuthority(), ex);
+		myState = STATE_WAITING;
+		myLastActivity = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+	}
+
+	/**
+	 * Close the socket, if open.
+	 */
+	private void closeSocket() {
+		if (null == mySocket) {
+			return;
+		}
+
+		try {
+			mySocket.close();
+		} catch (final IOException ex) {
+			// nothing left to do with it
+		}
+		mySocket = null;
+		myKey = null;
+		myThrottled = false;
+		if (STATE_DONE != myState) {
+			myState = STATE_WAITING;
+		}
+	}
+
+	/**
+	 * Stop for good and report to the completion queue.
+	 *
+	 * @param failure why this connection stopped, or null if it ran out of work
+	 */
+	private void finish(final Exception failure) {
+		if (STATE_DONE == myState) {
+			return;
+		}
+
+		closeSocket();
+		releaseMirror(null);
+		myState = STATE_DONE;
+		mySegment = null;
+		BufferPool.getInstance().release(myBuffer);
+
+		// a retired connection has already been taken off the count
+		if (!myRetired) {
+			myController.release();
+		}
+
+		EngineMetrics.getInstance().connectionStopped();
+		myFailure = failure;
+		myDone.countDown();
+		myFinished.add(this);
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return 0 == myDone.getCount();
+	}
+
+	@Override
+	public Long get() throws InterruptedException, ExecutionException {
+		myDone.await();
+		return result();
+	}
+
+	@Override
+	public Long get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (!myDone.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	/**
+	 * @return bytes of completed segments
+	 * @throws ExecutionException if the connection failed
+	 */
+	private Long result() throws ExecutionException {
+		if (null != myFailure) {
+			throw new ExecutionException(myFailure);
+		}
+		return Long.valueOf(myWritten);
+	}
+}
@@ -0,0 +1,166 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the HttpClient workers: a few event-loop threads, each with its own selector, multiplex
+ * every {@link NioConnection} of every download.
+ *
+ * The number of loops defaults to 2 and can be set with <code>paralleldownloader.nio.threads</code>. A connection
+ * stays on the loop it was started on for its whole life, so its state is only ever touched by one thread.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class NioEngine {
+
+	/** Singleton instance. */
+	private static volatile NioEngine instance;
+
+	/** Default number of event loops. */
+	private static final int DEFAULT_THREADS = 2;
+
+	/** Longest a loop sleeps before checking timers, in milliseconds. */
+	private static final long TICK_MILLIS = 100;
+
+	/** Event loops. */
+	private final EventLoop[] myLoops;
+
+	/** Picks the loop for the next connection. */
+	private final AtomicInteger myNext = new AtomicInteger();
+
+	/**
+	 * @return Singleton instance, started on first use.
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public static NioEngine getInstance() throws IOException {
+		if (null == instance) {
+			synchronized (NioEngine.class) {
+				if (null == instance) {
+					instance = new NioEngine();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Hand a connection to one of the event loops. It reports to its own completion queue when it is done.
+	 *
+	 * @param connection connection to run
+	 */
+	public void start(final NioConnection connection) {
+		final int index = (myNext.getAndIncrement() & Integer.MAX_VALUE) % myLoops.length;
+		myLoops[index].add(connection);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @throws IOException if a selector cannot be opened
+	 */
+	private NioEngine() throws IOException {
+		myLoops = new EventLoop[Math.max(1, Integer.getInteger("paralleldownloader.nio.threads", DEFAULT_THREADS)
+				.intValue())];
+		for (int i = 0; i < myLoops.length; i++) {
+			myLoops[i] = new EventLoop(Selector.open());
+			final Thread thread = new Thread(myLoops[i], "NioEngine-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * One selector thread and the connections registered with it.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	private static final class EventLoop implements Runnable {
+
+		/** Selector of this loop. */
+		private final Selector mySelector;
+
+		/** Connections handed over by other threads and not yet started. */
+		private final ConcurrentLinkedQueue<NioConnection> myIncoming = new ConcurrentLinkedQueue<NioConnection>();
+
+		/** Connections running on this loop, only touched by the loop thread. */
+		private final List<NioConnection> myConnections = new ArrayList<NioConnection>();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param selector selector of this loop
+		 */
+		EventLoop(final Selector selector) {
+			mySelector = selector;
+		}
+
+		/**
+		 * @param connection connection to start on this loop
+		 */
+		void add(final NioConnection connection) {
+			myIncoming.add(connection);
+			mySelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				NioConnection incoming;
+				while (null != (incoming = myIncoming.poll())) {
+					myConnections.add(incoming);
+					incoming.begin(mySelector);
+				}
+
+				// fire retry timers and time out stalled connections, and sleep no longer than the next timer
+				final long now = System.nanoTime();
+				long wakeAt = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+				for (final NioConnection connection : myConnections) {
+					connection.tick(now);
+					wakeAt = Math.min(wakeAt, connection.getWakeAt());
+				}
+				removeFinished();
+
+				try {
+					mySelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeAt - now)));
+				} catch (final IOException ex) {
+					System.err.println("Selector failed:  " + ex.getMessage());
+					continue;
+				}
+
+				final Iterator<SelectionKey> keys = mySelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((NioConnection) key.attachment()).ready(key);
+					}
+				}
+				removeFinished();
+			}
+		}
+
+		/**
+		 * Forget connections that have finished.
+		 */
+		private void removeFinished() {
+			final Iterator<NioConnection> connections = myConnections.iterator();
+			while (connections.hasNext()) {
+				if (connections.next().isDone()) {
+					connections.remove();
+				}
+			}
+		}
+	}
+}
@@ -1,21 +1,22 @@
 package com.marcschweikert;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 
 import java.net.URL;
-import java.net.URLConnection;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
 
-import java.util.concurrent.Callable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,92 +27,594 @@ import java.util.concurrent.TimeUnit;
  */
 public final class ParallelDownloader {
 
+	/** Smallest segment handed to a connection worker. */
+	private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Number of segments queued per connection before any stealing is needed. */
+	private static final int SEGMENTS_PER_CONNECTION = 8;
+
+	/** How often the connection count is reviewed, in milliseconds. */
+	private static final long SAMPLE_MILLIS = 250;
+
+	/** Longest a download may go without receiving a byte before it is stopped, in seconds. */
+	private static final long STALL_SECONDS = 300;
+
 	/**
-	 * Download the file.
+	 * Download the file. If a previous attempt at the same remote file was interrupted, only the ranges its journal
+	 * does not list as finished are downloaded again.
 	 * 
 	 * @param urlString remote file to download
 	 * @param destinationFile local file to store
-	 * @param numChunks Number of parallel chunks to download
+	 * @param numChunks Number of parallel connections to download with
 	 * @throws InterruptedException Thread interrupted
 	 * @throws ExecutionException Thread exception
 	 * @throws IOException Cannot open URL
 	 */
 	public static final void download(final String urlString, final String destinationFile, final int numChunks)
 			throws InterruptedException, ExecutionException, IOException {
-		// let's calculate the file size
+		download(urlString, destinationFile, numChunks, false);
+	}
+
+	/**
+	 * Download the file, optionally letting the number of connections follow the measured throughput.
+	 * 
+	 * @param urlString remote file to download
+	 * @param destinationFile local file to store
+	 * @param numChunks Number of parallel connections to download with, and number of progress bars to report
+	 * @param adaptive true to start with a few connections and add more while throughput keeps improving
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 * @throws IOException Cannot open URL
+	 */
+	public static final void download(final String urlString, final String destinationFile, final int numChunks,
+			final boolean adaptive) throws InterruptedException, ExecutionException, IOException {
+		final int connections = adaptive ? ConnectionController.DEFAULT_MAX_ADAPTIVE_CONNECTIONS : numChunks;
+		download(new DownloadRequest.Builder(urlString, destinationFile).connections(connections).adaptive(adaptive)
+				.progressRegions(numChunks).build());
+	}
+
+	/**
+	 * Download the file described by a request, reporting to its listener. A request with a {@link DownloadCache} is
+	 * served from it while the cached copy is current.
+	 * 
+	 * @param request what to download and how
+	 * @return the file written
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 * @throws IOException Cannot open URL
+	 */
+	public static final File download(final DownloadRequest request) throws InterruptedException,
+			ExecutionException, IOException {
+		return download(request, null);
+	}
+
+	/**
+	 * Start downloading the file described by a request and return its bytes in file order as they arrive. The
+	 * download runs on a thread of its own and is still written to the request's destination; closing the stream
+	 * before the end abandons it, leaving the journal for a later resume.
+	 * 
+	 * @param request what to download and how
+	 * @return the file's bytes, blocking until the next ones are on disk
+	 */
+	public static final DownloadStream stream(final DownloadRequest request) {
+		final DownloadStream stream = new DownloadStream();
+		WorkerThreads.getInstance().newThreadFactory("DownloadStream-").newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					download(request, stream);
+					stream.finished();
+				} catch (final IOException ex) {
+					stream.failed(ex);
+				} catch (final ExecutionException ex) {
+					stream.failed(new IOException(ex.getCause()));
+				} catch (final InterruptedException ex) {
+					stream.failed(new IOException("Download interrupted", ex));
+				} catch (final RuntimeException ex) {
+					stream.failed(new IOException(ex));
+				}
+			}
+		}).start();
+		return stream;
+	}
+
+	/**
+	 * Start downloading an archive and unpack it into a directory on another thread as its bytes arrive, so the
+	 * download and the extraction overlap. The archive itself is still written to the request's destination.
+	 * 
+	 * @param request what to download and how
+	 * @param directory directory to extract into
+	 * @return the directory once extracted; fails if either the download or the extraction does
+	 * @throws IOException if the remote file is not an archive {@link ArchiveExtractor} can extract
+	 */
+	public static final Future<File> extract(final DownloadRequest request, final File directory)
+			throws IOException {
+		final String path = new URL(request.getURL()).getPath();
+		final ArchiveExtractor.Format format = ArchiveExtractor.detect(path);
+		final FutureTask<File> extraction = new FutureTask<File>(new ArchiveExtractor(stream(request), format,
+				directory, path));
+		WorkerThreads.getInstance().newThreadFactory("ArchiveExtractor-").newThread(extraction).start();
+		return extraction;
+	}
+
+	/**
+	 * Download the file described by a request, reporting to its listener and optionally to a stream.
+	 * 
+	 * @param request what to download and how
+	 * @param stream stream to pass the bytes to as they land, or null
+	 * @return the file written
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 * @throws IOException Cannot open URL
+	 */
+	private static File download(final DownloadRequest request, final DownloadStream stream)
+			throws InterruptedException, ExecutionException, IOException {
+		final DownloadListener listener = request.getListener();
+		try {
+			final File file = transfer(request, stream);
+			listener.downloadCompleted(file, file.length());
+			return file;
+		} catch (final InterruptedException ex) {
+			listener.downloadFailed(request.getURL(), ex);
+			throw ex;
+		} catch (final ExecutionException ex) {
+			listener.downloadFailed(request.getURL(), ex);
+			throw ex;
+		} catch (final IOException ex) {
+			listener.downloadFailed(request.getURL(), ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Run the transfer itself.
+	 * 
+	 * @param request what to download and how
+	 * @param stream stream to pass the bytes to as they land, or null
+	 * @return the file written
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 * @throws IOException Cannot open URL
+	 */
+	private static File transfer(final DownloadRequest request, final DownloadStream stream)
+			throws InterruptedException, ExecutionException, IOException {
+		final String urlString = request.getURL();
+		final String destinationFile = request.getDestination();
+
+		// if they just selected a folder call the new file output
+		// and put it in that folder
+		final File file = new File(destinationFile);
+		String destFile = destinationFile;
+		if (file.isDirectory()) {
+			destFile += "/" + urlString.substring(urlString.lastIndexOf('/'));
+		}
+
+		final DownloadCache cache = request.getCache();
+		final DownloadCache.Entry cached = (null == cache) ? null : cache.lookup(urlString);
+
+		// the first request already fetches the start of the file, unless a journal or an older copy may have it
+		final File journalFile = DownloadJournal.fileFor(new File(destFile));
+		final boolean haveStart = journalFile.isFile() || null != request.getDeltaSource();
+
+		// the first request takes a connection like any worker, so it waits for room in the budget too
 		final URL sourceURL = new URL(urlString);
-		final URLConnection urlConnection = sourceURL.openConnection();
-		final int fileSize = urlConnection.getContentLength();
+		final String host = sourceURL.getHost() + ":" + sourceURL.getPort();
+		while (!request.getBudget().tryAcquire(host)) {
+			Thread.sleep(SAMPLE_MILLIS);
+		}
+		try (final RemoteFile remote = RemoteFile.probe(urlString, haveStart ? 0 : MIN_SEGMENT_SIZE, cached, request
+				.getBudget(), host)) {
+			return transfer(request, stream, destFile, cached, remote);
+		}
+	}
+
+	/**
+	 * Run the transfer once the first response is in.
+	 * 
+	 * @param request what to download and how
+	 * @param stream stream to pass the bytes to as they land, or null
+	 * @param destFile destination file
+	 * @param cached cached copy of the file, or null
+	 * @param remote first response, possibly delivering the start of the file
+	 * @return the file written
+	 * @throws InterruptedException Thread interrupted
+	 * @throws ExecutionException Thread exception
+	 * @throws IOException Cannot open URL
+	 */
+	private static File transfer(final DownloadRequest request, final DownloadStream stream, final String destFile,
+			final DownloadCache.Entry cached, final RemoteFile remote) throws InterruptedException,
+			ExecutionException, IOException {
+		final String urlString = request.getURL();
+		final DownloadCache cache = request.getCache();
+		final boolean notModified = remote.isNotModified();
+		// only a conditional request offering a cached copy can be answered with 304
+		if (notModified && null == cached) {
+			throw new IOException("Unexpected response 304 Not Modified for " + urlString + " without a cached copy");
+		}
+		final long fileSize = notModified ? cached.getSize() : remote.getSize();
+		final String eTag = remote.getETag();
+		final String lastModified = remote.getLastModified();
+		final String[] headerDigest = remote.getDigest();
+
+		// a response of unknown length can only be read to its end
+		if (fileSize < 0 && remote.hasBody()) {
+			return transferUnsized(request, stream, destFile, remote);
+		}
 
 		// if the remote site returns a bad size then bail out
 		if (fileSize <= 0) {
 			throw new IOException("Invalid file size returned from remote " + "host:  " + fileSize);
 		}
 
-		final List<Callable<byte[]>> partitions = new ArrayList<Callable<byte[]>>();
+		request.getListener().downloadStarted(urlString, new File(destFile), fileSize);
+
+		final File journalFile = DownloadJournal.fileFor(new File(destFile));
+		if (!remote.acceptsRanges() && journalFile.isFile() && !journalFile.delete()) {
+			throw new IOException("Unable to delete journal " + journalFile);
+		}
+		if (null != cached && (notModified || cached.matches(eTag, fileSize))) {
+			// a journal left next to a link into the cache would resume into the cached bytes
+			if (journalFile.isFile() && !journalFile.delete()) {
+				throw new IOException("Unable to delete journal " + journalFile);
+			}
+			cache.retrieve(cached, new File(destFile));
+			if (null != stream) {
+				stream.open(new File(destFile), fileSize, null);
+				stream.completed(0, fileSize - 1);
+			}
+			return new File(destFile);
+		}
+
+		// a new file written over its old copy needs the old bytes moved out of the way first; without ranges the
+		// changed blocks cannot be requested on their own
+		File deltaSource = remote.acceptsRanges() ? request.getDeltaSource() : null;
+		final File movedSource = new File(destFile + ".old");
+		if (null != deltaSource && deltaSource.getCanonicalFile().equals(new File(destFile).getCanonicalFile())) {
+			if (!movedSource.isFile() && !deltaSource.renameTo(movedSource)) {
+				throw new IOException("Unable to move " + deltaSource + " to " + movedSource);
+			}
+			deltaSource = movedSource;
+		}
+
+		// a finished destination may be a link into a cache - replace it rather than write through it
+		if (!journalFile.isFile() && new File(destFile).isFile() && !new File(destFile).delete()) {
+			throw new IOException("Unable to replace " + destFile);
+		}
 
-		// create a partition for each thread in our thread pool
-		for (int i = 0; i < numChunks; i++) {
-			final int finalI = i;
-			final int start = (int) (Math.floor((double) fileSize / numChunks)) * finalI;
+		// preallocate the destination once so every chunk can be written
+		// at its own offset as soon as the bytes arrive
+		try (final RandomAccessFile raf = new RandomAccessFile(destFile, "rw");
+				final FileChannel channel = request.isMemoryMapped() ? new MappedFileChannel(raf.getChannel(),
+						fileSize) : raf.getChannel();
+				final DownloadJournal journal = new DownloadJournal(new File(destFile), channel, urlString, fileSize,
+						eTag, lastModified);) {
+			raf.setLength(fileSize);
+
+			// small files aren't worth more than one connection, and a server ignoring ranges only allows one
+			final int connections = (fileSize < request.getSingleConnectionThreshold() || !remote.acceptsRanges()) ? 1
+					: request.getConnections();
+
+			// cut the file into many small segments so fast connections can keep
+			// pulling work while a slow one finishes what it already has
+			// and, when streaming, small enough that every connection finds work inside the reader's window
+			long segmentSize = Math.max(MIN_SEGMENT_SIZE, fileSize / ((long) connections * SEGMENTS_PER_CONNECTION));
+			if (null != stream) {
+				segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(segmentSize, stream.getWindow()
+						/ (2L * connections)));
+			}
+			if (!remote.acceptsRanges()) {
+				segmentSize = fileSize;
+			}
+			// blocks an older copy still has are copied across, so only the changed ones are requested
+			if (null != deltaSource && 0 == journal.getCompletedBytes()) {
+				final BlockManifest manifest = request.getBlockManifest();
+				if (null == manifest || manifest.getFileSize() != fileSize) {
+					throw new IOException("A delta download needs a block manifest of the " + fileSize
+							+ " byte remote file");
+				}
+				for (final Segment range : DeltaPlan.scan(deltaSource, manifest).copyTo(channel)) {
+					journal.complete(range.getStart(), range.getEnd());
+				}
+				journal.checkpoint();
+			}
 
-			// if this is last chunk set end equal to file size,
-			// else just calculate end
-			final int end = (i == (numChunks - 1)) ? fileSize - 1 : (int) ((Math.floor((double) fileSize / numChunks))
-					* (finalI + 1) - 1);
+			// the whole file is one segment that must not be split if the server ignores ranges
+			final SegmentScheduler scheduler = new SegmentScheduler(journal.getMissingRanges(), segmentSize, remote
+					.acceptsRanges() ? MIN_SEGMENT_SIZE / 2 : fileSize);
+			final DownloadProgress progress = new DownloadProgress(fileSize, request.getProgressRegions());
+
+			// check the bytes as they land against whatever hashes we were given or the server sent
+			String digestAlgorithm = request.getDigestAlgorithm();
+			String digest = request.getDigest();
+			if (null == digest && null != headerDigest) {
+				digestAlgorithm = headerDigest[0];
+				digest = headerDigest[1];
+			}
+			IntegrityVerifier verifier = null;
+			if (null != digest || null != request.getBlockManifest()) {
+				verifier = new IntegrityVerifier(channel, fileSize, digestAlgorithm, digest, request
+						.getBlockManifest(), scheduler, progress);
+				scheduler.setVerifier(verifier);
+				verifier.setJournal(journal);
+			}
+			if (null != stream) {
+				scheduler.setStream(stream);
+				if (null != verifier) {
+					verifier.setStream(stream);
+				}
+				stream.open(new File(destFile), fileSize, scheduler);
+			}
+
+			// whatever a previous attempt left on disk is already done
+			for (final Segment range : journal.getCompletedRanges()) {
+				progress.add(range.getStart(), range.getEnd() - range.getStart() + 1);
+				scheduler.complete(range);
+			}
+
+			// the first response goes on delivering the start of the file to the first worker
+			final Segment probeSegment = remote.hasBody() ? scheduler.claimFirst(remote.getBodyEnd()) : null;
+			if (null == probeSegment) {
+				// nobody is going to read the body, so its connection and permit are free
+				remote.close();
+			}
+
+			final URL sourceURL = new URL(urlString);
+			final String host = sourceURL.getHost() + ":" + sourceURL.getPort();
+			final ConnectionController controller = (request.isAdaptive() && connections > 1) ? ConnectionController
+					.adaptive(connections, request.getBudget(), host) : ConnectionController.fixed(connections,
+					request.getBudget(), host);
+
+			// segments spread over every mirror - the primary URL is only one of them
+			final MirrorSet mirrors = new MirrorSet(urlString, request.getMirrors());
+
+			// the non-blocking engine only speaks plain http
+			NioEngine nioEngine = null;
+			if (DownloadRequest.Engine.NON_BLOCKING == request.getEngine()) {
+				if (null != stream) {
+					// a worker waiting for the reader would hold up the whole event loop
+					System.err.println("Non-blocking engine cannot stream - using blocking I/O for " + urlString);
+				} else if (mirrors.isPlainHttp()) {
+					nioEngine = NioEngine.getInstance();
+				} else {
+					System.err.println("Non-blocking engine supports http only - using blocking I/O for " + urlString);
+				}
+			}
+
+			// HTTP/2 needs the JDK's own client
+			Http2Engine http2Engine = null;
+			if (DownloadRequest.Engine.HTTP2 == request.getEngine()) {
+				try {
+					http2Engine = Http2Engine.getInstance();
+				} catch (final IOException ex) {
+					System.err.println(ex.getMessage() + " - using HTTP/1.1 for " + urlString);
+				}
+			}
+
+			final ProgressSampler.Registration sampling = ProgressSampler.getInstance().start(progress,
+					request.getListener());
+			// workers of either engine report here when they stop
+			final BlockingQueue<Future<Long>> finished = new LinkedBlockingQueue<Future<Long>>();
+			int running = 0;
+			try {
+				final CompletionService<Long> completion = new ExecutorCompletionService<Long>(WorkerThreads
+						.getInstance().getWorkerExecutor(), finished);
+				long lastReceived = progress.getTotalReceived();
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STALL_SECONDS);
+
+				// the worker carrying on the first request takes over its connection's permit
+				if (null != probeSegment) {
+					controller.adopt();
+					remote.handOverPermit();
+					completion.submit(new SegmentWorker(scheduler, mirrors, channel, progress, journal, request
+							.getRetryPolicy(), controller, request.getRateLimiter(), http2Engine, remote,
+							probeSegment));
+					running++;
+				}
+
+				do {
+					// start whatever connections the controller asks for while there is work to hand out
+					if (scheduler.hasWork()) {
+						for (int i = controller.startWorkers(); i > 0; i--) {
+							if (null != nioEngine) {
+								nioEngine.start(new NioConnection(scheduler, mirrors, channel, progress, journal,
+										request.getRetryPolicy(), controller, request.getRateLimiter(), finished));
+							} else {
+								completion.submit(new SegmentWorker(scheduler, mirrors, channel, progress,
+										journal, request.getRetryPolicy(), controller, request.getRateLimiter(),
+										http2Engine));
+							}
+							running++;
+						}
+					}
+
+					// surface any worker failure - the data is already on disk
+					final Future<Long> result = finished.poll(SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+					if (null != result) {
+						running--;
+						result.get();
+					}
 
-			partitions.add(new Callable<byte[]>() {
-				@Override
-				public byte[] call() {
-					byte[] bytes = null;
+					// however slow, a download is only stopped once no byte arrives at all; waiting for a connection
+					// from the budget is not stalling, and neither is a stream waiting for its reader
+					final long received = progress.getTotalReceived();
+					if (received != lastReceived || 0 == running) {
+						lastReceived = received;
+						deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STALL_SECONDS);
+					} else if (null == stream && System.nanoTime() > deadline) {
+						throw new IOException("Download stalled for " + STALL_SECONDS
+								+ " seconds - run it again to resume");
+					}
+
+					controller.sample(progress.getTotalWritten());
+					if (null != verifier) {
+						verifier.checkFailure();
+					}
+
+					// a download sharing its budget may have to wait for another to free a connection, and a
+					// block that fails verification goes back to the scheduler before the verifier stops being busy,
+					// so asking the scheduler afterwards cannot miss it
+				} while (running > 0 || (null != verifier && verifier.isBusy()) || scheduler.hasWork());
+			} finally {
+				// stop handing out work and abort the requests in flight if we are bailing out early
+				scheduler.cancel();
+
+				// the workers write into the destination and the journal, so both stay open until the last is gone
+				boolean interrupted = false;
+				while (running > 0) {
 					try {
-						bytes = Downloader.downloadChunk(start, end, urlString, finalI);
-					} catch (final IOException ioex) {
-						ioex.printStackTrace(System.err);
+						finished.take();
+						running--;
+					} catch (final InterruptedException ex) {
+						interrupted = true;
 					}
-					return bytes;
 				}
-			});
-		}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
 
-		final ExecutorService executorPool = Executors.newFixedThreadPool(numChunks);
-		final List<Future<byte[]>> results = executorPool.invokeAll(partitions, 1000, TimeUnit.SECONDS);
+				ProgressSampler.getInstance().stop(sampling);
+				if (null != verifier) {
+					verifier.close();
+				}
 
-		byte[] finalByteArray = new byte[0];
+				// keep everything that did finish so a retry can resume from it - unless the server cannot resume
+				if (remote.acceptsRanges()) {
+					journal.checkpoint();
+				} else {
+					journal.delete();
+				}
+			}
 
-		// when the threads finish combine their results
-		// using fixed thread pool we are guaranteed to iterate
-		// through finals in order so we can just add them sequentially
-		for (final Future<byte[]> result : results) {
-			final byte[] newByteArray = new byte[result.get().length];
-			System.arraycopy(result.get(), 0, newByteArray, 0, result.get().length);
-			final byte[] tempByteArray = new byte[finalByteArray.length];
+			// the scheduler stopped handing out work because nobody reads any more
+			if (null != stream && stream.isClosed()) {
+				throw new IOException("Stream closed before the download finished - run it again to resume");
+			}
+
+			if (null != verifier) {
+				try {
+					verifier.verify();
+				} catch (final IOException ex) {
+					// there is no telling which bytes are bad, so a retry has to start over
+					journal.delete();
+					throw ex;
+				}
+			}
+
+			journal.delete();
+		}
+
+		if (movedSource.equals(deltaSource) && !movedSource.delete()) {
+			System.err.println("Unable to delete " + movedSource);
+		}
+
+		if (null != cache) {
+			try {
+				cache.store(urlString, eTag, lastModified, new File(destFile));
+			} catch (final IOException ex) {
+				System.err.println("Cannot cache " + urlString + ":  " + ex.getMessage());
+			}
+		}
 
-			System.arraycopy(finalByteArray, 0, tempByteArray, 0, finalByteArray.length);
+		return new File(destFile);
+	}
 
-			finalByteArray = new byte[newByteArray.length + tempByteArray.length];
+	/**
+	 * Read a response of unknown length to its end over its one connection. Nothing can be split or resumed, and the
+	 * digest or block manifest is checked once the file is complete.
+	 * 
+	 * @param request what to download and how
+	 * @param stream stream to pass the bytes to as they land, or null
+	 * @param destFile destination file
+	 * @param remote first response, delivering the whole file
+	 * @return the file written
+	 * @throws IOException if the response cannot be read, the file written, or the file fails a check
+	 */
+	private static File transferUnsized(final DownloadRequest request, final DownloadStream stream,
+			final String destFile, final RemoteFile remote) throws IOException {
+		final File file = new File(destFile);
+		request.getListener().downloadStarted(request.getURL(), file, -1);
+		final File journalFile = DownloadJournal.fileFor(file);
+		if (journalFile.isFile() && !journalFile.delete()) {
+			throw new IOException("Unable to delete journal " + journalFile);
+		}
+		if (file.isFile() && !file.delete()) {
+			throw new IOException("Unable to replace " + destFile);
+		}
 
-			System.arraycopy(tempByteArray, 0, finalByteArray, 0, tempByteArray.length);
+		long fileSize = 0;
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				final FileChannel channel = raf.getChannel();) {
+			if (null != stream) {
+				stream.open(file, -1, null);
+			}
 
-			System.arraycopy(newByteArray, 0, finalByteArray, tempByteArray.length, newByteArray.length);
+			// written a segment at a time so a stream sees the bytes as they come
+			final long started = System.nanoTime();
+			final DownloadProgress progress = new DownloadProgress(Long.MAX_VALUE, 1);
+			final RateLimits.Throttle throttle = RateLimits.getInstance().throttle(request.getRateLimiter(), remote
+					.getURI().getHost());
+			final ProgressSampler.Registration sampling = ProgressSampler.getInstance().start(progress,
+					request.getListener());
+			try {
+				Segment chunk;
+				do {
+					chunk = new Segment(fileSize, fileSize + MIN_SEGMENT_SIZE - 1);
+					Downloader.copy(remote.getBody(), chunk, chunk.getEnd(), channel, progress, throttle);
+					if (chunk.getPosition() > fileSize && null != stream) {
+						stream.completed(fileSize, chunk.getPosition() - 1);
+					}
+					fileSize = chunk.getPosition();
+				} while (chunk.isComplete());
+			} finally {
+				ProgressSampler.getInstance().stop(sampling);
+			}
+			remote.consumed();
+			EngineMetrics.getInstance().requestFinished(remote.getURI().getAuthority(), fileSize, System.nanoTime()
+					- started, null);
+		}
 
-			executorPool.shutdown();
+		String digestAlgorithm = request.getDigestAlgorithm();
+		String digest = request.getDigest();
+		if (null == digest && null != remote.getDigest()) {
+			digestAlgorithm = remote.getDigest()[0];
+			digest = remote.getDigest()[1];
+		}
+		if (null != digest) {
+			final ContentHash hash = BlockManifest.newHash(digestAlgorithm);
+			final byte[] buffer = new byte[BufferPool.getInstance().getBufferSize()];
+			try (final InputStream input = new FileInputStream(file)) {
+				int read;
+				while ((read = input.read(buffer)) > 0) {
+					hash.update(buffer, 0, read);
+				}
+			}
+			final String actual = hash.toHex();
+			if (!ContentHash.matches(digest, actual)) {
+				throw new IOException(hash.getAlgorithm() + " mismatch:  expected " + digest + ", got " + actual);
+			}
 		}
 
-		// if they just selected a folder call the new file output
-		// and put it in that folder
-		final File file = new File(destinationFile);
-		String destFile = destinationFile;
-		if (file.isDirectory()) {
-			destFile += "/" + urlString.substring(urlString.lastIndexOf('/'));
+		final BlockManifest manifest = request.getBlockManifest();
+		if (null != manifest) {
+			final BlockManifest actual = BlockManifest.create(file, manifest.getAlgorithm(), manifest.getBlockSize());
+			if (actual.getBlockCount() != manifest.getBlockCount() || manifest.getFileSize() != fileSize) {
+				throw new IOException("Block manifest is for " + manifest.getFileSize() + " bytes, remote file has "
+						+ fileSize);
+			}
+			for (int block = 0; block < manifest.getBlockCount(); block++) {
+				if (!ContentHash.matches(manifest.getHash(block), actual.getHash(block))) {
+					throw new IOException("Block " + block + " does not match the block manifest");
+				}
+			}
 		}
 
-		try (final FileOutputStream fos = new FileOutputStream(destFile);) {
-			fos.write(finalByteArray);
-		} catch (final FileNotFoundException ex) {
-			System.out.println("FileNotFoundException : " + ex);
-		} catch (final IOException ioe) {
-			System.out.println("IOException : " + ioe);
+		if (null != request.getCache()) {
+			try {
+				request.getCache().store(request.getURL(), remote.getETag(), remote.getLastModified(), file);
+			} catch (final IOException ex) {
+				System.err.println("Cannot cache " + request.getURL() + ":  " + ex.getMessage());
+			}
 		}
+		return file;
 	}
 }
@@ -0,0 +1,434 @@
+package com.marcschweikert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Headless command line front end. Unlike {@link ParallelDownloaderMain} it never loads AWT or Swing, so it can run
+ * on servers and in containers.
+ *
+ * <pre>
+ * ParallelDownloaderCli [-c connections] [-a] [-q] [-s] [-M] [-e blocking|nio|http2] [-r rate] [-g rate] [-H rate]
+ *                       [-C cacheDir [-z cacheSize]] [-m mirror]... [-d algorithm:hex]
+ *                       [-b blockManifest [-o oldCopy]] [-x directory] url destination|-
+ * ParallelDownloaderCli [-c connections] [-a] [-q] [-s] [-M] [-e blocking|nio|http2] [-r rate] [-g rate] [-H rate]
+ *                       [-C cacheDir [-z cacheSize]] -i list [-j downloads] [-t total] [-p perHost] destination
+ * </pre>
+ *
+ * With <code>-a</code> the connection count is the most the adaptive controller may grow to. <code>-e nio</code>
+ * selects the non-blocking {@link NioEngine} instead of one blocking thread per connection, and <code>-e http2</code>
+ * sends the segments as streams of shared {@link Http2Engine} connections. Each <code>-m</code> adds a mirror
+ * serving the same file. <code>-d</code> checks the whole file against a digest such as
+ * <code>SHA-256:3f2a...</code>, and <code>-b</code> checks each block against a {@link BlockManifest}; with
+ * <code>-o</code> the blocks an older copy of the file still has are taken from it, see {@link DeltaPlan}. With
+ * <code>-i</code> every URL in the list file is downloaded through a {@link DownloadQueue}, <code>-j</code> at a time,
+ * sharing at most <code>-t</code> connections with no more than <code>-p</code> to any one host. <code>-r</code>
+ * caps each download, <code>-g</code> everything and <code>-H</code> each host, in bytes per second with an optional
+ * <code>k</code>, <code>m</code> or <code>g</code> suffix. <code>-s</code> prints the {@link EngineMetrics} at the
+ * end. <code>-M</code> writes the destination through a {@link MappedFileChannel}. <code>-C</code> serves unchanged
+ * files from a {@link DownloadCache} in that directory and keeps new ones there, up to <code>-z</code> bytes with the
+ * same suffixes (10g by default). A destination of <code>-</code> writes the file to standard output in order while
+ * it downloads, through a {@link DownloadStream} and a scratch file deleted afterwards. <code>-x</code> unpacks a
+ * <code>.tar</code>, <code>.tar.gz</code> or <code>.gz</code> download into a directory while it downloads, see
+ * {@link ArchiveExtractor}.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ParallelDownloaderCli {
+
+	/** Exit status for a failed download. */
+	private static final int EXIT_FAILURE = 1;
+
+	/** Exit status for bad arguments. */
+	private static final int EXIT_USAGE = 2;
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Downloads run at once from a list file by default. */
+	private static final int DEFAULT_PARALLEL_DOWNLOADS = 4;
+
+	/** Connections shared by a batch by default. */
+	private static final int DEFAULT_TOTAL_CONNECTIONS = 32;
+
+	/** Connections to one host in a batch by default. */
+	private static final int DEFAULT_CONNECTIONS_PER_HOST = 8;
+
+	/** Size of the buffer copying a stream to standard output. */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Main
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main(final String[] args) {
+		int connections = DownloadRequest.DEFAULT_CONNECTIONS;
+		boolean adaptive = false;
+		boolean quiet = false;
+		boolean stats = false;
+		boolean mapped = false;
+		DownloadRequest.Engine engine = DownloadRequest.Engine.BLOCKING;
+		final List<String> mirrors = new ArrayList<String>();
+		String digest = null;
+		String blockManifest = null;
+		String oldCopy = null;
+		String extractDirectory = null;
+		String listFile = null;
+		long rate = RateLimiter.UNLIMITED;
+		String cacheDirectory = null;
+		long cacheSize = DownloadCache.DEFAULT_MAX_SIZE;
+		int parallelDownloads = DEFAULT_PARALLEL_DOWNLOADS;
+		int totalConnections = DEFAULT_TOTAL_CONNECTIONS;
+		int connectionsPerHost = DEFAULT_CONNECTIONS_PER_HOST;
+		String url = null;
+		String destination = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-c".equals(args[i]) || "--connections".equals(args[i])) {
+					connections = Integer.parseInt(args[++i]);
+				} else if ("-a".equals(args[i]) || "--adaptive".equals(args[i])) {
+					adaptive = true;
+				} else if ("-q".equals(args[i]) || "--quiet".equals(args[i])) {
+					quiet = true;
+				} else if ("-s".equals(args[i]) || "--stats".equals(args[i])) {
+					stats = true;
+				} else if ("-M".equals(args[i]) || "--mmap".equals(args[i])) {
+					mapped = true;
+				} else if ("-e".equals(args[i]) || "--engine".equals(args[i])) {
+					engine = parseEngine(args[++i]);
+				} else if ("-m".equals(args[i]) || "--mirror".equals(args[i])) {
+					mirrors.add(args[++i]);
+				} else if ("-d".equals(args[i]) || "--digest".equals(args[i])) {
+					digest = args[++i];
+				} else if ("-b".equals(args[i]) || "--blocks".equals(args[i])) {
+					blockManifest = args[++i];
+				} else if ("-o".equals(args[i]) || "--old".equals(args[i])) {
+					oldCopy = args[++i];
+				} else if ("-x".equals(args[i]) || "--extract".equals(args[i])) {
+					extractDirectory = args[++i];
+				} else if ("-r".equals(args[i]) || "--rate".equals(args[i])) {
+					rate = parseBytes(args[++i]);
+				} else if ("-g".equals(args[i]) || "--global-rate".equals(args[i])) {
+					RateLimits.getInstance().getGlobal().setRate(parseBytes(args[++i]));
+				} else if ("-H".equals(args[i]) || "--host-rate".equals(args[i])) {
+					RateLimits.getInstance().setPerHostRate(parseBytes(args[++i]));
+				} else if ("-C".equals(args[i]) || "--cache".equals(args[i])) {
+					cacheDirectory = args[++i];
+				} else if ("-z".equals(args[i]) || "--cache-size".equals(args[i])) {
+					cacheSize = parseBytes(args[++i]);
+				} else if ("-i".equals(args[i]) || "--input".equals(args[i])) {
+					listFile = args[++i];
+				} else if ("-j".equals(args[i]) || "--jobs".equals(args[i])) {
+					parallelDownloads = Integer.parseInt(args[++i]);
+				} else if ("-t".equals(args[i]) || "--total-connections".equals(args[i])) {
+					totalConnections = Integer.parseInt(args[++i]);
+				} else if ("-p".equals(args[i]) || "--per-host".equals(args[i])) {
+					connectionsPerHost = Integer.parseInt(args[++i]);
+				} else if (null == url) {
+					url = args[i];
+				} else if (null == destination) {
+					destination = args[i];
+				} else {
+					usage("Unexpected argument:  " + args[i]);
+				}
+			}
+		} catch (final ArrayIndexOutOfBoundsException ex) {
+			usage("Missing value for " + args[args.length - 1]);
+		} catch (final NumberFormatException ex) {
+			usage("Invalid number:  " + ex.getMessage());
+		}
+
+		final DownloadCache cache = (null == cacheDirectory) ? null : new DownloadCache(new File(cacheDirectory),
+				cacheSize);
+
+		if (null != listFile) {
+			if (null == url || null != destination) {
+				usage("A list file takes exactly one destination");
+			}
+			downloadList(listFile, url, connections, adaptive, engine, mapped, cache, rate, quiet, parallelDownloads,
+					new ConnectionBudget(totalConnections, connectionsPerHost));
+			if (stats) {
+				printStats();
+			}
+			return;
+		}
+
+		if (null == url || null == destination) {
+			usage("Both a URL and a destination are required");
+		}
+		if (null != extractDirectory && "-".equals(destination)) {
+			usage("An archive cannot be both extracted and written to standard output");
+		}
+
+		// standard output gets the bytes in order while a scratch file takes them as they come
+		File scratch = null;
+		if ("-".equals(destination)) {
+			try {
+				scratch = File.createTempFile("paralleldownloader", ".part");
+			} catch (final IOException ex) {
+				fail(true, ex);
+				return;
+			}
+		}
+
+		final DownloadRequest.Builder builder = new DownloadRequest.Builder(url, (null == scratch) ? destination
+				: scratch.getPath()).connections(connections).adaptive(adaptive).engine(engine).memoryMapped(mapped)
+				.cache(cache);
+		if (RateLimiter.UNLIMITED != rate) {
+			builder.rateLimiter(new RateLimiter(rate));
+		}
+		for (final String mirror : mirrors) {
+			builder.mirror(mirror);
+		}
+		if (null != digest) {
+			final int colon = digest.indexOf(':');
+			if (colon <= 0) {
+				usage("Digest must look like SHA-256:hex");
+			}
+			builder.digest(digest.substring(0, colon), digest.substring(colon + 1));
+		}
+		if (null != blockManifest) {
+			try {
+				builder.blockManifest(BlockManifest.read(new File(blockManifest)));
+			} catch (final IOException ex) {
+				usage("Cannot read " + blockManifest + ":  " + ex.getMessage());
+			}
+		}
+		if (null != oldCopy) {
+			if (null == blockManifest) {
+				usage("An old copy needs a block manifest");
+			}
+			builder.deltaSource(new File(oldCopy));
+		}
+		if (!quiet) {
+			builder.listener(new ConsoleProgressListener(System.err));
+		}
+
+		try {
+			final long start = System.nanoTime();
+			if (null != extractDirectory) {
+				ParallelDownloader.extract(builder.build(), new File(extractDirectory)).get();
+			} else if (null == scratch) {
+				ParallelDownloader.download(builder.build());
+			} else {
+				try {
+					copyToStandardOutput(ParallelDownloader.stream(builder.build()));
+				} finally {
+					deleteScratch(scratch);
+				}
+			}
+			final double totalTime = (System.nanoTime() - start) / NANO_OFFSET;
+			if (!quiet) {
+				System.err.println("Time (seconds): " + totalTime);
+			}
+			if (stats) {
+				printStats();
+			}
+		} catch (final ExecutionException ex) {
+			fail(quiet, ex);
+		} catch (final InterruptedException ex) {
+			fail(quiet, ex);
+		} catch (final IOException ex) {
+			fail(quiet, ex);
+		}
+	}
+
+	/**
+	 * Copy a download to standard output as its bytes arrive. Closing the stream on the way out abandons the download
+	 * if the copy failed.
+	 *
+	 * @param stream the download
+	 * @throws IOException if the download failed or standard output cannot be written
+	 */
+	private static void copyToStandardOutput(final DownloadStream stream) throws IOException {
+		try (final InputStream input = stream) {
+			final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				System.out.write(buffer, 0, read);
+				if (System.out.checkError()) {
+					throw new IOException("Cannot write to standard output");
+				}
+			}
+			System.out.flush();
+			if (System.out.checkError()) {
+				throw new IOException("Cannot write to standard output");
+			}
+		}
+	}
+
+	/**
+	 * @param scratch scratch file a stream to standard output was downloaded through
+	 */
+	private static void deleteScratch(final File scratch) {
+		final File journal = DownloadJournal.fileFor(scratch);
+		if (journal.isFile() && !journal.delete()) {
+			System.err.println("Unable to delete " + journal);
+		}
+		if (scratch.isFile() && !scratch.delete()) {
+			System.err.println("Unable to delete " + scratch);
+		}
+	}
+
+	/**
+	 * Download every URL in a list file and exit with a failure status if any of them failed.
+	 *
+	 * @param listFile file with one URL per line
+	 * @param destination directory for lines that don't name their own destination
+	 * @param connections connections per large file
+	 * @param adaptive true to let the number of connections follow the measured throughput
+	 * @param engine how the connections move data
+	 * @param mapped true to write the files through memory mappings
+	 * @param cache cache of finished downloads, or null
+	 * @param rate bytes per second each download may read, or {@link RateLimiter#UNLIMITED}
+	 * @param quiet true to print nothing but failures
+	 * @param parallelDownloads most downloads running at once
+	 * @param budget connections shared by the whole batch
+	 */
+	private static void downloadList(final String listFile, final String destination, final int connections,
+			final boolean adaptive, final DownloadRequest.Engine engine, final boolean mapped,
+			final DownloadCache cache, final long rate, final boolean quiet, final int parallelDownloads,
+			final ConnectionBudget budget) {
+		final List<DownloadRequest.Builder> builders;
+		try {
+			builders = DownloadQueue.readList(new File(listFile), destination);
+		} catch (final IOException ex) {
+			usage("Cannot read " + listFile + ":  " + ex.getMessage());
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final DownloadQueue queue = new DownloadQueue(parallelDownloads, budget);
+		final List<Future<File>> results = new ArrayList<Future<File>>();
+		final DownloadListener listener = quiet ? DownloadListener.NONE : new ConsoleProgressListener(System.err,
+				false);
+		for (final DownloadRequest.Builder builder : builders) {
+			if (RateLimiter.UNLIMITED != rate) {
+				builder.rateLimiter(new RateLimiter(rate));
+			}
+			results.add(queue.add(builder.connections(connections).adaptive(adaptive).engine(engine).memoryMapped(
+					mapped).cache(cache).listener(listener).build()));
+		}
+		queue.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (final ExecutionException ex) {
+				failed++;
+				if (quiet) {
+					System.err.println("Download Failed!  " + builders.get(i).build().getURL() + ":  "
+							+ ex.getCause().getMessage());
+				}
+			} catch (final InterruptedException ex) {
+				fail(quiet, ex);
+			}
+		}
+
+		if (!quiet) {
+			final double totalTime = (System.nanoTime() - start) / NANO_OFFSET;
+			System.err.println((results.size() - failed) + " of " + results.size() + " downloaded");
+			System.err.println("Time (seconds): " + totalTime);
+		}
+		if (failed > 0) {
+			System.exit(EXIT_FAILURE);
+		}
+	}
+
+	/**
+	 * @param name engine name from the command line
+	 * @return the engine
+	 */
+	private static DownloadRequest.Engine parseEngine(final String name) {
+		if ("nio".equals(name)) {
+			return DownloadRequest.Engine.NON_BLOCKING;
+		} else if ("http2".equals(name)) {
+			return DownloadRequest.Engine.HTTP2;
+		} else if (!"blocking".equals(name)) {
+			usage("Unknown engine:  " + name);
+		}
+		return DownloadRequest.Engine.BLOCKING;
+	}
+
+	/**
+	 * @param value bytes, or bytes per second, from the command line, with an optional <code>k</code>,
+	 *            <code>m</code> or <code>g</code> suffix for binary multiples
+	 * @return bytes, or bytes per second
+	 */
+	private static long parseBytes(final String value) {
+		final String lower = value.toLowerCase(Locale.ROOT);
+		final int unit = lower.isEmpty() ? -1 : "kmg".indexOf(lower.charAt(lower.length() - 1));
+		final long number = Long.parseLong((unit < 0) ? lower : lower.substring(0, lower.length() - 1));
+		if (number < 0) {
+			throw new NumberFormatException("Cannot be negative:  " + value);
+		}
+		return number << (10 * (unit + 1));
+	}
+
+	/**
+	 * Print what the {@link EngineMetrics} recorded.
+	 */
+	private static void printStats() {
+		final EngineMetrics metrics = EngineMetrics.getInstance();
+		System.err.println(String.format("Requests: %d (%d failed, %d retried)", Long.valueOf(metrics.getRequests()),
+				Long.valueOf(metrics.getFailedRequests()), Long.valueOf(metrics.getRetries())));
+		System.err.println(String.format("Time to first byte (ms): mean %.1f, p50 < %.1f, p99 < %.1f", Double
+				.valueOf(metrics.getTimeToFirstByteMeanMillis()), Double.valueOf(metrics
+				.getTimeToFirstByte50thMillis()), Double.valueOf(metrics.getTimeToFirstByte99thMillis())));
+		System.err.println(String.format("Segment time (ms): mean %.1f, p50 < %.1f, p99 < %.1f", Double
+				.valueOf(metrics.getSegmentMeanMillis()), Double.valueOf(metrics.getSegment50thMillis()), Double
+				.valueOf(metrics.getSegment99thMillis())));
+		for (final Map.Entry<String, Double> host : metrics.getHostBytesPerSecond().entrySet()) {
+			System.err.println(String.format("Per connection to %s (bytes/s): %.0f, %d failed", host.getKey(),
+					host.getValue(), metrics.getHostFailures().get(host.getKey())));
+		}
+		System.err.println("Bytes written: " + metrics.getBytesWritten() + ", synced: " + metrics.getBytesSynced());
+	}
+
+	/**
+	 * Report a failed download and exit.
+	 *
+	 * @param quiet true if the listener has not already reported the failure
+	 * @param cause reason for the failure
+	 */
+	private static void fail(final boolean quiet, final Exception cause) {
+		if (quiet) {
+			System.err.println("Download Failed!  " + cause.getMessage());
+		}
+		System.exit(EXIT_FAILURE);
+	}
+
+	/**
+	 * Print the usage message and exit.
+	 *
+	 * @param message what was wrong with the arguments
+	 */
+	private static void usage(final String message) {
+		System.err.println(message);
+		System.err.println("Usage:  ParallelDownloaderCli [-c connections] [-a|--adaptive] [-q|--quiet] [-s|--stats] "
+				+ "[-M|--mmap] [-e blocking|nio|http2] [-r rate] [-g rate] [-H rate] [-C cacheDir [-z cacheSize]] "
+				+ "[-m mirror]... [-d algorithm:hex] [-b blockManifest [-o oldCopy]] [-x directory] url destination|-");
+		System.err.println("        ParallelDownloaderCli [-c connections] [-a|--adaptive] [-q|--quiet] [-s|--stats] "
+				+ "[-M|--mmap] [-e blocking|nio|http2] [-r rate] [-g rate] [-H rate] [-C cacheDir [-z cacheSize]] "
+				+ "-i list [-j downloads] [-t totalConnections] [-p perHost] destination");
+		System.exit(EXIT_USAGE);
+	}
+
+	/**
+	 * Utility class - private constructor
+	 */
+	private ParallelDownloaderCli() {
+	}
+}
@@ -6,12 +6,15 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.GridLayout;
 
+import java.io.File;
+
 import java.util.ArrayList;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 
 /**
  * JPanel that shows the individual progress bars.
@@ -19,7 +22,7 @@ import javax.swing.JProgressBar;
  * @author Chris Bubernak, Marc Schweikert
  * @version 1.0
  */
-public final class ProgressPanel extends JPanel {
+public final class ProgressPanel extends JPanel implements DownloadListener {
 
 	/** Unique serialization ID */
 	private static final long serialVersionUID = 6766814350912891511L;
@@ -60,8 +63,8 @@ public final class ProgressPanel extends JPanel {
 	/** Index of currently selected card */
 	private int myCardIndex;
 
-	/** Lock for thread-safe access */
-	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+	/** Latest snapshot not yet shown, null when no repaint is pending */
+	private final AtomicReference<ProgressSnapshot> myPendingSnapshot = new AtomicReference<ProgressSnapshot>();
 
 	/**
 	 * @return Singleton instance.
@@ -103,7 +106,7 @@ public final class ProgressPanel extends JPanel {
 	}
 
 	/**
-	 * Update the progress bars on the ProgressPanel.
+	 * Update the progress bars on the ProgressPanel. Must be called on the event dispatch thread.
 	 * 
 	 * @param index chunk index
 	 * @param amount amount between 0 and 100 (percent)
@@ -118,15 +121,46 @@ public final class ProgressPanel extends JPanel {
 			return;
 		}
 
-		// get the progress bar to operate on
-		rwLock.readLock().lock();
+		// get the progress bar to operate on and update the progress
 		final JProgressBar bar = myBarList.get(myCardIndex).get(index);
-		rwLock.readLock().unlock();
-
-		// update the progress
-		rwLock.writeLock().lock();
 		bar.setValue(amount);
-		rwLock.writeLock().unlock();
+	}
+
+	@Override
+	public void downloadStarted(final String url, final File destination, final long fileSize) {
+		// clear the bars left over from the previous download
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				for (final JProgressBar bar : myBarList.get(myCardIndex)) {
+					bar.setValue(0);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void progressUpdated(final ProgressSnapshot snapshot) {
+		// only queue a repaint if none is pending - it will pick up the newest snapshot
+		if (null == myPendingSnapshot.getAndSet(snapshot)) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					final ProgressSnapshot latest = myPendingSnapshot.getAndSet(null);
+					for (int i = 0; i < latest.getRegionCount(); i++) {
+						updateProgress(i, latest.getRegionPercent(i));
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void downloadCompleted(final File destination, final long fileSize) {
+	}
+
+	@Override
+	public void downloadFailed(final String url, final Exception cause) {
 	}
 
 	/**
@@ -0,0 +1,125 @@
+package com.marcschweikert;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes progress snapshots of running downloads to their listeners on a fixed tick, about 60 times a second by
+ * default (<code>paralleldownloader.progressHz</code>).
+ *
+ * One daemon thread serves every download, so reporting costs the I/O path nothing beyond its atomic counter
+ * updates, and listeners are never called more often than the tick no matter how fast data arrives.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ProgressSampler {
+
+	/** Singleton instance. */
+	private static final ProgressSampler instance = new ProgressSampler();
+
+	/** Default number of snapshots per second. */
+	private static final int DEFAULT_HZ = 60;
+
+	/** Microseconds between two ticks. */
+	private final long myTickMicros;
+
+	/** Tick thread shared by every download. */
+	private final ScheduledExecutorService myTicker;
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static ProgressSampler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start publishing snapshots of a download.
+	 *
+	 * @param progress counters of the download
+	 * @param listener receives the snapshots
+	 * @return handle to pass to {@link #stop(Registration)} when the download ends
+	 */
+	public Registration start(final DownloadProgress progress, final DownloadListener listener) {
+		final Registration registration = new Registration(progress, listener);
+		registration.myFuture = myTicker.scheduleAtFixedRate(registration, 0, myTickMicros, TimeUnit.MICROSECONDS);
+		return registration;
+	}
+
+	/**
+	 * Stop publishing snapshots of a download, after one final snapshot so listeners see where it ended.
+	 *
+	 * @param registration handle returned by {@link #start(DownloadProgress, DownloadListener)}
+	 */
+	public void stop(final Registration registration) {
+		registration.myFuture.cancel(false);
+		registration.run();
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private ProgressSampler() {
+		myTickMicros = TimeUnit.SECONDS.toMicros(1)
+				/ Math.max(1, Integer.getInteger("paralleldownloader.progressHz", DEFAULT_HZ).intValue());
+		myTicker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "ProgressSampler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * One download being sampled.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public static final class Registration implements Runnable {
+
+		/** Counters of the download. */
+		private final DownloadProgress myProgress;
+
+		/** Receives the snapshots. */
+		private final DownloadListener myListener;
+
+		/** Last snapshot handed to the listener. */
+		private ProgressSnapshot myLast;
+
+		/** Scheduled tick. */
+		private volatile ScheduledFuture<?> myFuture;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param progress counters of the download
+		 * @param listener receives the snapshots
+		 */
+		private Registration(final DownloadProgress progress, final DownloadListener listener) {
+			myProgress = progress;
+			myListener = listener;
+		}
+
+		@Override
+		public synchronized void run() {
+			// skip ticks where nothing moved
+			final ProgressSnapshot snapshot = myProgress.snapshot();
+			if (!snapshot.sameProgressAs(myLast)) {
+				myLast = snapshot;
+				try {
+					myListener.progressUpdated(snapshot);
+				} catch (final RuntimeException ex) {
+					// a broken listener must not stop the ticks
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+}
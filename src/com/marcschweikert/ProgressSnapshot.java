@@ -0,0 +1,109 @@
+package com.marcschweikert;
+
+import java.util.Arrays;
+
+/**
+ * Immutable view of a download's progress at one instant, handed to {@link DownloadListener}s.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class ProgressSnapshot {
+
+	/** Nanoseconds per second. */
+	private static final double NANOS_PER_SECOND = 1.0e9;
+
+	/** Total number of bytes in the file. */
+	private final long myFileSize;
+
+	/** Bytes written into each region. */
+	private final long[] myWritten;
+
+	/** Size of each region. */
+	private final long[] myRegionSizes;
+
+	/** Bytes written into the whole file. */
+	private final long myTotalWritten;
+
+	/** Nanoseconds since the download started. */
+	private final long myElapsedNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fileSize total number of bytes in the file
+	 * @param written bytes written into each region; the array is kept, not copied
+	 * @param regionSizes size of each region; the array is kept, not copied
+	 * @param elapsedNanos nanoseconds since the download started
+	 */
+	ProgressSnapshot(final long fileSize, final long[] written, final long[] regionSizes, final long elapsedNanos) {
+		myFileSize = fileSize;
+		myWritten = written;
+		myRegionSizes = regionSizes;
+		myElapsedNanos = elapsedNanos;
+
+		long total = 0;
+		for (final long value : written) {
+			total += value;
+		}
+		myTotalWritten = total;
+	}
+
+	/**
+	 * @return total number of bytes in the file
+	 */
+	public long getFileSize() {
+		return myFileSize;
+	}
+
+	/**
+	 * @return bytes written into the whole file
+	 */
+	public long getTotalWritten() {
+		return myTotalWritten;
+	}
+
+	/**
+	 * @return how much of the whole file has been written, between 0 and 100
+	 */
+	public int getPercent() {
+		return (myFileSize <= 0) ? 0 : (int) (myTotalWritten * 100 / myFileSize);
+	}
+
+	/**
+	 * @return number of equal-sized regions progress is reported for
+	 */
+	public int getRegionCount() {
+		return myWritten.length;
+	}
+
+	/**
+	 * @param region region index
+	 * @return how much of the region has been written, between 0 and 100
+	 */
+	public int getRegionPercent(final int region) {
+		return (myRegionSizes[region] <= 0) ? 100 : (int) (myWritten[region] * 100 / myRegionSizes[region]);
+	}
+
+	/**
+	 * @return nanoseconds since the download started
+	 */
+	public long getElapsedNanos() {
+		return myElapsedNanos;
+	}
+
+	/**
+	 * @return average throughput since the download started, in bytes per second
+	 */
+	public double getBytesPerSecond() {
+		return (myElapsedNanos <= 0) ? 0 : myTotalWritten * NANOS_PER_SECOND / myElapsedNanos;
+	}
+
+	/**
+	 * @param other another snapshot of the same download, may be null
+	 * @return true if both snapshots report the same bytes written
+	 */
+	public boolean sameProgressAs(final ProgressSnapshot other) {
+		return null != other && Arrays.equals(myWritten, other.myWritten);
+	}
+}
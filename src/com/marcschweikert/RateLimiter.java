@@ -0,0 +1,105 @@
+package com.marcschweikert;
+
+/**
+ * Token bucket capping the bytes per second read by every connection that shares it.
+ *
+ * Readers take tokens after each socket read with {@link #reserve(long)}. The bucket may go into debt, and a reader
+ * is told to wait until its share has been paid back, so readers queue up in the order they read and no connection
+ * can starve the others. Up to a tenth of a second of unused rate is saved up as a burst. The rate may be changed at
+ * any time; an unlimited bucket costs a single volatile read.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class RateLimiter {
+
+	/** Rate of a bucket that never makes a reader wait. */
+	public static final long UNLIMITED = 0;
+
+	/** Seconds of unused rate saved up as a burst. */
+	private static final double BURST_SECONDS = 0.1;
+
+	/** Change nanoseconds to seconds. */
+	private static final double NANO_OFFSET = 1.0e9;
+
+	/** Bytes per second, or {@link #UNLIMITED}. */
+	private volatile long myRate;
+
+	/** Bytes that may be read without waiting; negative while in debt. */
+	private double myTokens;
+
+	/** When the tokens were last topped up. */
+	private long myRefilled;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bytesPerSecond most bytes per second, or {@link #UNLIMITED}
+	 */
+	public RateLimiter(final long bytesPerSecond) {
+		setRate(bytesPerSecond);
+	}
+
+	/**
+	 * @return most bytes per second, or {@link #UNLIMITED}
+	 */
+	public long getRate() {
+		return myRate;
+	}
+
+	/**
+	 * Change the rate. Readers already waiting keep their wait; the next reservation sees the new rate.
+	 *
+	 * @param bytesPerSecond most bytes per second, or {@link #UNLIMITED}
+	 */
+	public synchronized void setRate(final long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate cannot be negative:  " + bytesPerSecond);
+		}
+
+		// settle what was earned at the old rate, and start from a full burst when the limit is new
+		final long now = System.nanoTime();
+		if (myRate > 0) {
+			refill(now);
+		} else {
+			myTokens = bytesPerSecond * BURST_SECONDS;
+		}
+		myRefilled = now;
+		myRate = bytesPerSecond;
+		myTokens = Math.min(myTokens, bytesPerSecond * BURST_SECONDS);
+	}
+
+	/**
+	 * Take tokens for bytes just read.
+	 *
+	 * @param bytes bytes read
+	 * @return nanoseconds the reader should wait before reading again, 0 if it may go on at once
+	 */
+	public long reserve(final long bytes) {
+		if (myRate <= 0) {
+			return 0;
+		}
+
+		synchronized (this) {
+			final long rate = myRate;
+			if (rate <= 0) {
+				return 0;
+			}
+
+			refill(System.nanoTime());
+			myTokens -= bytes;
+			return (myTokens >= 0) ? 0 : (long) (-myTokens * NANO_OFFSET / rate);
+		}
+	}
+
+	/**
+	 * Add the tokens earned since the last refill. Called with the lock held and a limited rate.
+	 *
+	 * @param now current <code>System.nanoTime()</code>
+	 */
+	private void refill(final long now) {
+		final long rate = myRate;
+		myTokens = Math.min(rate * BURST_SECONDS, myTokens + (now - myRefilled) * rate / NANO_OFFSET);
+		myRefilled = now;
+	}
+}
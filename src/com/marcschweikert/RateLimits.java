@@ -0,0 +1,169 @@
+package com.marcschweikert;
+
+import java.io.InterruptedIOException;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth caps shared by every download: one across everything and one per host. A download may add a cap of its
+ * own with {@link DownloadRequest.Builder#rateLimiter(RateLimiter)}.
+ *
+ * The caps start from the system properties <code>paralleldownloader.rate.global</code> and
+ * <code>paralleldownloader.rate.perHost</code> (bytes per second, 0 for none) and can be changed at runtime, either
+ * for every host at once with {@link #setPerHostRate(long)} or for one host through {@link #getHost(String)}.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class RateLimits {
+
+	/** Singleton instance. */
+	private static final RateLimits instance = new RateLimits();
+
+	/** Cap across every download. */
+	private final RateLimiter myGlobal;
+
+	/** Cap per host, by lower-case host name. */
+	private final ConcurrentMap<String, RateLimiter> myHosts = new ConcurrentHashMap<String, RateLimiter>();
+
+	/** Cap given to hosts seen for the first time. */
+	private volatile long myPerHostRate;
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static RateLimits getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return cap across every download
+	 */
+	public RateLimiter getGlobal() {
+		return myGlobal;
+	}
+
+	/**
+	 * @param host host name
+	 * @return cap on the host, created with the per-host rate on first use
+	 */
+	public RateLimiter getHost(final String host) {
+		final String key = host.toLowerCase(Locale.ROOT);
+		RateLimiter limiter = myHosts.get(key);
+		if (null == limiter) {
+			final RateLimiter created = new RateLimiter(myPerHostRate);
+			limiter = myHosts.putIfAbsent(key, created);
+			if (null == limiter) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * @return cap given to hosts seen for the first time
+	 */
+	public long getPerHostRate() {
+		return myPerHostRate;
+	}
+
+	/**
+	 * Cap every host, including those that already have a cap of their own.
+	 *
+	 * @param bytesPerSecond most bytes per second per host, or {@link RateLimiter#UNLIMITED}
+	 */
+	public void setPerHostRate(final long bytesPerSecond) {
+		myPerHostRate = bytesPerSecond;
+		for (final RateLimiter limiter : myHosts.values()) {
+			limiter.setRate(bytesPerSecond);
+		}
+	}
+
+	/**
+	 * @param download the download's own cap, or null for none
+	 * @param host host the connection reads from
+	 * @return every cap a connection to the host counts against
+	 */
+	public Throttle throttle(final RateLimiter download, final String host) {
+		return new Throttle(myGlobal, getHost(host), download);
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private RateLimits() {
+		myGlobal = new RateLimiter(Long.getLong("paralleldownloader.rate.global", RateLimiter.UNLIMITED).longValue());
+		myPerHostRate = Long.getLong("paralleldownloader.rate.perHost", RateLimiter.UNLIMITED).longValue();
+	}
+
+	/**
+	 * The caps one connection counts its reads against.
+	 *
+	 * @author Chris Bubernak, Marc Schweikert
+	 * @version 1.0
+	 */
+	public static final class Throttle {
+
+		/** Throttle that never waits. */
+		public static final Throttle NONE = new Throttle();
+
+		/** Caps, none of them null. */
+		private final RateLimiter[] myLimiters;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param limiters caps to count against; null entries are skipped
+		 */
+		Throttle(final RateLimiter... limiters) {
+			int count = 0;
+			for (final RateLimiter limiter : limiters) {
+				if (null != limiter) {
+					count++;
+				}
+			}
+			myLimiters = new RateLimiter[count];
+			count = 0;
+			for (final RateLimiter limiter : limiters) {
+				if (null != limiter) {
+					myLimiters[count++] = limiter;
+				}
+			}
+		}
+
+		/**
+		 * Take tokens from every cap for bytes just read.
+		 *
+		 * @param bytes bytes read
+		 * @return nanoseconds to wait before reading again, 0 if the reader may go on at once
+		 */
+		public long reserve(final long bytes) {
+			long wait = 0;
+			for (final RateLimiter limiter : myLimiters) {
+				wait = Math.max(wait, limiter.reserve(bytes));
+			}
+			return wait;
+		}
+
+		/**
+		 * Take tokens from every cap for bytes just read, and wait until the reader may go on.
+		 *
+		 * @param bytes bytes read
+		 * @throws InterruptedIOException if interrupted while waiting
+		 */
+		public void acquire(final long bytes) throws InterruptedIOException {
+			final long wait = reserve(bytes);
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package com.marcschweikert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URI;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import org.apache.http.client.HttpResponseException;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * What the server says about a remote file, learned from the first request of the download itself instead of a
+ * separate round trip before it.
+ *
+ * The probe is a GET for the first bytes of the file on the pooled HttpClient the segment workers use. A
+ * <code>206</code> answer gives the size from its <code>Content-Range</code>, proves the server takes ranges, and its
+ * body becomes the first segment of the download, so a file no larger than the probe is finished by the probe alone.
+ * A <code>200</code> answer means ranges are ignored: its body is the whole file, fetched over this one connection,
+ * and its length, if any, is the size. A download resuming from its journal or reusing an older copy probes with a
+ * pooled HEAD instead, as it may already have the first bytes. Validators and digest headers come from the same
+ * response, and the validators of a cached copy are sent with it, so a <code>304</code> costs nothing more.
+ *
+ * A <code>206</code> whose <code>Content-Range</code> gives the length as <code>*</code> leaves the end of the file
+ * unknown, so it is abandoned and the file asked for again without a range, to be read to the end of the response.
+ *
+ * The probe's connection counts against the {@link ConnectionBudget} like any worker's: the caller takes a permit
+ * before sending it, and the permit is given back once no body holds the connection, or handed over to the worker
+ * that reads the body.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class RemoteFile implements Closeable {
+
+	/** The request, still holding its connection while the body is unread. */
+	private final HttpRequestBase myRequest;
+
+	/** Body of the response, or null. */
+	private final InputStream myBody;
+
+	/** True if the server answered that the cached copy is current. */
+	private final boolean myNotModified;
+
+	/** Size of the file, or -1 if the server did not say. */
+	private final long mySize;
+
+	/** True if the server serves byte ranges. */
+	private final boolean myAcceptsRanges;
+
+	/** Last byte of the file the body holds, or -1 if there is no body or its end is not known. */
+	private final long myBodyEnd;
+
+	/** ETag validator, or null. */
+	private final String myETag;
+
+	/** Last-Modified validator, or null. */
+	private final String myLastModified;
+
+	/** Algorithm and hex whole-file digest the server sent, or null. */
+	private final String[] myDigest;
+
+	/** True once the body has been read to its end. */
+	private boolean myConsumed;
+
+	/** Budget the connection holds a permit from, or null once it has been given back or handed over. */
+	private ConnectionBudget myBudget;
+
+	/** Host the permit is for. */
+	private String myBudgetHost;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param request the request, still holding its connection
+	 * @param response the response to it
+	 * @throws IOException if the response is not one a download can start from
+	 */
+	private RemoteFile(final HttpRequestBase request, final HttpResponse response) throws IOException {
+		myRequest = request;
+		final int status = response.getStatusLine().getStatusCode();
+		final HttpEntity entity = response.getEntity();
+		myNotModified = HttpStatus.SC_NOT_MODIFIED == status;
+		myETag = header(response, "ETag");
+		myLastModified = header(response, "Last-Modified");
+
+		if (HttpStatus.SC_PARTIAL_CONTENT == status) {
+			// Content-Range: bytes 0-1048575/30000000, with * for a length the server does not know
+			final String range = header(response, "Content-Range");
+			if (null == range) {
+				throw new HttpResponseException(status, "Partial response without a Content-Range");
+			}
+			final int slash = range.lastIndexOf('/');
+			if (!range.toLowerCase(Locale.ROOT).startsWith("bytes 0-") || slash < 0) {
+				throw new HttpResponseException(status, "Unexpected Content-Range " + range);
+			}
+			mySize = completeLength(status, range);
+			try {
+				myBodyEnd = Long.parseLong(range.substring("bytes 0-".length(), slash).trim());
+			} catch (final NumberFormatException ex) {
+				throw new HttpResponseException(status, "Malformed Content-Range " + range);
+			}
+			myAcceptsRanges = true;
+			myBody = entity.getContent();
+		} else if (HttpStatus.SC_OK == status) {
+			final long length = (null == entity) ? -1 : entity.getContentLength();
+			final boolean head = request instanceof HttpHead;
+			mySize = head ? contentLength(response) : length;
+			// a HEAD cannot show whether a range would be honoured, so only an explicit refusal counts
+			myAcceptsRanges = head && !"none".equalsIgnoreCase(header(response, "Accept-Ranges"));
+			myBodyEnd = (head || mySize < 0) ? -1 : mySize - 1;
+			myBody = (head || null == entity) ? null : entity.getContent();
+		} else if (HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE == status) {
+			// only an empty file has no first byte: Content-Range: bytes */0
+			final String range = header(response, "Content-Range");
+			mySize = (null == range) ? -1 : completeLength(status, range);
+			myAcceptsRanges = true;
+			myBodyEnd = -1;
+			myBody = null;
+		} else if (myNotModified) {
+			mySize = -1;
+			myAcceptsRanges = true;
+			myBodyEnd = -1;
+			myBody = null;
+		} else {
+			throw new HttpResponseException(status, "Unexpected response " + response.getStatusLine() + " for "
+					+ request.getURI());
+		}
+
+		// Content-MD5 of a partial response is the digest of the part, not of the file
+		myDigest = IntegrityVerifier.fromHeaders(header(response, "Repr-Digest"), header(response, "Digest"),
+				(HttpStatus.SC_OK == status) ? header(response, "Content-MD5") : null);
+	}
+
+	/**
+	 * Send the first request of a download on a connection the caller holds a budget permit for.
+	 *
+	 * @param url remote file
+	 * @param firstBytes bytes of the file to ask for along with the headers, or 0 for the headers alone
+	 * @param cached cached copy whose validators to send, or null
+	 * @param budget budget the caller has taken a permit from for the probe
+	 * @param host host the permit is for
+	 * @return what the server said, holding the connection and the permit until {@link #close()}
+	 * @throws IOException if the request fails or the server answers with an error
+	 */
+	public static RemoteFile probe(final String url, final long firstBytes, final DownloadCache.Entry cached,
+			final ConnectionBudget budget, final String host) throws IOException {
+		RemoteFile remote = null;
+		try {
+			remote = probe(url, firstBytes, cached);
+		} finally {
+			if (null == remote || null == remote.myBody) {
+				// nothing holds the connection any more
+				budget.release(host);
+			} else {
+				remote.myBudget = budget;
+				remote.myBudgetHost = host;
+			}
+		}
+		return remote;
+	}
+
+	/**
+	 * Send the first request of a download.
+	 *
+	 * @param url remote file
+	 * @param firstBytes bytes of the file to ask for along with the headers, or 0 for the headers alone
+	 * @param cached cached copy whose validators to send, or null
+	 * @return what the server said, holding the connection until {@link #close()}
+	 * @throws IOException if the request fails or the server answers with an error
+	 */
+	public static RemoteFile probe(final String url, final long firstBytes, final DownloadCache.Entry cached)
+			throws IOException {
+		final HttpRequestBase request;
+		if (firstBytes > 0) {
+			request = new HttpGet(url);
+			request.addHeader("Range", "bytes=0-" + (firstBytes - 1));
+		} else {
+			request = new HttpHead(url);
+		}
+
+		final RemoteFile remote = send(request, cached);
+		if (!remote.myAcceptsRanges || remote.mySize >= 0 || null == remote.myBody) {
+			return remote;
+		}
+
+		// more ranges could not tell where the file ends, but the end of a whole response does
+		remote.close();
+		final RemoteFile whole = send(new HttpGet(url), cached);
+		if (whole.myAcceptsRanges && null != whole.myBody) {
+			whole.close();
+			throw new IOException("Server sent a range of unknown length instead of all of " + url);
+		}
+		return whole;
+	}
+
+	/**
+	 * Send a probe, along with the validators of a cached copy.
+	 *
+	 * @param request request to send
+	 * @param cached cached copy whose validators to send, or null
+	 * @return what the server said, holding the connection until {@link #close()}
+	 * @throws IOException if the request fails or the server answers with an error
+	 */
+	private static RemoteFile send(final HttpRequestBase request, final DownloadCache.Entry cached)
+			throws IOException {
+		if (null != cached) {
+			if (null != cached.getETag()) {
+				request.addHeader("If-None-Match", cached.getETag());
+			}
+			if (null != cached.getLastModified()) {
+				request.addHeader("If-Modified-Since", cached.getLastModified());
+			}
+		}
+
+		try {
+			final long requested = System.nanoTime();
+			final HttpResponse response = ConnectionPool.getInstance().getHttpClient().execute(request);
+			EngineMetrics.getInstance().firstByte(request.getURI().getAuthority(), System.nanoTime() - requested);
+			return new RemoteFile(request, response);
+		} catch (final IOException ex) {
+			request.abort();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return URL the probe was sent to
+	 */
+	public URI getURI() {
+		return myRequest.getURI();
+	}
+
+	/**
+	 * @return true if the server answered that the cached copy is current
+	 */
+	public boolean isNotModified() {
+		return myNotModified;
+	}
+
+	/**
+	 * @return size of the file, or -1 if the server did not say
+	 */
+	public long getSize() {
+		return mySize;
+	}
+
+	/**
+	 * @return true if the server serves byte ranges, so the file can be fetched over several connections and resumed
+	 */
+	public boolean acceptsRanges() {
+		return myAcceptsRanges;
+	}
+
+	/**
+	 * @return true if the response carries file data a download can use
+	 */
+	public boolean hasBody() {
+		return null != myBody;
+	}
+
+	/**
+	 * @return last byte of the file the body holds, or -1 if there is no body or its end is not known
+	 */
+	public long getBodyEnd() {
+		return myBodyEnd;
+	}
+
+	/**
+	 * @return ETag validator, or null
+	 */
+	public String getETag() {
+		return myETag;
+	}
+
+	/**
+	 * @return Last-Modified validator, or null
+	 */
+	public String getLastModified() {
+		return myLastModified;
+	}
+
+	/**
+	 * @return algorithm and hex whole-file digest the server sent, or null
+	 */
+	public String[] getDigest() {
+		return myDigest;
+	}
+
+	/**
+	 * @return the body, starting at the first byte of the file; reading it to the end releases the connection on
+	 *         {@link #close()}
+	 */
+	public InputStream getBody() {
+		return myBody;
+	}
+
+	/**
+	 * Write the body into the segment it holds, the first of the download. If the segment's tail is stolen meanwhile
+	 * the rest of the body is left unread.
+	 *
+	 * @param segment segment starting at the first byte of the file and ending at {@link #getBodyEnd()} or before
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker to report written bytes to
+	 * @param throttle bandwidth caps every read counts against
+	 * @return number of bytes written to the destination
+	 * @throws IOException if the body cannot be read, the destination written, or the body ends early
+	 */
+	public long transfer(final Segment segment, final FileChannel channel, final DownloadProgress progress,
+			final RateLimits.Throttle throttle) throws IOException {
+		final long written = Downloader.copy(myBody, segment, myBodyEnd, channel, progress, throttle);
+		if (!segment.isComplete()) {
+			throw new IOException("Short read - connection closed early for " + segment);
+		}
+		myConsumed = segment.getEnd() == myBodyEnd;
+		return written;
+	}
+
+	/**
+	 * Hand the budget permit the connection holds over to the worker reading the body, which gives it back itself.
+	 */
+	public synchronized void handOverPermit() {
+		myBudget = null;
+	}
+
+	/**
+	 * Hand the connection back to the pool if the body was read to its end, and close it otherwise. A budget permit
+	 * still held is given back.
+	 */
+	@Override
+	public void close() {
+		if (null != myBody) {
+			if (myConsumed) {
+				try {
+					myBody.close();
+				} catch (final IOException ex) {
+					myRequest.abort();
+				}
+			} else {
+				// closing the stream would read the rest of the body first
+				myRequest.abort();
+			}
+		}
+		myRequest.releaseConnection();
+
+		synchronized (this) {
+			if (null != myBudget) {
+				myBudget.release(myBudgetHost);
+				myBudget = null;
+			}
+		}
+	}
+
+	/**
+	 * Mark the body as read to its end by someone else.
+	 */
+	public void consumed() {
+		myConsumed = true;
+	}
+
+	/**
+	 * @param status status of the response
+	 * @param range value of its Content-Range header
+	 * @return complete length of the file the header gives, or -1 for <code>*</code>
+	 * @throws HttpResponseException if the header is malformed
+	 */
+	private static long completeLength(final int status, final String range) throws HttpResponseException {
+		final String length = range.substring(range.lastIndexOf('/') + 1).trim();
+		try {
+			return "*".equals(length) ? -1 : Long.parseLong(length);
+		} catch (final NumberFormatException ex) {
+			throw new HttpResponseException(status, "Malformed Content-Range " + range);
+		}
+	}
+
+	/**
+	 * @param response response to a HEAD
+	 * @return length the Content-Length header gives, or -1
+	 */
+	private static long contentLength(final HttpResponse response) {
+		final String length = header(response, "Content-Length");
+		try {
+			return (null == length) ? -1 : Long.parseLong(length.trim());
+		} catch (final NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param response response to a request
+	 * @param name header name
+	 * @return value of the header, or null
+	 */
+	private static String header(final HttpResponse response, final String name) {
+		final Header header = response.getFirstHeader(name);
+		return (null == header) ? null : header.getValue();
+	}
+}
@@ -0,0 +1,86 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpStatus;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Decides whether a failed segment request is tried again and how long to back off first.
+ *
+ * Delays grow exponentially from the base delay up to the maximum, and each one is randomized between half and all
+ * of its nominal value so that connections dropped together don't all come back at the same instant.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class RetryPolicy {
+
+	/** HTTP 429, which HttpCore 4.2 has no constant for. */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/** Keeps the exponential delay from overflowing. */
+	private static final int MAX_SHIFT = 20;
+
+	/** Policy used when nothing else is configured. */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(Integer.getInteger(
+			"paralleldownloader.retry.maxAttempts", 5).intValue(), 500, 30000);
+
+	/** Consecutive failed attempts allowed before giving up. */
+	private final int myMaxAttempts;
+
+	/** Delay before the first retry, in milliseconds. */
+	private final long myBaseDelay;
+
+	/** Upper bound on any delay, in milliseconds. */
+	private final long myMaxDelay;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxAttempts consecutive failed attempts allowed before giving up
+	 * @param baseDelay delay before the first retry, in milliseconds
+	 * @param maxDelay upper bound on any delay, in milliseconds
+	 */
+	public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay) {
+		myMaxAttempts = maxAttempts;
+		myBaseDelay = baseDelay;
+		myMaxDelay = maxDelay;
+	}
+
+	/**
+	 * @param attempts number of consecutive failed attempts so far
+	 * @param failure the most recent failure
+	 * @return true if the request should be made again
+	 */
+	public boolean shouldRetry(final int attempts, final IOException failure) {
+		return attempts < myMaxAttempts && isTransient(failure);
+	}
+
+	/**
+	 * @param failure a failed request
+	 * @return false if asking the same server again cannot help
+	 */
+	public boolean isTransient(final IOException failure) {
+		// client errors won't fix themselves, except for timeouts and throttling
+		if (failure instanceof HttpResponseException) {
+			final int status = ((HttpResponseException) failure).getStatusCode();
+			return status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == HttpStatus.SC_REQUEST_TIMEOUT
+					|| status == SC_TOO_MANY_REQUESTS;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param attempts number of consecutive failed attempts so far
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long getDelay(final int attempts) {
+		final long nominal = Math.min(myMaxDelay, myBaseDelay << Math.min(attempts - 1, MAX_SHIFT));
+		return nominal / 2 + ThreadLocalRandom.current().nextLong(nominal / 2 + 1);
+	}
+}
@@ -0,0 +1,77 @@
+package com.marcschweikert;
+
+/**
+ * The rsync weak checksum of a fixed-size window, which can be moved along a file one byte at a time without reading
+ * the window again. Two 16 bit sums make up the 32 bit value: the plain sum of the bytes, and the sum of the bytes
+ * weighted by their distance from the end of the window, which is also the sum of the running plain sums.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class RollingChecksum {
+
+	/** Mask keeping a sum to 16 bits. */
+	private static final int MASK = 0xffff;
+
+	/** Length of the window. */
+	private final int myLength;
+
+	/** Sum of the bytes. */
+	private int myA;
+
+	/** Sum of the bytes weighted by their distance from the end of the window. */
+	private int myB;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param length length of the window
+	 */
+	public RollingChecksum(final int length) {
+		myLength = length;
+	}
+
+	/**
+	 * Start over with an empty window.
+	 */
+	public void reset() {
+		myA = 0;
+		myB = 0;
+	}
+
+	/**
+	 * Add bytes to the end of the window.
+	 *
+	 * @param bytes bytes to add
+	 * @param offset first byte
+	 * @param length number of bytes
+	 */
+	public void update(final byte[] bytes, final int offset, final int length) {
+		int a = myA;
+		int b = myB;
+		for (int i = offset; i < offset + length; i++) {
+			a += bytes[i] & 0xff;
+			b += a;
+		}
+		myA = a & MASK;
+		myB = b & MASK;
+	}
+
+	/**
+	 * Move a full window one byte along.
+	 *
+	 * @param out byte leaving the start of the window
+	 * @param in byte entering at the end of the window
+	 */
+	public void roll(final byte out, final byte in) {
+		myA = (myA - (out & 0xff) + (in & 0xff)) & MASK;
+		myB = (myB - myLength * (out & 0xff) + myA) & MASK;
+	}
+
+	/**
+	 * @return checksum of the window
+	 */
+	public int getValue() {
+		return (myB << 16) | myA;
+	}
+}
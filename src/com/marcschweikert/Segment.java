@@ -0,0 +1,104 @@
+package com.marcschweikert;
+
+/**
+ * A contiguous byte range of the remote file handed to one connection worker at a time.
+ *
+ * The end of a segment can shrink while it is being downloaded when an idle worker steals its tail, so the owning
+ * worker must {@link #claim(int)} bytes before writing them.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class Segment {
+
+	/** First byte of the segment. */
+	private final long myStart;
+
+	/** Next byte to be written. */
+	private long myPosition;
+
+	/** Last byte of the segment (inclusive). */
+	private long myEnd;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param start first byte of the segment
+	 * @param end last byte of the segment (inclusive)
+	 */
+	public Segment(final long start, final long end) {
+		myStart = start;
+		myPosition = start;
+		myEnd = end;
+	}
+
+	/**
+	 * @return first byte of the segment
+	 */
+	public long getStart() {
+		return myStart;
+	}
+
+	/**
+	 * @return next byte to be written
+	 */
+	public synchronized long getPosition() {
+		return myPosition;
+	}
+
+	/**
+	 * @return last byte of the segment (inclusive)
+	 */
+	public synchronized long getEnd() {
+		return myEnd;
+	}
+
+	/**
+	 * @return number of bytes still to be written
+	 */
+	public synchronized long getRemaining() {
+		return myEnd - myPosition + 1;
+	}
+
+	/**
+	 * @return true when every byte of the segment has been claimed
+	 */
+	public synchronized boolean isComplete() {
+		return myPosition > myEnd;
+	}
+
+	/**
+	 * Reserve the next bytes of the segment for writing.
+	 *
+	 * @param length number of bytes just received
+	 * @return number of those bytes that still belong to this segment, starting at the position before the call
+	 */
+	public synchronized int claim(final int length) {
+		final int claimed = (int) Math.max(0, Math.min(length, myEnd - myPosition + 1));
+		myPosition += claimed;
+		return claimed;
+	}
+
+	/**
+	 * Split off the second half of the unclaimed bytes.
+	 *
+	 * @param minSize smallest piece either half may be left with
+	 * @return the stolen tail, or null if the segment is too small to split
+	 */
+	public synchronized Segment split(final long minSize) {
+		final long remaining = myEnd - myPosition + 1;
+		if (remaining < 2 * minSize) {
+			return null;
+		}
+
+		final long middle = myPosition + remaining / 2;
+		final Segment tail = new Segment(middle, myEnd);
+		myEnd = middle - 1;
+		return tail;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "bytes " + myStart + "-" + myEnd + " at " + myPosition;
+	}
+}
@@ -0,0 +1,280 @@
+package com.marcschweikert;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hands out segments of a file to a fixed set of connection workers.
+ *
+ * The file is cut into many small segments kept in a shared queue. When the queue runs dry, an idle worker splits
+ * the largest segment still in flight and takes its tail, so one slow connection cannot hold up the whole file.
+ *
+ * While a {@link DownloadStream} reads the file in order, {@link #next()} waits rather than hand out a segment
+ * starting more than the stream's window beyond the reader, and the in-flight segment nearest the reader is split
+ * instead of the largest. Only threads that may block can take work from such a scheduler.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class SegmentScheduler {
+
+	/** Segments nobody is working on yet. */
+	private final Deque<Segment> myPending = new ArrayDeque<Segment>();
+
+	/** Segments currently being downloaded. */
+	private final List<Segment> myActive = new ArrayList<Segment>();
+
+	/** Smallest piece a segment may be split into. */
+	private final long myMinSplitSize;
+
+	/** Set once the download has been abandoned. */
+	private volatile boolean myCancelled;
+
+	/** Requests in flight, closed when the download is abandoned. */
+	private final Set<Closeable> myRequests = new HashSet<Closeable>();
+
+	/** Checks finished segments, or null. */
+	private IntegrityVerifier myVerifier;
+
+	/** Reads the file in order while it downloads, or null. */
+	private DownloadStream myStream;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ranges byte ranges still to be downloaded, in file order
+	 * @param segmentSize preferred size of the initial segments
+	 * @param minSplitSize smallest piece a segment may be split into when stealing
+	 */
+	public SegmentScheduler(final List<Segment> ranges, final long segmentSize, final long minSplitSize) {
+		myMinSplitSize = minSplitSize;
+
+		for (final Segment range : ranges) {
+			for (long start = range.getStart(); start <= range.getEnd(); start += segmentSize) {
+				myPending.add(new Segment(start, Math.min(start + segmentSize - 1, range.getEnd())));
+			}
+		}
+	}
+
+	/**
+	 * @param verifier checks every segment once it is finished
+	 */
+	public synchronized void setVerifier(final IntegrityVerifier verifier) {
+		myVerifier = verifier;
+	}
+
+	/**
+	 * @param stream reads the file in order; segments are handed out near it first
+	 */
+	public synchronized void setStream(final DownloadStream stream) {
+		myStream = stream;
+	}
+
+	/**
+	 * Queue a range again, ahead of everything else, because what was downloaded for it is bad.
+	 *
+	 * @param segment range to download again
+	 */
+	public synchronized void requeue(final Segment segment) {
+		myPending.addFirst(segment);
+		notifyAll();
+	}
+
+	/**
+	 * Take the start of the file out of the queue for a response that is already delivering it.
+	 *
+	 * @param end last byte the response holds
+	 * @return the range from the first byte to the end as an in-flight segment, or null if some of it is done already
+	 */
+	public synchronized Segment claimFirst(final long end) {
+		final Segment head = myPending.peek();
+		if (null == head || 0 != head.getStart() || head.getEnd() < end) {
+			return null;
+		}
+
+		myPending.poll();
+		if (head.getEnd() > end) {
+			myPending.addFirst(new Segment(end + 1, head.getEnd()));
+		}
+		final Segment first = new Segment(0, end);
+		myActive.add(first);
+		return first;
+	}
+
+	/**
+	 * Get the next piece of work.
+	 *
+	 * @return a queued segment, the stolen tail of the largest in-flight segment, or null when nothing is left or the
+	 *         thread was interrupted while waiting for a stream's reader
+	 */
+	public synchronized Segment next() {
+		try {
+			while (!myCancelled && null != myStream && !myPending.isEmpty()
+					&& myPending.peek().getStart() > myStream.getPosition() + myStream.getWindow()) {
+				wait();
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (myCancelled) {
+			return null;
+		}
+
+		Segment segment = myPending.poll();
+
+		if (null == segment) {
+			segment = steal();
+		}
+
+		if (null != segment) {
+			myActive.add(segment);
+		}
+
+		return segment;
+	}
+
+	/**
+	 * @return true if another worker could still be given something to do
+	 */
+	public synchronized boolean hasWork() {
+		if (myCancelled) {
+			return false;
+		}
+
+		if (!myPending.isEmpty()) {
+			return true;
+		}
+
+		for (final Segment segment : myActive) {
+			if (segment.getRemaining() >= 2 * myMinSplitSize) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Abandon the download. Workers get no more segments and stop retrying, and requests in flight are closed.
+	 */
+	public void cancel() {
+		myCancelled = true;
+		final List<Closeable> requests;
+		synchronized (this) {
+			requests = new ArrayList<Closeable>(myRequests);
+			myRequests.clear();
+			notifyAll();
+		}
+
+		for (final Closeable request : requests) {
+			try {
+				request.close();
+			} catch (final IOException ex) {
+				// the worker sees its request fail either way
+			}
+		}
+	}
+
+	/**
+	 * Register a request to be closed if the download is abandoned while it is in flight.
+	 *
+	 * @param request closes the request's connection
+	 * @return false if the download has been abandoned already, in which case the request must not be sent
+	 */
+	public synchronized boolean track(final Closeable request) {
+		if (myCancelled) {
+			return false;
+		}
+		myRequests.add(request);
+		return true;
+	}
+
+	/**
+	 * @param request request registered with {@link #track(Closeable)} that is no longer in flight
+	 */
+	public synchronized void untrack(final Closeable request) {
+		myRequests.remove(request);
+	}
+
+	/**
+	 * Back off before a retry, waking early if the download is abandoned.
+	 *
+	 * @param millis how long to wait
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void pause(final long millis) throws InterruptedException {
+		final long until = System.nanoTime() + millis * 1000000L;
+		long left = millis;
+		while (!myCancelled && left > 0) {
+			wait(left);
+			left = (until - System.nanoTime()) / 1000000L;
+		}
+	}
+
+	/**
+	 * A stream's reader has moved on, so segments further along may be handed out.
+	 */
+	public synchronized void readerMoved() {
+		notifyAll();
+	}
+
+	/**
+	 * @return true once the download has been abandoned
+	 */
+	public boolean isCancelled() {
+		return myCancelled;
+	}
+
+	/**
+	 * @return true if the verifier records finished segments in the journal block by block once they have passed,
+	 *         instead of the workers recording them as soon as they are written
+	 */
+	public synchronized boolean isJournaledByVerifier() {
+		return null != myVerifier && myVerifier.hasBlocks();
+	}
+
+	/**
+	 * Mark a segment as finished.
+	 *
+	 * @param segment segment returned by {@link #next()}
+	 */
+	public synchronized void complete(final Segment segment) {
+		myActive.remove(segment);
+		if (null != myVerifier) {
+			myVerifier.completed(segment.getStart(), segment.getEnd());
+		}
+
+		// a verifier with block hashes passes each block on once it is good
+		if (null != myStream && (null == myVerifier || !myVerifier.hasBlocks())) {
+			myStream.completed(segment.getStart(), segment.getEnd());
+		}
+	}
+
+	/**
+	 * Split the in-flight segment with the most bytes left, or the one nearest a stream's reader.
+	 *
+	 * @return stolen tail or null if no segment is large enough to split
+	 */
+	private Segment steal() {
+		Segment victim = null;
+		for (final Segment segment : myActive) {
+			if (null != myStream) {
+				if (segment.getRemaining() >= 2 * myMinSplitSize
+						&& (null == victim || segment.getStart() < victim.getStart())) {
+					victim = segment;
+				}
+			} else if (null == victim || segment.getRemaining() > victim.getRemaining()) {
+				victim = segment;
+			}
+		}
+
+		return (null == victim) ? null : victim.split(myMinSplitSize);
+	}
+}
@@ -0,0 +1,261 @@
+package com.marcschweikert;
+
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+
+import java.util.concurrent.Callable;
+
+import org.apache.http.HttpStatus;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * One connection's worth of work: keeps pulling segments from the scheduler until none are left.
+ *
+ * A failed request is retried according to the {@link RetryPolicy}, asking only for the bytes of the segment that
+ * have not been received yet. Every attempt goes to the mirror the {@link MirrorSet} picks, and an attempt whose
+ * mirror gets dropped moves straight on to another one. Reads count against the {@link RateLimits} of the mirror's
+ * host and of the download.
+ *
+ * The worker that carries on the download's first request starts with the segment that response is delivering and
+ * only asks the server again for whatever of it the response failed to bring.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class SegmentWorker implements Callable<Long> {
+
+	/** Source of segments. */
+	private final SegmentScheduler myScheduler;
+
+	/** Copies of the remote file. */
+	private final MirrorSet myMirrors;
+
+	/** Destination file. */
+	private final FileChannel myChannel;
+
+	/** Progress tracker. */
+	private final DownloadProgress myProgress;
+
+	/** Resume journal. */
+	private final DownloadJournal myJournal;
+
+	/** Retry policy for failed requests. */
+	private final RetryPolicy myRetryPolicy;
+
+	/** Decides whether this worker keeps running. */
+	private final ConnectionController myController;
+
+	/** The download's own bandwidth cap, or null for none. */
+	private final RateLimiter myRateLimiter;
+
+	/** HTTP/2 transport, or null for the pooled HttpClient. */
+	private final Http2Engine myHttp2;
+
+	/** First response of the download, or null. */
+	private final RemoteFile myProbe;
+
+	/** Segment the first response is delivering, or null. */
+	private final Segment myProbeSegment;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param scheduler source of segments
+	 * @param mirrors copies of the remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker
+	 * @param journal resume journal
+	 * @param retryPolicy retry policy for failed requests
+	 * @param controller decides whether this worker keeps running
+	 * @param rateLimiter the download's own bandwidth cap, or null for none
+	 * @param http2 HTTP/2 transport, or null for the pooled HttpClient
+	 */
+	public SegmentWorker(final SegmentScheduler scheduler, final MirrorSet mirrors, final FileChannel channel,
+			final DownloadProgress progress, final DownloadJournal journal, final RetryPolicy retryPolicy,
+			final ConnectionController controller, final RateLimiter rateLimiter, final Http2Engine http2) {
+		this(scheduler, mirrors, channel, progress, journal, retryPolicy, controller, rateLimiter, http2, null, null);
+	}
+
+	/**
+	 * Constructor for the worker carrying on the download's first request.
+	 *
+	 * @param scheduler source of segments
+	 * @param mirrors copies of the remote file
+	 * @param channel destination file, preallocated to the full size
+	 * @param progress progress tracker
+	 * @param journal resume journal
+	 * @param retryPolicy retry policy for failed requests
+	 * @param controller decides whether this worker keeps running
+	 * @param rateLimiter the download's own bandwidth cap, or null for none
+	 * @param http2 HTTP/2 transport, or null for the pooled HttpClient
+	 * @param probe first response of the download, closed by the worker, or null
+	 * @param probeSegment segment claimed for the first response, or null
+	 */
+	public SegmentWorker(final SegmentScheduler scheduler, final MirrorSet mirrors, final FileChannel channel,
+			final DownloadProgress progress, final DownloadJournal journal, final RetryPolicy retryPolicy,
+			final ConnectionController controller, final RateLimiter rateLimiter, final Http2Engine http2,
+			final RemoteFile probe, final Segment probeSegment) {
+		myProbe = probe;
+		myProbeSegment = probeSegment;
+		myScheduler = scheduler;
+		myMirrors = mirrors;
+		myChannel = channel;
+		myProgress = progress;
+		myJournal = journal;
+		myRetryPolicy = retryPolicy;
+		myController = controller;
+		myRateLimiter = rateLimiter;
+		myHttp2 = http2;
+	}
+
+	@Override
+	public Long call() throws IOException, InterruptedException {
+		long written = 0;
+		boolean retired = false;
+		EngineMetrics.getInstance().connectionStarted();
+		try {
+			if (null != myProbe) {
+				readProbe();
+				written += finish(myProbeSegment);
+			}
+
+			while (true) {
+				if (!myController.admit()) {
+					retired = true;
+					break;
+				}
+
+				final Segment segment = myScheduler.next();
+				if (null == segment) {
+					break;
+				}
+
+				download(segment);
+				written += finish(segment);
+			}
+		} finally {
+			// a retired worker has already been taken off the count
+			if (!retired) {
+				myController.release();
+			}
+			EngineMetrics.getInstance().connectionStopped();
+		}
+		return Long.valueOf(written);
+	}
+
+	/**
+	 * Write what the first response brings into its segment, and fetch whatever it failed to bring like any other
+	 * segment.
+	 *
+	 * @throws IOException Retries exhausted or the failure is permanent
+	 * @throws InterruptedException Interrupted while backing off
+	 */
+	private void readProbe() throws IOException, InterruptedException {
+		final long started = System.nanoTime();
+		final String authority = myProbe.getURI().getAuthority();
+		try {
+			if (!myScheduler.track(myProbe)) {
+				throw new IOException("Download abandoned before " + myProbeSegment);
+			}
+			myProbe.transfer(myProbeSegment, myChannel, myProgress, RateLimits.getInstance().throttle(
+					myRateLimiter, myProbe.getURI().getHost()));
+			EngineMetrics.getInstance().requestFinished(authority, myProbeSegment.getPosition(), System.nanoTime()
+					- started, null);
+		} catch (final IOException ex) {
+			EngineMetrics.getInstance().requestFinished(authority, myProbeSegment.getPosition(), System.nanoTime()
+					- started, ex);
+			if (myScheduler.isCancelled()) {
+				throw ex;
+			}
+			System.err.println("Retrying " + myProbeSegment + ":  " + ex.getMessage());
+		} finally {
+			myScheduler.untrack(myProbe);
+			myProbe.close();
+		}
+
+		if (!myProbeSegment.isComplete()) {
+			download(myProbeSegment);
+		}
+	}
+
+	/**
+	 * Record a downloaded segment as done.
+	 *
+	 * @param segment segment whose bytes are all written
+	 * @return bytes in the segment
+	 * @throws IOException if the segment cannot be forced to disk or the journal written
+	 */
+	private long finish(final Segment segment) throws IOException {
+		MappedFileChannel.sync(myChannel, segment);
+		myScheduler.complete(segment);
+		if (!myScheduler.isJournaledByVerifier()) {
+			myJournal.complete(segment.getStart(), segment.getEnd());
+		}
+		return segment.getEnd() - segment.getStart() + 1;
+	}
+
+	/**
+	 * Download one segment, re-requesting the remaining range after each failure.
+	 *
+	 * @param segment segment to download
+	 * @throws IOException Retries exhausted or the failure is permanent
+	 * @throws InterruptedException Interrupted while backing off
+	 */
+	private void download(final Segment segment) throws IOException, InterruptedException {
+		int attempts = 0;
+		while (true) {
+			final long before = segment.getPosition();
+			final long started = System.nanoTime();
+			final MirrorSet.Mirror mirror = myMirrors.acquire();
+			try {
+				final RateLimits.Throttle throttle = RateLimits.getInstance().throttle(myRateLimiter, mirror.toURL()
+						.getHost());
+				if (null != myHttp2) {
+					myHttp2.downloadSegment(segment, mirror.getURL(), myChannel, myProgress, throttle, myScheduler);
+				} else {
+					Downloader.downloadSegment(segment, mirror.getURL(), myChannel, myProgress, throttle,
+							myScheduler);
+				}
+				final long nanos = System.nanoTime() - started;
+				myMirrors.release(mirror, segment.getPosition() - before, nanos, null, false);
+				EngineMetrics.getInstance().requestFinished(mirror.toURL().getAuthority(), segment.getPosition()
+						- before, nanos, null);
+				return;
+			} catch (final IOException ex) {
+				final long nanos = System.nanoTime() - started;
+				EngineMetrics.getInstance().requestFinished(mirror.toURL().getAuthority(), segment.getPosition()
+						- before, nanos, ex);
+				if (myMirrors.release(mirror, segment.getPosition() - before, nanos, ex, !myRetryPolicy
+						.isTransient(ex)) && !myScheduler.isCancelled()) {
+					// the rest of the segment moves to a healthy mirror
+					attempts = 0;
+					continue;
+				}
+
+				// only count failures that made no headway at all
+				if (segment.getPosition() > before) {
+					attempts = 0;
+				}
+				attempts++;
+
+				if (ex instanceof HttpResponseException) {
+					final int status = ((HttpResponseException) ex).getStatusCode();
+					if (status == RetryPolicy.SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+						myController.reportThrottled();
+					}
+				}
+
+				if (myScheduler.isCancelled() || !myRetryPolicy.shouldRetry(attempts, ex)) {
+					throw ex;
+				}
+
+				final long delay = myRetryPolicy.getDelay(attempts);
+				System.err.println("Retrying " + segment + " in " + delay + " ms:  " + ex.getMessage());
+				EngineMetrics.getInstance().retryScheduled(mirror.toURL().getAuthority(), ex);
+				myScheduler.pause(delay);
+			}
+		}
+	}
+}
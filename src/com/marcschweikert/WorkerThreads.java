@@ -0,0 +1,153 @@
+package com.marcschweikert;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One long-lived executor shared by the connection workers of every download, plus thread factories for the threads
+ * that supervise downloads.
+ *
+ * On JDK 21 and later each worker runs on its own virtual thread, so a connection blocked in socket I/O costs a few
+ * kilobytes instead of a platform thread and thousands of range requests can be in flight on a small machine (raise
+ * <code>paralleldownloader.pool.maxTotal</code> and <code>paralleldownloader.pool.maxPerRoute</code> to match). On
+ * older runtimes, or with <code>-Dparalleldownloader.virtualThreads=false</code>, workers share a pool of at most
+ * <code>paralleldownloader.workerThreads</code> (256) daemon platform threads instead. The project still builds for
+ * Java 7, so the virtual thread API is reached through reflection.
+ *
+ * @author Chris Bubernak, Marc Schweikert
+ * @version 1.0
+ */
+public final class WorkerThreads {
+
+	/** Singleton instance. */
+	private static final WorkerThreads instance = new WorkerThreads();
+
+	/** Default size of the platform thread pool. */
+	private static final int DEFAULT_PLATFORM_THREADS = 256;
+
+	/** Seconds an idle platform worker thread is kept. */
+	private static final long IDLE_SECONDS = 60;
+
+	/** Whether threads are virtual. */
+	private final boolean myVirtual;
+
+	/** Runs connection workers. */
+	private final ExecutorService myWorkers;
+
+	/**
+	 * @return Singleton instance.
+	 */
+	public static WorkerThreads getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true if workers run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return myVirtual;
+	}
+
+	/**
+	 * @return executor running the connection workers of every download; never shut it down
+	 */
+	public ExecutorService getWorkerExecutor() {
+		return myWorkers;
+	}
+
+	/**
+	 * @param prefix name of the threads, followed by a sequence number
+	 * @return factory for virtual threads, or for daemon platform threads when those are not available
+	 */
+	public ThreadFactory newThreadFactory(final String prefix) {
+		if (myVirtual) {
+			final ThreadFactory factory = virtualThreadFactory(prefix);
+			if (null != factory) {
+				return factory;
+			}
+		}
+		return platformThreadFactory(prefix);
+	}
+
+	/**
+	 * @param prefix name of the threads, followed by a sequence number
+	 * @return factory for daemon platform threads
+	 */
+	private static ThreadFactory platformThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			/** Number of threads created so far. */
+			private final AtomicInteger myCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, prefix + myCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * <code>Thread.ofVirtual().name(prefix, 1).factory()</code>
+	 *
+	 * @param prefix name of the threads, followed by a sequence number
+	 * @return factory for virtual threads, or null if the runtime has none
+	 */
+	private static ThreadFactory virtualThreadFactory(final String prefix) {
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix,
+					Long.valueOf(1));
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (final ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * <code>Executors.newThreadPerTaskExecutor(factory)</code>
+	 *
+	 * @param factory factory for the threads
+	 * @return executor starting a new thread for every task, or null if the runtime has none
+	 */
+	private static ExecutorService threadPerTaskExecutor(final ThreadFactory factory) {
+		try {
+			final Method method = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory);
+		} catch (final ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 */
+	private WorkerThreads() {
+		ExecutorService workers = null;
+		if (Boolean.parseBoolean(System.getProperty("paralleldownloader.virtualThreads", "true"))) {
+			final ThreadFactory factory = virtualThreadFactory("SegmentWorker-");
+			if (null != factory) {
+				workers = threadPerTaskExecutor(factory);
+			}
+		}
+
+		myVirtual = null != workers;
+		if (!myVirtual) {
+			final int size = Math.max(1, Integer.getInteger("paralleldownloader.workerThreads",
+					DEFAULT_PLATFORM_THREADS).intValue());
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, IDLE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), platformThreadFactory("SegmentWorker-"));
+			pool.allowCoreThreadTimeOut(true);
+			workers = pool;
+		}
+		myWorkers = workers;
+	}
+}